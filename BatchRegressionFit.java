@@ -0,0 +1,431 @@
+/** BatchRegressionFit.java */
+
+package edu.washington.apl.aganse.dataTools;
+
+/**
+ * BatchRegressionFit computes the two- and three-phase regression fits of
+ * many profiles measured on the same x grid (eg. thousands of casts on a
+ * common depth grid) together, in lockstep.  The input is one x vector of
+ * n values and an n-by-m matrix of y values stored row by row, so that the
+ * m profiles' values at each x are contiguous.
+ * Everything that depends only on x - the sort, the runs of equal x, the
+ * x sums of each trial section, the limits of each trial's rectangle and
+ * the A matrix of the constrained-fit correction in the three-phase
+ * search - is worked out once per trial split, and then a tight loop over
+ * the m profiles does the per-profile arithmetic on contiguous arrays of
+ * y sums.  In the three-phase search, the third section's SSres for each
+ * X2 is worked out once up front, so each trial pair costs only the middle
+ * section's SSres and a comparison per profile; the lines themselves are
+ * solved only for the pairs that could improve on a profile's best fit.
+ * The search is otherwise that of DoubleRegressionLine and the exhaustive
+ * TripleRegressionLine, so each profile's fit is the same as fitting it on
+ * its own, up to rounding (divisions by x-only terms are done here as
+ * multiplications by their reciprocals).
+ * Profiles whose three-phase search reaches a segment with no data points
+ * throw ArithmeticException, as TripleRegressionLine does.
+ * @author <A HREF="mailto:aganse@apl.washington.edu">Andy Ganse</A>,<BR>
+ * <A HREF="http://www.apl.washington.edu">Applied Physics Laboratory</A>,<BR>
+ * <A HREF="http://www.washington.edu">University of Washington</A>.
+ * @version 19 Oct 2026
+ * @see <A HREF="MultiColumnFit.html">MultiColumnFit</A>
+ * @see <A HREF="DoubleRegressionLine.html">DoubleRegressionLine</A>
+ * @see <A HREF="TripleRegressionLine.html">TripleRegressionLine</A>
+ */
+public class BatchRegressionFit {
+
+    int n, m;                         // points per profile, profiles
+    double[] x;                       // sorted x values
+    double[] y;                       // y[i*m+j]: profile j at x[i]
+    MomentTable xtable;               // runs and x sums shared by profiles
+    int numRuns;
+    double x0;                        // shift of x in xtable's sums
+    double[] y0;                      // shift of y in each profile's sums
+    double[] cy, cxy, cyy;            // cy[r*m+j]: profile j's running sums
+                                      //   over runs 0..r-1, as in MomentTable
+    double minX, maxX;
+    double[][] fit2, fit3;            // results, as from toArray() of the
+                                      //   Double/TripleRegressionLine
+
+    /** Fits the m profiles of y against x, where y[i*m+j] is profile j's
+     *  value at x[i].  The arrays are left as they are. */
+    public BatchRegressionFit(double[] newx, double[] newy, int m) {
+        int[] order;
+        int i;
+
+        this.n = newx.length;
+        this.m = m;
+        if( m<1 || newy.length!=(long)n*m )
+            throw new IllegalArgumentException(
+                "BatchRegressionFit: need " + n + " x " + m + " y values");
+        order = MomentTable.sortOrder(newx);
+        x = new double[n];
+        y = new double[n*m];
+        for( i=0; i<n; i++ ) {
+            x[i] = newx[order[i]];
+            System.arraycopy(newy, order[i]*m, y, i*m, m);
+        }
+
+        FitMetrics.Probe probe =
+            new FitMetrics.Probe("BatchRegressionFit", (long)n*m);
+        probe.begin(FitMetrics.MOMENTS);
+        xtable = new MomentTable(x);
+        numRuns = xtable.getNumRuns();
+        x0 = xtable.x0;
+        minX = n>0 ? x[0] : 0;
+        maxX = n>0 ? x[n-1] : 0;
+        tabulate();
+        probe.end();
+
+        probe.begin(FitMetrics.SEARCH);
+        fit2 = new double[m][];
+        fit3 = new double[m][];
+        searchDouble();
+        searchTriple();
+        probe.end();
+        probe.finish(numRuns, 0, 0, 0);
+    }
+
+    /** Accumulates the y sums of all the profiles, point by point in the
+     *  same order (and so with the same rounding) as MomentTable does for
+     *  one profile */
+    private void tabulate() {
+        double xs, ys;
+        double[] sy = new double[m], sxy = new double[m], syy = new double[m];
+        int i, j, r, row;
+
+        y0 = new double[m];
+        for( i=0; i<n; i++ )
+            for( j=0, row=i*m; j<m; j++ )
+                y0[j] += y[row+j];
+        if( n>0 )
+            for( j=0; j<m; j++ )
+                y0[j] /= n;
+
+        cy = new double[(numRuns+1)*m];
+        cxy = new double[(numRuns+1)*m];
+        cyy = new double[(numRuns+1)*m];
+        i = 0;
+        for( r=0; r<numRuns; r++ ) {
+            xs = x[i]-x0;
+            for( ; i<xtable.getRunEnd(r); i++ ) {
+                row = i*m;
+                for( j=0; j<m; j++ ) {
+                    ys = y[row+j]-y0[j];
+                    sy[j] += ys;
+                    sxy[j] += xs*ys;
+                    syy[j] += ys*ys;
+                }
+            }
+            System.arraycopy(sy, 0, cy, (r+1)*m, m);
+            System.arraycopy(sxy, 0, cxy, (r+1)*m, m);
+            System.arraycopy(syy, 0, cyy, (r+1)*m, m);
+        }
+    }
+
+    /** The x-only part of a trial section, runs r0 through r1-1 */
+    private static class XSegment {
+        int r0, r1, numRuns;
+        long numPts;
+        double sx, xmean;
+        double invSw, invSxx;         // 1/(sum of weights), 1/Sxx
+    }
+
+    private XSegment xsegment(int r0, int r1) {
+        XSegment s = new XSegment();
+        double sw, Sxx;
+        s.r0 = r0;
+        s.r1 = r1;
+        s.numRuns = r1-r0;
+        s.numPts = xtable.cn[r1]-xtable.cn[r0];
+        sw = xtable.cw[r1]-xtable.cw[r0];
+        s.sx = xtable.cx[r1]-xtable.cx[r0];
+        Sxx = s.numRuns<2 ? 0 : (xtable.cxx[r1]-xtable.cxx[r0]) - s.sx*s.sx/sw;
+        s.xmean = x0 + s.sx/sw;
+        s.invSw = 1/sw;
+        s.invSxx = 1/Sxx;
+        return s;
+    }
+
+    /** Residual sums of squares about the lines fitted to section s of
+     *  every profile, as MomentTable.Segment.getR() gives for one */
+    private void resid(XSegment s, double[] R, int off) {
+        int a = s.r0*m, b = s.r1*m;
+        double sy, Sxy, Syy;
+        double sx = s.sx, invSw = s.invSw, invSxx = s.invSxx;
+        if( s.numRuns<2 ) {
+            // no line through a single x value
+            for( int j=0; j<m; j++ )
+                R[off+j] = Double.NaN;
+            return;
+        }
+        for( int j=0; j<m; j++ ) {
+            sy = cy[b+j]-cy[a+j];
+            Sxy = (cxy[b+j]-cxy[a+j]) - sx*sy*invSw;
+            Syy = (cyy[b+j]-cyy[a+j]) - sy*sy*invSw;
+            R[off+j] = Math.max(0, Syy - Sxy*Sxy*invSxx);
+        }
+    }
+
+    /** Slope of the line fitted to section s of profile j */
+    private double slope(XSegment s, int j) {
+        int a = s.r0*m+j, b = s.r1*m+j;
+        if( s.numRuns<2 ) return Double.NaN;
+        return ((cxy[b]-cxy[a]) - s.sx*(cy[b]-cy[a])*s.invSw) * s.invSxx;
+    }
+
+    /** Y-intercept of the line of the given slope fitted to section s of
+     *  profile j */
+    private double yint(XSegment s, int j, double slope) {
+        int a = s.r0*m+j, b = s.r1*m+j;
+        return y0[j] + ((cy[b]-cy[a]) - slope*s.sx)*s.invSw - slope*x0;
+    }
+
+    /** Data x values on either side of run r, as used by the fitters'
+     *  liesInRectangle() */
+    private double[] sides(int r) {
+        if( r<numRuns-1 )
+            return new double[] {xtable.getRunX(r), xtable.getRunX(r+1)};
+        else if( xtable.getRunCount(r)>1 )
+            return new double[] {xtable.getRunX(r), xtable.getRunX(r)};
+        else
+            return new double[] {r>0 ? xtable.getRunX(r-1) : 0.,
+                                 xtable.getRunX(r)};
+    }
+
+    /** The two-phase search of DoubleRegressionLine, for all profiles */
+    private void searchDouble() {
+        double[] R1 = new double[m], R2 = new double[m];
+        double[] Rmin = new double[m];
+        double Rlines, X1lines, X1, b1, b2, a1, a2;
+        double[] side;
+        XSegment s1, s2;
+        int r, s, j, rfirst, rlast;
+
+        // initial guess at the x midpoint
+        X1 = (maxX-minX)/2 + minX;
+        s = xtable.runIndexOf(X1);
+        s1 = xsegment(0, s+1);
+        s2 = xsegment(s+1, numRuns);
+        resid(s1, R1, 0);
+        resid(s2, R2, 0);
+        for( j=0; j<m; j++ ) {
+            Rmin[j] = R1[j] + R2[j];
+            record2(j, s1, R1[j], s2, R2[j]);
+            if( fit2[j][6]<=minX || fit2[j][6]>=maxX ) {
+                fit2[j][6] = X1;
+                fit2[j][0] = 1.0e16;
+            }
+        }
+
+        if( n>3 ) {
+            rfirst = xtable.runOf(1);
+            rlast = xtable.runOf(n-3);
+        } else {
+            rfirst = 0;
+            rlast = -1;
+        }
+        for( r=rfirst; r<=rlast; r++ ) {
+            s = xtable.runIndexOf(xtable.getRunX(r)+0.5);
+            s1 = xsegment(0, s+1);
+            s2 = xsegment(s+1, numRuns);
+            side = sides(r);
+            resid(s1, R1, 0);
+            resid(s2, R2, 0);
+            for( j=0; j<m; j++ ) {
+                Rlines = R1[j] + R2[j];
+                if( !(Rlines<Rmin[j]) ) continue;
+                // only now work out the lines and where they meet
+                b1 = slope(s1, j);
+                b2 = slope(s2, j);
+                a1 = yint(s1, j, b1);
+                a2 = yint(s2, j, b2);
+                X1lines = (a2-a1)/(b1-b2);
+                if( X1lines>minX && X1lines<maxX &&
+                    X1lines>=side[0] && X1lines<=side[1] ) {
+                    Rmin[j] = Rlines;
+                    record2(j, s1, R1[j], s2, R2[j]);
+                }
+            }
+        }
+    }
+
+    /** Stores the two-phase fit of profile j to sections s1, s2 */
+    private void record2(int j, XSegment s1, double R1, XSegment s2,
+                         double R2) {
+        double b1 = slope(s1, j), b2 = slope(s2, j);
+        double a1 = yint(s1, j, b1), a2 = yint(s2, j, b2);
+        fit2[j] = new double[] {R1+R2,
+            ( R1/(s1.numPts-1) + R2/(s2.numPts-1) ) / 2,
+            b1, b2, a1, a2, (a2-a1)/(b1-b2)};
+    }
+
+    /** The A matrix terms of TripleRegressionLine.nextR() for a split at
+     *  X1 and X2, which depend only on x: {a11, a12, a22, 1/det} */
+    private static double[] aMatrix(double X1, double X2, XSegment s1,
+                                     XSegment s2, XSegment s3) {
+        double a11, a12, a22;
+        a11 = 1/s1.numPts + 1/s2.numPts +
+            (s1.xmean - X1)*(s1.xmean - X1) * s1.invSxx +
+            (s2.xmean - X1)*(s2.xmean - X1) * s2.invSxx;
+        a12 = -1/s2.numPts -
+            (s2.xmean - X1)*(s2.xmean - X2) * s2.invSxx;
+        a22 = 1/s2.numPts + 1/s3.numPts +
+            (s2.xmean - X2)*(s2.xmean - X2) * s2.invSxx +
+            (s3.xmean - X2)*(s3.xmean - X2) * s3.invSxx;
+        return new double[] {a11, a12, a22, 1/(a11*a22-a12*a12)};
+    }
+
+    /** The three-phase (exhaustive) search of TripleRegressionLine, for
+     *  all profiles.  The third section depends only on X2, so its SSres
+     *  for every X2 are worked out up front; each row (X1) then adds its
+     *  first section's, and each pair only needs the middle section's
+     *  SSres to be compared with the best so far.  The lines themselves
+     *  are only solved for the few pairs that pass that test. */
+    private void searchTriple() {
+        double[] R1 = new double[m], R2 = new double[m], R3;
+        double[] b1 = new double[m], a1 = new double[m];
+        double[] Rmin = new double[m];
+        double[] A;                       // x-only A matrix, made if needed
+        double Rlines, Rnew, X1lines, X2lines, m1, m2, X1, X2, xa, xb;
+        double b2, b3, a2, a3;
+        double[] side1, side2;
+        XSegment s1, s2, s3;
+        XSegment[] tail;                  // third sections, by rb
+        int ra, rb, j, rfirst, rlast, rbmax, rbstart, r3;
+        long jmin;
+
+        // initial guesses at 1/3 and 2/3 of the x range
+        X1 = (maxX-minX)/3 + minX;
+        X2 = 2*(maxX-minX)/3 + minX;
+        s1 = xsegment(0, xtable.runIndexOf(X1)+1);
+        s2 = xsegment(s1.r1, xtable.runIndexOf(X2)+1);
+        s3 = xsegment(s2.r1, numRuns);
+        R3 = new double[m];
+        resid(s1, R1, 0);
+        resid(s2, R2, 0);
+        resid(s3, R3, 0);
+        A = null;
+        for( j=0; j<m; j++ ) {
+            record3(j, s1, R1[j], s2, R2[j], s3, R3[j]);
+            if( A==null ) A = aMatrix(X1, X2, s1, s2, s3);
+            m1 = (fit3[j][2]-fit3[j][3])*(X1-fit3[j][8]);
+            m2 = (fit3[j][3]-fit3[j][4])*(X2-fit3[j][9]);
+            Rmin[j] = fit3[j][0] +
+                A[3] * ( m1*m1*A[2] - 2*m1*m2*A[1] + m2*m2*A[0] );
+        }
+
+        if( n>5 ) {
+            rfirst = xtable.runOf(1);
+            rlast = xtable.runOf(n-5);
+            rbmax = xtable.runOf(n-3);
+        } else {
+            rfirst = 0;
+            rlast = rbmax = -1;
+        }
+        if( rlast<rfirst ) return;
+        tail = new XSegment[rbmax+1];
+        R3 = new double[(rbmax+1)*m];
+        for( rb=rfirst+1; rb<=rbmax; rb++ ) {
+            tail[rb] = xsegment(rb+1, numRuns);
+            resid(tail[rb], R3, rb*m);
+        }
+
+        for( ra=rfirst; ra<=rlast; ra++ ) {
+            jmin = Math.max(xtable.getRunStart(ra), 1);
+            xa = xtable.getRunX(ra);
+            rbstart = Math.max(xtable.runOf(jmin+2), ra+1);
+            if( rbstart>rbmax ) continue;
+            s1 = xsegment(0, ra+1);
+            resid(s1, R1, 0);
+            for( j=0; j<m; j++ ) {
+                b1[j] = slope(s1, j);
+                a1[j] = yint(s1, j, b1[j]);
+            }
+            side1 = sides(ra);
+            for( rb=rbstart; rb<=rbmax; rb++ ) {
+                s2 = xsegment(ra+1, rb+1);
+                s3 = tail[rb];
+                resid(s2, R2, 0);
+                xb = xtable.getRunX(rb);
+                side2 = null;
+                A = null;
+                for( j=0, r3=rb*m; j<m; j++ ) {
+                    Rlines = R1[j] + R2[j] + R3[r3+j];
+                    if( !(Rlines<Rmin[j]) ) continue;
+                    // only now work out the lines and where they meet
+                    b2 = slope(s2, j);
+                    b3 = slope(s3, j);
+                    a2 = yint(s2, j, b2);
+                    a3 = yint(s3, j, b3);
+                    X1lines = (a2==a1[j] && b1[j]==b2) ? minX :
+                        (a2-a1[j])/(b1[j]-b2);
+                    X2lines = (a3==a2 && b2==b3) ? maxX : (a3-a2)/(b2-b3);
+                    if( !(X1lines>=minX && X2lines<=maxX) ) continue;
+                    if( side2==null ) side2 = sides(rb);
+                    if( X1lines>=side1[0] && X1lines<=side1[1] &&
+                        X2lines>=side2[0] && X2lines<=side2[1] ) {
+                        Rmin[j] = Rlines;
+                    } else {
+                        if( A==null ) A = aMatrix(xa, xb, s1, s2, s3);
+                        m1 = (b1[j]-b2)*(xa-X1lines);
+                        m2 = (b2-b3)*(xb-X2lines);
+                        Rnew = Rlines +
+                            A[3] * ( m1*m1*A[2] - 2*m1*m2*A[1] + m2*m2*A[0] );
+                        if( Rnew<Rmin[j] ) {
+                            Rmin[j] = Rnew;
+                            record3(j, s1, R1[j], s2, R2[j], s3, R3[r3+j]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /** Stores the three-phase fit of profile j to sections s1, s2, s3 */
+    private void record3(int j, XSegment s1, double R1, XSegment s2,
+                         double R2, XSegment s3, double R3) {
+        double b1 = slope(s1, j), b2 = slope(s2, j), b3 = slope(s3, j);
+        double a1 = yint(s1, j, b1), a2 = yint(s2, j, b2);
+        double a3 = yint(s3, j, b3);
+        fit3[j] = new double[] {R1+R2+R3,
+            ( R1/(s1.numPts-1) + R2/(s2.numPts-1) + R3/(s3.numPts-1) ) / 3,
+            b1, b2, b3, a1, a2, a3,
+            (a2==a1 && b1==b2) ? minX : (a2-a1)/(b1-b2),
+            (a3==a2 && b2==b3) ? maxX : (a3-a2)/(b2-b3),
+            0, 0};
+    }
+
+    /** Returns the number of profiles */
+    public int getNumProfiles() {
+        return m;
+    }
+    /** Returns the number of points in each profile */
+    public int getNumPts() {
+        return n;
+    }
+    /** Returns profile j as a new DataSeries, sorted by x */
+    public DataSeries getProfile(int j) {
+        DataSeries data = new DataSeries();
+        for( int i=0; i<n; i++ )
+            data.add(x[i], y[i*m+j]);
+        return data;
+    }
+    /** Returns the two-phase fit of profile j */
+    public DoubleRegressionLine getDouble(int j) {
+        return DoubleRegressionLine.fromArray(extent(j), fit2[j]);
+    }
+    /** Returns the three-phase fit of profile j */
+    public TripleRegressionLine getTriple(int j) {
+        return TripleRegressionLine.fromArray(extent(j), fit3[j]);
+    }
+
+    /** The x extent of profile j, for the fits' getEndPoints() */
+    private DataSeries extent(int j) {
+        DataSeries ends = new DataSeries();
+        if( n>0 ) {
+            ends.add(minX, y[j]);
+            ends.add(maxX, y[(n-1)*m+j]);
+        }
+        return ends;
+    }
+}
@@ -0,0 +1,263 @@
+/** BinarySegmentation.java */
+
+package edu.washington.apl.aganse.dataTools;
+
+import java.util.*;
+
+/**
+ * BinarySegmentation computes an approximate many-line regression fit by
+ * top-down splitting, for exploratory passes over long records where the
+ * exact fits would cost too much.  Starting from one line through all the
+ * data, it repeatedly takes the section with the largest residual sum of
+ * squares and splits it in two at the point that best reduces that SSres,
+ * until there are a given number of lines or no section's best split
+ * gains more than a given penalty.  A section whose best split gains no
+ * more than the penalty is left whole and the next largest is tried.
+ * <P>
+ * The lines are fitted to their sections independently (they are not
+ * joined at the breaks as in DoubleRegressionLine), each section holds at
+ * least two distinct x values, and the breaks fall between runs of equal
+ * x values.  Each split is one pass over its section's runs in the data's
+ * MomentTable, so with roughly even splits the whole fit costs
+ * O(n log n) for n points, most of it the sort.  Being greedy, the result
+ * need not be the least SSres possible with that many lines;
+ * optimalResidSumSq() gives that optimum by dynamic programming, in
+ * O(k m^2) time for k lines over m runs, and report() compares the two,
+ * for checking on a sample how much the heuristic gives away.
+ * @author <A HREF="mailto:aganse@apl.washington.edu">Andy Ganse</A>,<BR>
+ * <A HREF="http://www.apl.washington.edu">Applied Physics Laboratory</A>,<BR>
+ * <A HREF="http://www.washington.edu">University of Washington</A>.
+ * @version 19 Oct 2026
+ * @see <A HREF="MomentTable.html">MomentTable</A>
+ * @see <A HREF="DoubleRegressionLine.html">DoubleRegressionLine</A>
+ * @see <A HREF="PiecewiseLinearModel.html">PiecewiseLinearModel</A>
+ */
+public class BinarySegmentation {
+
+    MomentTable table;                // running moments of the sorted data
+    int[] starts;                     // first run of each section, and
+                                      //   numRuns at the end
+    double[] history;                 // total SSres after each split,
+                                      //   history[k-1] with k lines
+
+    /** A section of runs r0 through r1-1, with its best split */
+    private static class Section implements Comparable {
+        int r0, r1;
+        double R;                     // SSres of one line on the section
+        int split = -1;               // first run of the right-hand part
+        double gain;                  // reduction in SSres by splitting
+
+        Section(MomentTable table, int r0, int r1) {
+            this.r0 = r0;
+            this.r1 = r1;
+            R = table.segment(r0, r1).getR();
+            for( int rs=r0+2; rs<=r1-2; rs++ ) {
+                double Rsplit = table.segment(r0, rs).getR() +
+                    table.segment(rs, r1).getR();
+                if( split<0 || R-Rsplit>gain ) {
+                    split = rs;
+                    gain = R-Rsplit;
+                }
+            }
+        }
+        /** Orders sections by decreasing SSres */
+        public int compareTo(Object o) {
+            return Double.compare(((Section)o).R, R);
+        }
+    }
+
+    /** Fits up to maxLines lines to data, splitting sections only while a
+     *  split reduces the SSres by more than penalty (0 to split until
+     *  there are maxLines lines, where the data allows). */
+    public BinarySegmentation(DataSeries data, int maxLines, double penalty) {
+        FitMetrics.Probe probe =
+            new FitMetrics.Probe("BinarySegmentation", data.getNumPts());
+        probe.begin(FitMetrics.SORT);
+        MomentTable.sort(data);
+        probe.end();
+        probe.begin(FitMetrics.MOMENTS);
+        table = new MomentTable(data);
+        probe.end();
+        segment(probe, maxLines, penalty);
+    }
+
+    /** Same, for a series too large for the heap; it must already be in
+     *  order of increasing x value (see MomentTable(OffHeapSeries)) */
+    public BinarySegmentation(OffHeapSeries series, int maxLines,
+                              double penalty) {
+        FitMetrics.Probe probe =
+            new FitMetrics.Probe("BinarySegmentation", series.getNumPts());
+        probe.begin(FitMetrics.MOMENTS);
+        table = new MomentTable(series);
+        probe.end();
+        segment(probe, maxLines, penalty);
+    }
+
+    /** Same, for a compact series (see CompactSeries) */
+    public BinarySegmentation(CompactSeries series, int maxLines,
+                              double penalty) {
+        FitMetrics.Probe probe =
+            new FitMetrics.Probe("BinarySegmentation", series.getNumPts());
+        probe.begin(FitMetrics.MOMENTS);
+        table = new MomentTable(series);
+        probe.end();
+        segment(probe, maxLines, penalty);
+    }
+
+    /** Same, on an existing table of moments, as for the training sets of
+     *  CrossValidatedFit */
+    BinarySegmentation(MomentTable newtable, int maxLines, double penalty) {
+        table = newtable;
+        segment(new FitMetrics.Probe("BinarySegmentation",
+                                     table.getNumPts()), maxLines, penalty);
+    }
+
+    /** The splitting itself */
+    private void segment(FitMetrics.Probe probe, int maxLines,
+                         double penalty) {
+        PriorityQueue open = new PriorityQueue();   // sections to try
+        Vector done = new Vector();               // sections left whole
+        Section s;
+        long numSplits = 0, numTried = 0;
+        double total;
+
+        if( maxLines<1 )
+            throw new IllegalArgumentException(
+                "BinarySegmentation: maxLines " + maxLines + " < 1");
+        if( table.getNumRuns()<2 )
+            throw new IllegalArgumentException(
+                "BinarySegmentation: fewer than two distinct x values");
+        probe.begin(FitMetrics.SEARCH);
+        history = new double[maxLines];
+        s = new Section(table, 0, table.getNumRuns());
+        history[0] = s.R;
+        open.add(s);
+        while( !open.isEmpty() && done.size()+open.size()<maxLines ) {
+            s = (Section)open.poll();
+            numTried++;
+            if( s.split<0 || !(s.gain>penalty) ) {
+                done.add(s);
+                continue;
+            }
+            open.add(new Section(table, s.r0, s.split));
+            open.add(new Section(table, s.split, s.r1));
+            numSplits++;
+            history[(int)numSplits] = history[(int)numSplits-1] - s.gain;
+        }
+        done.addAll(open);
+
+        starts = new int[done.size()+1];
+        for( int i=0; i<done.size(); i++ )
+            starts[i] = ((Section)done.get(i)).r0;
+        starts[done.size()] = table.getNumRuns();
+        Arrays.sort(starts, 0, done.size());
+        // the history's running differences drift a little from the sums
+        // of the final sections' SSres, so end it on the exact total
+        total = 0;
+        for( int i=0; i<done.size(); i++ )
+            total += ((Section)done.get(i)).R;
+        history[(int)numSplits] = total;
+        double[] h = new double[(int)numSplits+1];
+        System.arraycopy(history, 0, h, 0, h.length);
+        history = h;
+        probe.end();
+        probe.finish(table.getNumRuns(), numTried, 0, numSplits);
+    }
+
+    /** Returns the number of lines fitted */
+    public int getNumLines() {
+        return starts.length-1;
+    }
+    /** Returns the total residual sum of squares of all the lines */
+    public double getR() {
+        return history[history.length-1];
+    }
+    /** Returns the total SSres the fit had when it had k lines, for k from
+     *  1 to getNumLines() */
+    public double getR(int k) {
+        return history[k-1];
+    }
+    /** Returns the MomentTable segment fitted by line s */
+    public MomentTable.Segment getSegment(int s) {
+        return table.segment(starts[s], starts[s+1]);
+    }
+    /** Returns the slope of line s */
+    public double getSlope(int s) {
+        return getSegment(s).getSlope();
+    }
+    /** Returns the y-intercept of line s */
+    public double getYint(int s) {
+        return getSegment(s).getYint();
+    }
+    /** Returns the x value of break s, between lines s and s+1: halfway
+     *  between the last x of line s's section and the first of line s+1's */
+    public double getBreak(int s) {
+        return 0.5*(table.getRunX(starts[s+1]-1) + table.getRunX(starts[s+1]));
+    }
+
+    /** Returns the lines as a PiecewiseLinearModel, each line applying out
+     *  to the breaks either side of it */
+    public PiecewiseLinearModel getModel() {
+        int k = getNumLines();
+        double[] breaks = new double[k-1];
+        double[] slopes = new double[k];
+        double[] yints = new double[k];
+        for( int s=0; s<k; s++ ) {
+            if( s<k-1 ) breaks[s] = getBreak(s);
+            slopes[s] = getSlope(s);
+            yints[s] = getYint(s);
+        }
+        return new PiecewiseLinearModel(breaks, slopes, yints,
+            table.getRunX(0), table.getRunX(table.getNumRuns()-1));
+    }
+
+    /** Returns, for each k from 1 to maxLines, the least total SSres of k
+     *  independent lines over sections of the data of at least two runs
+     *  each (element k-1), or infinity where there are too few runs.
+     *  This is the exact optimum the binary segmentation approximates; it
+     *  costs O(maxLines m^2) for m runs, so is meant for samples. */
+    public double[] optimalResidSumSq(int maxLines) {
+        int m = table.getNumRuns();
+        double[] opt = new double[maxLines];
+        double[] prev = new double[m+1];  // best for k-1 lines on runs 0..r-1
+        double[] cur = new double[m+1];
+        double[] t;
+        double best, R;
+        int k, r, rs;
+
+        Arrays.fill(prev, Double.POSITIVE_INFINITY);
+        for( r=2; r<=m; r++ )
+            prev[r] = table.segment(0, r).getR();
+        opt[0] = prev[m];
+        for( k=2; k<=maxLines; k++ ) {
+            Arrays.fill(cur, Double.POSITIVE_INFINITY);
+            for( r=2*k; r<=m; r++ ) {
+                best = Double.POSITIVE_INFINITY;
+                for( rs=2*(k-1); rs<=r-2; rs++ ) {
+                    R = prev[rs] + table.segment(rs, r).getR();
+                    if( R<best ) best = R;
+                }
+                cur[r] = best;
+            }
+            opt[k-1] = cur[m];
+            t = prev; prev = cur; cur = t;
+        }
+        return opt;
+    }
+
+    /** return a String comparing, for each number of lines the fit passed
+     *  through, its total SSres with the exact optimum for that many lines
+     *  (see optimalResidSumSq()) */
+    public String report() {
+        double[] opt = optimalResidSumSq(history.length);
+        StringBuffer sb = new StringBuffer(
+            "BinarySegmentation: " + getNumLines() + " line(s) over " +
+            table.getNumRuns() + " runs\n" +
+            "   lines    binseg SSres   optimal SSres   excess\n");
+        for( int k=1; k<=history.length; k++ )
+            sb.append(String.format("   %5d  %14.6g  %14.6g  %6.2f%%\n",
+                                    k, history[k-1], opt[k-1],
+                                    100*(history[k-1]/opt[k-1]-1)));
+        return sb.toString();
+    }
+}
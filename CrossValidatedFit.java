@@ -0,0 +1,307 @@
+/** CrossValidatedFit.java */
+
+package edu.washington.apl.aganse.dataTools;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * CrossValidatedFit chooses how many line segments to fit to a series by
+ * k-fold cross-validation, as an alternative to the hand-tuned sigma
+ * tolerances of DataSeries.bestRegressionLine().  The points are dealt
+ * at random (but reproducibly, from a seed) into k folds of near equal
+ * size; each fold in turn is held out, the models of 1 to maxOrder lines
+ * are fitted to the rest, and each model is scored by the squared error of
+ * its predictions of the held-out points.  The order chosen is the
+ * smallest whose mean squared prediction error over all the folds is
+ * within one standard error (from the spread between folds) of the least,
+ * the usual rule for not chasing noise with extra lines.
+ * Orders 1 to 3 are the joined fits of SingleRegressionLine,
+ * DoubleRegressionLine and the pruned TripleRegressionLine; higher orders
+ * are the greedy fits of BinarySegmentation, whose lines are not joined.
+ * The folds are worked on in parallel, on a pool of threads.  No fold
+ * copies the data: all share the one sorted x and y arrays and the
+ * MomentTable of the whole series, a fold being picked out by a mask of
+ * each point's fold number.  A fold's training table is made from the
+ * whole table's run sums by subtracting (downdating) the sums of its own
+ * held-out points, one pass over the mask, and runs left with no points
+ * are dropped.  A model that can't be fitted to a fold's training points
+ * (too few of them) scores infinity for that fold.
+ * The elapsed time of each fold is kept, for spotting imbalance.
+ * @author <A HREF="mailto:aganse@apl.washington.edu">Andy Ganse</A>,<BR>
+ * <A HREF="http://www.apl.washington.edu">Applied Physics Laboratory</A>,<BR>
+ * <A HREF="http://www.washington.edu">University of Washington</A>.
+ * @version 19 Oct 2026
+ * @see <A HREF="MomentTable.html">MomentTable</A>
+ * @see <A HREF="BinarySegmentation.html">BinarySegmentation</A>
+ * @see <A HREF="PiecewiseLinearModel.html">PiecewiseLinearModel</A>
+ */
+public class CrossValidatedFit {
+
+    static final int MAX_FOLDS = 127;         // folds numbered in a byte
+
+    double[] x, y;                    // the points, sorted by x
+    MomentTable table;                // moments of all the points
+    byte[] foldOf;                    // fold of each point (the mask)
+    int numFolds, maxOrder;
+    long[] foldPts;                   // number of points held out per fold
+    double[][] foldSS;                // foldSS[f][k-1]: held-out squared
+                                      //   error of k lines in fold f
+    long[] foldNanos;                 // elapsed time of each fold
+    double[] cvError, cvStdErr;       // per order: mean squared error, and
+                                      //   its standard error between folds
+    int bestOrder;
+
+    /** Cross-validates the fits of 1 to 3 lines to data over numFolds
+     *  folds, on one thread per processor */
+    public CrossValidatedFit(DataSeries data, int numFolds) {
+        this(data, numFolds, 3, 0, 0);
+    }
+
+    /** Cross-validates the fits of 1 to maxOrder lines to data over
+     *  numFolds folds dealt from seed, on nthreads threads (0 for one per
+     *  processor).  data is sorted in place, as by the fitters. */
+    public CrossValidatedFit(DataSeries data, int numFolds, int maxOrder,
+                             int nthreads, long seed) {
+        int n = data.getNumPts(), i, j, f, t;
+        if( numFolds<2 || numFolds>Math.min(MAX_FOLDS, n) )
+            throw new IllegalArgumentException("CrossValidatedFit: can't " +
+                "make " + numFolds + " folds of " + n + " points");
+        if( maxOrder<1 )
+            throw new IllegalArgumentException(
+                "CrossValidatedFit: maxOrder " + maxOrder + " < 1");
+        if( nthreads<=0 ) nthreads = Runtime.getRuntime().availableProcessors();
+        this.numFolds = numFolds;
+        this.maxOrder = maxOrder;
+        MomentTable.sort(data);
+        x = data.xToArray();
+        y = data.yToArray();
+        table = new MomentTable(data);
+
+        // deal the points into folds in a random order
+        int[] perm = new int[n];
+        for( i=0; i<n; i++ ) perm[i] = i;
+        Random random = new Random(seed);
+        for( i=n-1; i>0; i-- ) {
+            j = random.nextInt(i+1);
+            t = perm[i];
+            perm[i] = perm[j];
+            perm[j] = t;
+        }
+        foldOf = new byte[n];
+        for( i=0; i<n; i++ ) foldOf[perm[i]] = (byte)(i%numFolds);
+
+        foldPts = new long[numFolds];
+        foldSS = new double[numFolds][];
+        foldNanos = new long[numFolds];
+        Future[] done = new Future[numFolds];
+        ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+        try {
+            for( f=0; f<numFolds; f++ )
+                done[f] = pool.submit(new Fold(f));
+            for( f=0; f<numFolds; f++ )
+                done[f].get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("CrossValidatedFit: interrupted");
+        } catch(ExecutionException e) {
+            if( e.getCause() instanceof RuntimeException )
+                throw (RuntimeException)e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        choose();
+    }
+
+    /** One fold: the training table, the fits, and their scores */
+    private class Fold implements Callable {
+        int f;
+
+        Fold(int f) {
+            this.f = f;
+        }
+
+        public Object call() {
+            long start = System.nanoTime();
+            MomentTable train = downdate(f);
+            PiecewiseLinearModel[] models =
+                new PiecewiseLinearModel[maxOrder];
+            for( int k=1; k<=maxOrder; k++ )
+                models[k-1] = fit(train, k);
+            double[] ss = new double[maxOrder];
+            long count = 0;
+            double d;
+            for( int i=0; i<x.length; i++ ) {
+                if( foldOf[i]!=f ) continue;
+                count++;
+                for( int k=0; k<maxOrder; k++ )
+                    if( models[k]!=null ) {
+                        d = y[i] - models[k].predict(x[i]);
+                        ss[k] += d*d;
+                    }
+            }
+            for( int k=0; k<maxOrder; k++ )
+                if( models[k]==null || Double.isNaN(ss[k]) )
+                    ss[k] = Double.POSITIVE_INFINITY;
+            foldPts[f] = count;
+            foldSS[f] = ss;
+            foldNanos[f] = System.nanoTime()-start;
+            return null;
+        }
+    }
+
+    /** Returns the table of all the points but fold f's, by subtracting
+     *  the held-out points' sums from each run's sums */
+    MomentTable downdate(int f) {
+        int m = table.getNumRuns(), r, q, i;
+        long[] hn = new long[m];
+        double[] hx = new double[m], hy = new double[m], hxx = new double[m],
+            hxy = new double[m], hyy = new double[m];
+        double xs, ys;
+        for( r=0, i=0; r<m; r++ )
+            for( ; i<table.cn[r+1]; i++ ) {
+                if( foldOf[i]!=f ) continue;
+                xs = x[i]-table.x0;
+                ys = y[i]-table.y0;
+                hn[r]++;
+                hx[r] += xs;
+                hy[r] += ys;
+                hxx[r] += xs*xs;
+                hxy[r] += xs*ys;
+                hyy[r] += ys*ys;
+            }
+        // the training runs, dropping any left empty
+        for( r=0, q=0; r<m; r++ )
+            if( table.cn[r+1]-table.cn[r]>hn[r] ) q++;
+        double[] runX = new double[q];
+        long[] n = new long[q];
+        double[] sx = new double[q], sy = new double[q], sxx = new double[q],
+            sxy = new double[q], syy = new double[q];
+        for( r=0, q=0; r<m; r++ ) {
+            if( table.cn[r+1]-table.cn[r]==hn[r] ) continue;
+            runX[q] = table.runX[r];
+            n[q] = table.cn[r+1]-table.cn[r]-hn[r];
+            sx[q] = table.cx[r+1]-table.cx[r]-hx[r];
+            sy[q] = table.cy[r+1]-table.cy[r]-hy[r];
+            sxx[q] = table.cxx[r+1]-table.cxx[r]-hxx[r];
+            sxy[q] = table.cxy[r+1]-table.cxy[r]-hxy[r];
+            syy[q] = table.cyy[r+1]-table.cyy[r]-hyy[r];
+            q++;
+        }
+        return new MomentTable(runX, n, sx, sy, sxx, sxy, syy,
+                               table.x0, table.y0);
+    }
+
+    /** Returns the fit of k lines to the points of t, or null if there are
+     *  too few of them */
+    static PiecewiseLinearModel fit(MomentTable t, int k) {
+        try {
+            switch( k ) {
+            case 1:
+                return new PiecewiseLinearModel(
+                    new SingleRegressionLine(t.extent(), t));
+            case 2:
+                return new PiecewiseLinearModel(
+                    new DoubleRegressionLine(t.extent(), t));
+            case 3:
+                return new PiecewiseLinearModel(
+                    new TripleRegressionLine(t.extent(), t, true));
+            default:
+                return new BinarySegmentation(t, k, 0).getModel();
+            }
+        } catch(ArithmeticException e) {
+            return null;
+        } catch(IllegalArgumentException e) {
+            return null;
+        } catch(IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /** Totals the folds' scores and picks the order */
+    private void choose() {
+        int f, k, min = 0;
+        double e, sum, sumsq;
+        cvError = new double[maxOrder];
+        cvStdErr = new double[maxOrder];
+        for( k=0; k<maxOrder; k++ ) {
+            sum = sumsq = 0;
+            for( f=0; f<numFolds; f++ ) {
+                cvError[k] += foldSS[f][k];
+                e = foldPts[f]>0 ? foldSS[f][k]/foldPts[f] : 0;
+                sum += e;
+                sumsq += e*e;
+            }
+            cvError[k] /= x.length;
+            sum /= numFolds;
+            cvStdErr[k] = Double.isInfinite(sum) ? Double.POSITIVE_INFINITY :
+                Math.sqrt(Math.max(sumsq/numFolds - sum*sum, 0)
+                          / (numFolds-1));
+            if( cvError[k]<cvError[min] ) min = k;
+        }
+        for( k=0; k<min; k++ )
+            if( cvError[k]<=cvError[min]+cvStdErr[min] ) break;
+        bestOrder = k+1;
+    }
+
+    /** Returns the number of lines chosen */
+    public int getBestOrder() {
+        return bestOrder;
+    }
+    /** Returns the number of lines whose cross-validated error is least
+     *  (which may be more than getBestOrder()) */
+    public int getMinErrorOrder() {
+        int min = 0;
+        for( int k=1; k<maxOrder; k++ )
+            if( cvError[k]<cvError[min] ) min = k;
+        return min+1;
+    }
+    /** Returns the mean squared error of the k-line fits' predictions of
+     *  the held-out points, over all the folds */
+    public double getCVError(int k) {
+        return cvError[k-1];
+    }
+    /** Returns the standard error of getCVError(k), from the spread of the
+     *  folds' mean squared errors */
+    public double getCVStdErr(int k) {
+        return cvStdErr[k-1];
+    }
+    /** Returns the sum of squared errors of the k-line fit in predicting
+     *  fold f's points */
+    public double getFoldError(int f, int k) {
+        return foldSS[f][k-1];
+    }
+    /** Returns the elapsed time of fold f (training table, fits and
+     *  scoring) in millisecs */
+    public double getFoldMillis(int f) {
+        return foldNanos[f]/1e6;
+    }
+    /** Returns the number of folds */
+    public int getNumFolds() {
+        return numFolds;
+    }
+    /** Returns the fit of getBestOrder() lines to all the points, or null
+     *  if there are too few of them for it */
+    public PiecewiseLinearModel getModel() {
+        return fit(table, bestOrder);
+    }
+
+    /** return a String listing each order's cross-validated error and the
+     *  folds' timings */
+    public String report() {
+        StringBuffer sb = new StringBuffer(
+            "CrossValidatedFit: " + numFolds + " folds of " + x.length +
+            " points, best order " + bestOrder + " (least error at " +
+            getMinErrorOrder() + ")\n" +
+            "   lines     CV error    std error\n");
+        for( int k=1; k<=maxOrder; k++ )
+            sb.append(String.format("   %5d  %11.5g  %11.5g\n",
+                                    k, cvError[k-1], cvStdErr[k-1]));
+        sb.append("   fold ms:");
+        for( int f=0; f<numFolds; f++ )
+            sb.append(String.format(" %.1f", getFoldMillis(f)));
+        sb.append("\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,160 @@
+/** DecimatedPlotWindow.java */
+
+package edu.washington.apl.aganse.dataTools;
+
+import java.awt.*;
+import java.awt.event.*;
+
+/**
+ * DecimatedPlotWindow is a DataPlotWindow for series of millions of
+ * points, which plots the data through a PlotPyramid instead of handing
+ * every point to the plot: only the points decimate() picks for each
+ * pixel column of the plot are drawn (the column's lowest and highest y,
+ * and a few between), so the window opens, redraws and pans in time set
+ * by its width in pixels rather than by the number of points, and no
+ * outlier goes missing.  Whenever the plot is zoomed (by dragging a box
+ * in it) or the window is resized, the points are picked again from the
+ * pyramid for the x range and width now shown, so zooming in brings out
+ * the detail down to the individual points.  The plot's Fill button and
+ * its F (shift-f) key, which would otherwise fill the plot with just the
+ * points picked for the last zoom, pick them again from the whole x range
+ * of the pyramid before filling.
+ * Lines added with addDataSeries(), such as fitted regression lines, are
+ * plotted in full as in DataPlotWindow, as they are never long.
+ * @author <A HREF="mailto:aganse@apl.washington.edu">Andy Ganse</A>,<BR>
+ * <A HREF="http://www.apl.washington.edu">Applied Physics Laboratory</A>,<BR>
+ * <A HREF="http://www.washington.edu">University of Washington</A>.
+ * @version 19 Oct 2026
+ * @see <A HREF="PlotPyramid.html">PlotPyramid</A>
+ * @see <A HREF="DataPlotWindow.html">DataPlotWindow</A>
+ */
+public class DecimatedPlotWindow extends DataPlotWindow {
+
+    static final int PER_COLUMN = 4;  // points drawn per pixel column
+    static final int FIRST_WIDTH = 400;   // columns before it's shown
+
+    PlotPyramid pyramid;
+    double shownLo, shownHi;          // x range and width last drawn for
+    int shownWidth;
+
+    /** Creates the plot of data in a new window */
+    public DecimatedPlotWindow(DataSeries data) {
+        this(new PlotPyramid(data));
+    }
+
+    /** Creates the plot of x[i],y[i] in a new window */
+    public DecimatedPlotWindow(double[] x, double[] y) {
+        this(new PlotPyramid(x, y));
+    }
+
+    /** Creates the plot of an existing pyramid in a new window (so a
+     *  pyramid can be shared by several plots of the same data) */
+    public DecimatedPlotWindow(PlotPyramid newPyramid) {
+        this(newPyramid, newPyramid.getNumPts()==0 ? new double[2][0] :
+             newPyramid.decimate(newPyramid.getMinX(), newPyramid.getMaxX(),
+                                 FIRST_WIDTH, PER_COLUMN));
+    }
+
+    private DecimatedPlotWindow(PlotPyramid newPyramid, double[][] first) {
+        super(first[0], first[1]);
+        pyramid = newPyramid;
+        shownWidth = FIRST_WIDTH;
+        shownLo = pyramid.getMinX();
+        shownHi = pyramid.getMaxX();
+        thePlot.addMouseListener(new ZL());
+        thePlot.addComponentListener(new RL());
+        thePlot.addKeyListener(new KL());
+        // the Fill button, if the plot has it now or is given it later
+        thePlot.addContainerListener(new BL());
+        Component[] parts = thePlot.getComponents();
+        for( int i=0; i<parts.length; i++ )
+            if( parts[i] instanceof Button )
+                ((Button)parts[i]).addActionListener(new FL());
+        EventQueue.invokeLater(new Refresh());  // for the size first shown
+    }
+
+    /** Picks the points again if the plot's x range or width has changed
+     *  since they were last picked, and redraws them */
+    void refresh() {
+        double[] range = thePlot.getXRange();
+        int width = thePlot.getSize().width;
+        if( pyramid.getNumPts()==0 || width<1 ||
+            (range[0]==shownLo && range[1]==shownHi && width==shownWidth) )
+            return;
+        double[][] pts = pyramid.decimate(range[0], range[1], width,
+                                          PER_COLUMN);
+        shownLo = range[0];
+        shownHi = range[1];
+        shownWidth = width;
+        thePlot.clear(0);
+        thePlot.addPoints(0, pts[0], pts[1], false);
+        thePlot.repaint();
+    }
+
+    /** Picks the points again from the pyramid's whole x range and fills
+     *  the plot with them */
+    void fill() {
+        int width = thePlot.getSize().width;
+        if( pyramid.getNumPts()==0 ) return;
+        double[][] pts = pyramid.decimate(pyramid.getMinX(),
+            pyramid.getMaxX(), width>0 ? width : FIRST_WIDTH, PER_COLUMN);
+        thePlot.clear(0);
+        thePlot.addPoints(0, pts[0], pts[1], false);
+        thePlot.fillPlot();
+        shownLo = shownHi = Double.NaN;
+        refresh();                    // for the range as filled
+    }
+
+    /** Calls refresh(), queued on the event thread */
+    class Refresh implements Runnable {
+        public void run() {
+            refresh();
+        }
+    }
+
+    /** Refreshes after a zoom, which the plot makes on mouse release; the
+     *  refresh is queued so that it follows the plot's own handling */
+    class ZL extends MouseAdapter {
+        public void mouseReleased(MouseEvent e) {
+            EventQueue.invokeLater(new Refresh());
+        }
+    }
+
+    /** Calls fill(), queued on the event thread */
+    class Fill implements Runnable {
+        public void run() {
+            fill();
+        }
+    }
+
+    /** Fills after the plot's Fill button, once the plot has filled */
+    class FL implements ActionListener {
+        public void actionPerformed(ActionEvent e) {
+            EventQueue.invokeLater(new Fill());
+        }
+    }
+
+    /** Listens to the plot's Fill button when setButtons() adds it */
+    class BL extends ContainerAdapter {
+        public void componentAdded(ContainerEvent e) {
+            if( e.getChild() instanceof Button )
+                ((Button)e.getChild()).addActionListener(new FL());
+        }
+    }
+
+    /** Fills after the plot's F (shift-f) key, as for the Fill button */
+    class KL extends KeyAdapter {
+        public void keyPressed(KeyEvent e) {
+            if( e.getKeyCode()==KeyEvent.VK_F && e.isShiftDown() &&
+                !e.isControlDown() )
+                EventQueue.invokeLater(new Fill());
+        }
+    }
+
+    /** Refreshes when the plot is resized */
+    class RL extends ComponentAdapter {
+        public void componentResized(ComponentEvent e) {
+            refresh();
+        }
+    }
+}
@@ -23,6 +23,9 @@ public class DoubleRegressionLine {
     // handle to data vector, just so I don't have to keep passing it around
     DataSeries data;
 
+    // running moments of the sorted data, for fitting the trial sections
+    MomentTable table;
+
     // for passing data from constructor to "get-" methods :
     double _R;                        // total resid sum of sq of fit
     double _slope1, _slope2;          // slopes of the fit lines
@@ -33,6 +36,80 @@ public class DoubleRegressionLine {
     /** Most of the actual calculation done here in constructor, most of
      *  the other methods just return the results */
     public DoubleRegressionLine(DataSeries newdata) {
+        this(newdata, (double[])null);
+    }
+    
+    /** Same, but a weighted least-squares fit, with data point i
+     *  weighted by weights[i], eg. 1/sigma^2 for a sample of standard
+     *  error sigma; null weights means all 1.  Sorting the data sorts
+     *  weights along with it, in place (see
+     *  MomentTable.sortWithWeights()).  The weights go into the moment
+     *  table, so the fit costs the same as an unweighted one.  R is then
+     *  the weighted residual sum of squares. */
+    public DoubleRegressionLine(DataSeries newdata, double[] weights) {
+
+        double[] w;                       // weights in sorted data order
+        
+        // attach global handle
+        data = newdata;
+        FitMetrics.Probe probe =
+            new FitMetrics.Probe("DoubleRegressionLine", data.getNumPts());
+        
+        // First sort the data to get it in order of increasing x value.
+        // The calculations in this DoubleRegressionLine object REQUIRE the
+        // data to be in sorted order on the xaxis.
+        probe.begin(FitMetrics.SORT);
+        w = MomentTable.sortWithWeights(data, weights);
+        probe.end();
+        
+        // Tabulate the running moments of the sorted data, so each trial
+        // split below is fitted in constant time, with repeated x values
+        // compacted into single runs.
+        probe.begin(FitMetrics.MOMENTS);
+        table = new MomentTable(data, w);
+        probe.end();
+        search(probe);
+    }
+    
+    /** Fit of an off-heap series, which must already be sorted in order of
+     *  increasing x value.  Only the moment table is kept on the heap, and
+     *  getEndPoints() etc. see the series through its extent. */
+    public DoubleRegressionLine(OffHeapSeries series) {
+        FitMetrics.Probe probe =
+            new FitMetrics.Probe("DoubleRegressionLine", series.getNumPts());
+        probe.begin(FitMetrics.MOMENTS);
+        table = new MomentTable(series);
+        probe.end();
+        data = table.extent();
+        search(probe);
+    }
+    
+    /** Fit of a compact series, straight from its stored
+     *  values (see CompactSeries for the error against fitting the full
+     *  precision data).  getEndPoints() etc. see the series through the
+     *  moment table's extent. */
+    public DoubleRegressionLine(CompactSeries series) {
+        FitMetrics.Probe probe =
+            new FitMetrics.Probe("DoubleRegressionLine", series.getNumPts());
+        probe.begin(FitMetrics.MOMENTS);
+        table = new MomentTable(series);
+        probe.end();
+        data = table.extent();
+        search(probe);
+    }
+    
+    /** Fit from an already tabulated MomentTable, as used by
+     *  MultiColumnFit; newdata need only span the data's x range */
+    DoubleRegressionLine(DataSeries newdata, MomentTable newtable) {
+        data = newdata;
+        table = newtable;
+        search(new FitMetrics.Probe("DoubleRegressionLine",
+                                    table.getNumPts()));
+    }
+    
+    /** The search done for the constructors, over the splits after each
+     *  run of the moment table */
+    private void search(FitMetrics.Probe probe) {
 
         double Rmin;                      // Min total resid sum of sq for fit
         double Rlines;                    // Total resid sum of squares from
@@ -56,17 +133,12 @@ public class DoubleRegressionLine {
                                           //   the fit-lines is as close as
                                           //   possible to X1. That's what the
                                           //   calculation checks for.
-        DataSeries subdata1, subdata2;    // current 2 trial sections
-        int j;                            // Last data index before X1
-        DataSeries.Point pj;              // temp var to access x[j]
+        int r;                            // Run (distinct x value) of the
+                                          //   last data point before X1
+        int rfirst, rlast;                // Range of runs to try for X1
+        long improvements=0;              // Number of times Rmin improved
         
-        // attach global handle
-        data = newdata;
-        
-        // First sort the data to get it in order of increasing x value.
-        // The calculations in this DoubleRegressionLine object REQUIRE the
-        // data to be in sorted order on the xaxis.
-        data.sort();
+        probe.begin(FitMetrics.SEARCH);
         
         // Setting initial X1 value at x data midpoint
         DataSeries.Point tmp1, tmp2;
@@ -74,7 +146,6 @@ public class DoubleRegressionLine {
         tmp2 = (DataSeries.Point)data.elementAt(0);
         X1 = (tmp1.getX()-tmp2.getX())/2 + tmp2.getX();
         //X1=((DataSeries.Point)data.elementAt(2)).getX();
-        System.out.println("X1="+X1);
         
         // Initial stat values for output, in case the initial guesses are the
         // best values and none of these get assigned below(!)
@@ -92,14 +163,23 @@ public class DoubleRegressionLine {
 			_R=1.0e16;  // ie want any Rlines to be less than this
 		}
         
-        // Iterate over (almost) all combinations of the two intersection
-        // points, keeping minimum resid sum of squares R as we go, and the
-        // X1 associated with it.  Note that numPts must be at least 3.
-        for( j=1; j<data.getNumPts()-2; j++ ) {  // note starting w/ 2nd datapt
-            pj = (DataSeries.Point)data.elementAt(j);
+        // Iterate over (almost) all choices of the intersection point,
+        // keeping minimum resid sum of squares R as we go, and the X1
+        // associated with it.  Note that numPts must be at least 3.
+        // The trial points are the 2nd through 3rd-to-last datapoints, but
+        // points with the same x value divide the data identically, so
+        // only the distinct x values (runs) among them are tried.
+        if( table.getNumPts()>3 ) {
+            rfirst = table.runOf(1);
+            rlast = table.runOf(table.getNumPts()-3);
+        } else {
+            rfirst = 0;
+            rlast = -1;
+        }
+        for( r=rfirst; r<=rlast; r++ ) {
             
             // calc B*1, B*2, B*3, R* :
-            totalResidSumSq.calculate(pj.getX()+0.5);
+            totalResidSumSq.calculate(table.getRunX(r)+0.5);
             Rlines=totalResidSumSq.getRlines();
             avgSigma=totalResidSumSq.getAvgSigma();
             X1lines = totalResidSumSq.getX1lines();
@@ -108,8 +188,7 @@ public class DoubleRegressionLine {
             yint1 = totalResidSumSq.getYint1();
             yint2 = totalResidSumSq.getYint2();
             if( Rlines<Rmin && X1lines>data.getMinX() && X1lines<data.getMaxX()) {
-                if( liesInRectangle( X1lines, pj.getX() ) ) {
-                System.out.println("in rectangle");
+                if( liesInRectangle( X1lines, r ) ) {
                     X1 = X1lines;
                     Rmin = Rlines;
                     _R=Rlines;
@@ -119,9 +198,37 @@ public class DoubleRegressionLine {
                     _yint1 = yint1;
                     _yint2 = yint2;
                     _x = X1lines;
+                    improvements++;
                 }
             }
         }
+        probe.end();
+        probe.finish(table.getNumRuns(), Math.max(0, rlast-rfirst+1), 0,
+                     improvements);
+    }
+    
+    /** Used by fromArray() to rebuild a fit without recalculating it */
+    private DoubleRegressionLine() {
+    }
+    
+    /** Returns the fitted values as a flat array, so FitCache can store
+     *  them; fromArray() reverses this. */
+    double[] toArray() {
+        return new double[] {_R, _avgSigma, _slope1, _slope2,
+                             _yint1, _yint2, _x};
+    }
+    /** Rebuilds a fit of newdata from the output of toArray() */
+    static DoubleRegressionLine fromArray(DataSeries newdata, double[] a) {
+        DoubleRegressionLine line = new DoubleRegressionLine();
+        line.data = newdata;
+        line._R = a[0];
+        line._avgSigma = a[1];
+        line._slope1 = a[2];
+        line._slope2 = a[3];
+        line._yint1 = a[4];
+        line._yint2 = a[5];
+        line._x = a[6];
+        return line;
     }
     
     /** Used in constructor to calculate and supply the total residual sum
@@ -131,30 +238,22 @@ public class DoubleRegressionLine {
         
         double Rlines, X1lines, avgSigma;
         double B1lines, B2lines, yint1, yint2;
-        DataSeries subdata1, subdata2; // current 2 trial sections
-        DataSeries.Point p; // tmp point used while dividing into 2 sections
-        SingleRegressionLine line1, line2;
+        MomentTable.Segment seg1, seg2; // current 2 trial sections
         
         public void calculate(double X1) {
-            subdata1 = new DataSeries();
-            subdata2 = new DataSeries();
-            // is there a better way to divide data into subdata1&2?
-            for(Enumeration e=data.elements(); e.hasMoreElements(); ) {
-                p=(DataSeries.Point)e.nextElement();
-                if( p.getX()<=X1 ) subdata1.add(p);
-                else subdata2.add(p);
-            }
-            line1 = new SingleRegressionLine(subdata1);
-            line2 = new SingleRegressionLine(subdata2);
-            B1lines = line1.getSlope();
-            B2lines = line2.getSlope();
-            yint1 = line1.getYint();
-            yint2 = line2.getYint();
-            Rlines = line1.getR() + line2.getR();
-            avgSigma = (line1.getR()/(subdata1.getNumPts()-1) +
-                        line2.getR()/(subdata2.getNumPts()-1) ) / 2;
+            // data with p.getX()<=X1 go to the first section, the rest to
+            // the second
+            int s = table.runIndexOf(X1);
+            seg1 = table.segment(0, s+1);
+            seg2 = table.segment(s+1, table.getNumRuns());
+            B1lines = seg1.getSlope();
+            B2lines = seg2.getSlope();
+            yint1 = seg1.getYint();
+            yint2 = seg2.getYint();
+            Rlines = seg1.getR() + seg2.getR();
+            avgSigma = (seg1.getR()/(seg1.getNumPts()-1) +
+                        seg2.getR()/(seg2.getNumPts()-1) ) / 2;
             X1lines = (yint2-yint1)/(B1lines-B2lines);
-            System.out.println("X1lines in loop = "+X1lines);
         }
         public double getRlines() {
             return Rlines;
@@ -177,29 +276,28 @@ public class DoubleRegressionLine {
         public double getX1lines() {
             return X1lines;
         }
-        public DataSeries getSubData1() {
-            return subdata1;
+        public MomentTable.Segment getSegment1() {
+            return seg1;
         }
-        public DataSeries getSubData2() {
-            return subdata2;
+        public MomentTable.Segment getSegment2() {
+            return seg2;
         }
     }
     
     
-    /** Used in constructor to check whether X1lines is
-     * close enough to X1 */
-    private boolean liesInRectangle( double X1lines, double X1 ) {
-        // first find the x values contained in the data vector that are
-        // on either side of X1
-        double lastx=0., X1left=0., X1right=0.;
-        DataSeries.Point p;
-        for(Enumeration e=data.elements(); e.hasMoreElements(); ) {
-            p=(DataSeries.Point)e.nextElement();
-            if( p.getX()>=X1 && lastx<=X1 ) {
-                X1left = lastx;
-                X1right = p.getX();
-            }
-            lastx = p.getX();
+    /** Used in constructor to check whether X1lines is close enough to
+     *  the x value of run r, ie lies between the data x values on either
+     *  side of it */
+    private boolean liesInRectangle( double X1lines, int r ) {
+        double X1left, X1right;
+        if( r<table.getNumRuns()-1 ) {
+            X1left = table.getRunX(r);
+            X1right = table.getRunX(r+1);
+        } else if( table.getRunCount(r)>1 ) {
+            X1left = X1right = table.getRunX(r);
+        } else {
+            X1left = r>0 ? table.getRunX(r-1) : 0.;
+            X1right = table.getRunX(r);
         }
 
         if( X1lines>=X1left && X1lines<=X1right )
@@ -242,10 +340,14 @@ public class DoubleRegressionLine {
     public DataSeries getEndPoints() {
         double min_x = data.getMinX();
         double max_x = data.getMaxX();
+        FitMetrics.Probe probe = FitMetrics.Probe.afterFit(
+            "DoubleRegressionLine", data.getNumPts());
+        probe.begin(FitMetrics.MATERIALIZE);
         DataSeries output = new DataSeries();
         output.add(min_x,getSlope1()*min_x+getYint1());
         output.add(getX1(),getSlope1()*getX1()+getYint1());
         output.add(max_x,getSlope2()*max_x+getYint2());
+        probe.end();
         return output;
     }
     /** return a String representation describing this 2-phase regression,
@@ -0,0 +1,376 @@
+/** DynamicMomentTable.java */
+
+package edu.washington.apl.aganse.dataTools;
+
+import java.util.*;
+
+/**
+ * DynamicMomentTable is a MomentTable that can be edited: points can be
+ * added, removed and moved one at a time, as when a user clicks, deletes
+ * or drags points in an interactive plot or QC tool, without re-sorting
+ * the data or rebuilding the table.  The runs (distinct x values) are
+ * kept in a balanced binary search tree keyed by x (a treap), each node
+ * holding its own run's count and moment sums and the totals of its
+ * subtree, so an edit costs O(log m) for m runs, and the moments of any
+ * segment of runs, a run's x value or a point's run also come out in
+ * O(log m), by walking down the tree.
+ * Being a MomentTable, it can be used wherever one is, but each segment
+ * lookup costs O(log m) rather than O(1), so for a fit making many
+ * lookups (a two- or three-phase search makes O(m) or more) snapshot()
+ * first copies the current moments into an ordinary MomentTable, by one
+ * O(m) walk of the tree with no sorting; getDouble() and getTriple() do
+ * this.
+ * Only the moments are kept, not the points, so removing a point means
+ * giving its x and y as they were added.  The sums are taken about a
+ * fixed shift (the first point added, unless given), and removals
+ * subtract from them, so after very many edits the sums carry a little
+ * more rounding than a table built afresh.  A table is not safe for use
+ * by several threads at once.
+ * @author <A HREF="mailto:aganse@apl.washington.edu">Andy Ganse</A>,<BR>
+ * <A HREF="http://www.apl.washington.edu">Applied Physics Laboratory</A>,<BR>
+ * <A HREF="http://www.washington.edu">University of Washington</A>.
+ * @version 19 Oct 2026
+ * @see <A HREF="MomentTable.html">MomentTable</A>
+ * @see <A HREF="TripleRegressionLine.html">TripleRegressionLine</A>
+ */
+public class DynamicMomentTable extends MomentTable {
+
+    Node root;                        // the runs, in order of x
+    Random random = new Random(0x4d524cL);  // node priorities
+    boolean shiftSet;                 // whether x0,y0 have been chosen
+
+    /** One run of the tree */
+    private static class Node {
+        double x;                     // the run's x value
+        int prio;                     // heap priority, for balance
+        Node left, right;
+        long n;                       // the run's own count and sums
+        double sx, sy, sxx, sxy, syy;
+        int runs;                     // totals over the subtree
+        long cnt;
+        double tx, ty, txx, txy, tyy;
+    }
+
+    /** Creates an empty table, whose sums will be taken about the first
+     *  point added */
+    public DynamicMomentTable() {
+    }
+
+    /** Creates an empty table, summing about x0,y0 (say the middle of the
+     *  expected data range) */
+    public DynamicMomentTable(double newx0, double newy0) {
+        x0 = newx0;
+        y0 = newy0;
+        shiftSet = true;
+    }
+
+    /** Creates a table of the points of data, in any order */
+    public DynamicMomentTable(DataSeries data) {
+        DataSeries.Point p;
+        if( data.getNumPts()>0 ) {
+            x0 = data.getXmean();
+            y0 = data.getYmean();
+            shiftSet = true;
+        }
+        for(Enumeration e=data.elements(); e.hasMoreElements(); ) {
+            p = (DataSeries.Point)e.nextElement();
+            add(p.getX(), p.getY());
+        }
+    }
+
+    /** Adds the point x,y */
+    public void add(double x, double y) {
+        if( Double.isNaN(x) )
+            throw new IllegalArgumentException(
+                "DynamicMomentTable: can't add a point at NaN x");
+        if( !shiftSet ) {
+            x0 = x;
+            y0 = y;
+            shiftSet = true;
+        }
+        root = change(root, x, x-x0, y-y0, 1);
+    }
+
+    /** Removes the point x,y, which must have been added before (only its
+     *  run is checked for, as the points themselves aren't kept) */
+    public void remove(double x, double y) {
+        root = change(root, x, x-x0, y-y0, -1);
+    }
+
+    /** Moves the point oldx,oldy to newx,newy */
+    public void move(double oldx, double oldy, double newx, double newy) {
+        remove(oldx, oldy);
+        add(newx, newy);
+    }
+
+    /** Adds (sign 1) or removes (sign -1) a point with shifted values
+     *  xs,ys at x in subtree t, returning the new subtree */
+    private Node change(Node t, double x, double xs, double ys, int sign) {
+        if( t==null ) {
+            if( sign<0 )
+                throw new IllegalArgumentException(
+                    "DynamicMomentTable: no point at x=" + x + " to remove");
+            t = new Node();
+            t.x = x;
+            t.prio = random.nextInt();
+        }
+        if( x==t.x ) {
+            t.n += sign;
+            t.sx += sign*xs;
+            t.sy += sign*ys;
+            t.sxx += sign*xs*xs;
+            t.sxy += sign*xs*ys;
+            t.syy += sign*ys*ys;
+            if( t.n==0 ) return merge(t.left, t.right);
+        } else if( x<t.x ) {
+            t.left = change(t.left, x, xs, ys, sign);
+            if( t.left!=null && t.left.prio>t.prio ) {
+                Node l = t.left;          // rotate right
+                t.left = l.right;
+                l.right = t;
+                total(t);
+                t = l;
+            }
+        } else {
+            t.right = change(t.right, x, xs, ys, sign);
+            if( t.right!=null && t.right.prio>t.prio ) {
+                Node r = t.right;         // rotate left
+                t.right = r.left;
+                r.left = t;
+                total(t);
+                t = r;
+            }
+        }
+        total(t);
+        return t;
+    }
+
+    /** Joins subtrees a and b, all of a's x values being below b's */
+    private Node merge(Node a, Node b) {
+        if( a==null ) return b;
+        if( b==null ) return a;
+        if( a.prio>b.prio ) {
+            a.right = merge(a.right, b);
+            total(a);
+            return a;
+        }
+        b.left = merge(a, b.left);
+        total(b);
+        return b;
+    }
+
+    /** Recomputes t's subtree totals from its children */
+    private static void total(Node t) {
+        Node l = t.left, r = t.right;
+        t.runs = 1;
+        t.cnt = t.n;
+        t.tx = t.sx;
+        t.ty = t.sy;
+        t.txx = t.sxx;
+        t.txy = t.sxy;
+        t.tyy = t.syy;
+        if( l!=null ) {
+            t.runs += l.runs;
+            t.cnt += l.cnt;
+            t.tx += l.tx;
+            t.ty += l.ty;
+            t.txx += l.txx;
+            t.txy += l.txy;
+            t.tyy += l.tyy;
+        }
+        if( r!=null ) {
+            t.runs += r.runs;
+            t.cnt += r.cnt;
+            t.tx += r.tx;
+            t.ty += r.ty;
+            t.txx += r.txx;
+            t.txy += r.txy;
+            t.tyy += r.tyy;
+        }
+    }
+
+    /** Puts the sums over the first r runs into s (count in s.numPts) */
+    private void prefix(int r, Segment s) {
+        Node t = root;
+        while( t!=null && r>0 ) {
+            int lr = t.left==null ? 0 : t.left.runs;
+            if( r<=lr ) {
+                t = t.left;
+                continue;
+            }
+            if( t.left!=null ) {
+                s.numPts += t.left.cnt;
+                s.sx += t.left.tx;
+                s.sy += t.left.ty;
+                s.sxx += t.left.txx;
+                s.sxy += t.left.txy;
+                s.syy += t.left.tyy;
+            }
+            s.numPts += t.n;
+            s.sx += t.sx;
+            s.sy += t.sy;
+            s.sxx += t.sxx;
+            s.sxy += t.sxy;
+            s.syy += t.syy;
+            r -= lr+1;
+            t = t.right;
+        }
+    }
+
+    /** Returns the node of run r */
+    private Node select(int r) {
+        Node t = root;
+        if( r<0 || root==null || r>=root.runs )
+            throw new IndexOutOfBoundsException("run " + r);
+        while( true ) {
+            int lr = t.left==null ? 0 : t.left.runs;
+            if( r<lr ) t = t.left;
+            else if( r==lr ) return t;
+            else {
+                r -= lr+1;
+                t = t.right;
+            }
+        }
+    }
+
+    // MomentTable's lookups, each a walk down the tree
+
+    public long getNumPts() {
+        return root==null ? 0 : root.cnt;
+    }
+    public int getNumRuns() {
+        return root==null ? 0 : root.runs;
+    }
+    public double getRunX(int r) {
+        return select(r).x;
+    }
+    public long getRunStart(int r) {
+        Segment s = new Segment();
+        prefix(r, s);
+        return s.numPts;
+    }
+    public long getRunEnd(int r) {
+        return getRunStart(r+1);
+    }
+    public long getRunCount(int r) {
+        return select(r).n;
+    }
+
+    public int runOf(long i) {
+        Node t = root;
+        int rank = 0;
+        while( t!=null ) {
+            long lc = t.left==null ? 0 : t.left.cnt;
+            int lr = t.left==null ? 0 : t.left.runs;
+            if( i<lc ) {
+                t = t.left;
+                continue;
+            }
+            i -= lc;
+            if( i<t.n || t.right==null ) return rank+lr;
+            i -= t.n;
+            rank += lr+1;
+            t = t.right;
+        }
+        return Math.max(rank-1, 0);
+    }
+
+    public int runIndexOf(double X) {
+        Node t = root;
+        int count = 0;                    // runs with x<=X found so far
+        while( t!=null ) {
+            if( t.x<=X ) {
+                count += (t.left==null ? 0 : t.left.runs) + 1;
+                t = t.right;
+            } else
+                t = t.left;
+        }
+        return count-1;
+    }
+
+    public DataSeries extent() {
+        DataSeries ends = new DataSeries();
+        int m = getNumRuns();
+        if( m>0 ) {
+            ends.add(getRunX(0), segment(0,1).getYmean());
+            ends.add(getRunX(m-1), segment(m-1,m).getYmean());
+        }
+        return ends;
+    }
+
+    public Segment segment(int r0, int r1) {
+        Segment s = new Segment(), s0 = new Segment();
+        prefix(r1, s);
+        prefix(r0, s0);
+        s.numRuns = r1-r0;
+        s.numPts -= s0.numPts;
+        s.x0 = x0;
+        s.y0 = y0;
+        s.sw = s.numPts;
+        s.sx -= s0.sx;
+        s.sy -= s0.sy;
+        s.sxx -= s0.sxx;
+        s.sxy -= s0.sxy;
+        s.syy -= s0.syy;
+        return s;
+    }
+
+    /** Returns an ordinary MomentTable of the moments as they are now, made
+     *  by one in-order walk of the tree */
+    public MomentTable snapshot() {
+        int m = getNumRuns();
+        double[] runX = new double[m];
+        long[] n = new long[m];
+        double[] sx = new double[m], sy = new double[m], sxx = new double[m],
+            sxy = new double[m], syy = new double[m];
+        Node[] stack = new Node[64];
+        int depth = 0, r = 0;
+        Node t = root;
+        while( t!=null || depth>0 ) {
+            while( t!=null ) {
+                if( depth==stack.length ) {
+                    Node[] b = new Node[2*depth];
+                    System.arraycopy(stack, 0, b, 0, depth);
+                    stack = b;
+                }
+                stack[depth++] = t;
+                t = t.left;
+            }
+            t = stack[--depth];
+            runX[r] = t.x;
+            n[r] = t.n;
+            sx[r] = t.sx;
+            sy[r] = t.sy;
+            sxx[r] = t.sxx;
+            sxy[r] = t.sxy;
+            syy[r] = t.syy;
+            r++;
+            t = t.right;
+        }
+        return new MomentTable(runX, n, sx, sy, sxx, sxy, syy, x0, y0);
+    }
+
+    /** Returns snapshot(), whose run arrays MomentTable(xtable, y) can
+     *  share */
+    MomentTable asStatic() {
+        return snapshot();
+    }
+
+    /** Returns the single-line fit of the points as they are now */
+    public SingleRegressionLine getSingle() {
+        return new SingleRegressionLine(extent(), this);
+    }
+    /** Returns the two-phase fit of the points as they are now, made on a
+     *  snapshot() of the tree, as the search's lookups on the tree itself
+     *  would cost more than the snapshot */
+    public DoubleRegressionLine getDouble() {
+        MomentTable table = snapshot();
+        return new DoubleRegressionLine(table.extent(), table);
+    }
+    /** Returns the three-phase fit of the points as they are now, made on a
+     *  snapshot(); prune as in TripleRegressionLine(DataSeries,boolean) */
+    public TripleRegressionLine getTriple(boolean prune) {
+        MomentTable table = snapshot();
+        return new TripleRegressionLine(table.extent(), table, prune);
+    }
+}
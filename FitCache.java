@@ -0,0 +1,279 @@
+/** FitCache.java */
+
+package edu.washington.apl.aganse.dataTools;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * FitCache keeps the results of SingleRegressionLine, DoubleRegressionLine
+ * and TripleRegressionLine fits, keyed by a hash of the sorted x,y content
+ * of the data plus the fit options, so that refitting a DataSeries with
+ * the same content costs only the hash computation.
+ * The cache holds at most a given number of entries, evicting the least
+ * recently used one first, and drops entries older than a given age when
+ * they are next looked up.  If a spill directory is given, each result is
+ * also written there as a small file and read back on a miss in memory,
+ * so results survive a restart of the program.  A result's file is
+ * deleted when it is evicted from memory, and when a cache is made the
+ * directory is cut down to its newest maxEntries files, so the directory
+ * never holds more than twice maxEntries results.  A spill file that is
+ * not exactly the size its kind of fit needs is treated as a miss.
+ * Like the fitters themselves, the lookup methods sort the data given to
+ * them.  The fit objects returned are attached to that data, as though
+ * they had just been calculated from it.
+ * @author <A HREF="mailto:aganse@apl.washington.edu">Andy Ganse</A>,<BR>
+ * <A HREF="http://www.apl.washington.edu">Applied Physics Laboratory</A>,<BR>
+ * <A HREF="http://www.washington.edu">University of Washington</A>.
+ * @version 19 Oct 2026
+ * @see <A HREF="SingleRegressionLine.html">SingleRegressionLine</A>
+ * @see <A HREF="DoubleRegressionLine.html">DoubleRegressionLine</A>
+ * @see <A HREF="TripleRegressionLine.html">TripleRegressionLine</A>
+ */
+public class FitCache {
+
+    static final int SPILL_MAGIC = 0x4d524c31;  // "MRL1"
+    static final int SPILL_HEADER = 16;         // magic, time and length
+
+    int maxEntries;                   // most results held in memory
+    long maxAge;                      // most age of a result in millisecs
+    File spillDir;                    // where results are spilled, or null
+    LinkedHashMap map;                // key String -> Entry, in LRU order
+    long hits, misses;                // lookup counts
+
+    /** A cached fit result and the time it was calculated */
+    private static class Entry {
+        long created;
+        double[] fit;
+        Entry(long created, double[] fit) {
+            this.created = created;
+            this.fit = fit;
+        }
+    }
+
+    /** Creates a memory-only cache of up to maxEntries results, each kept
+     *  for at most maxAgeMillis milliseconds (0 for no age limit) */
+    public FitCache(int maxEntries, long maxAgeMillis) {
+        this(maxEntries, maxAgeMillis, null);
+    }
+
+    /** Same, but also spilling each result to a file in directory
+     *  spillDir (created if needed), where later runs can find it */
+    public FitCache(int maxEntries, long maxAgeMillis, File spillDir) {
+        final int max = maxEntries;
+        this.maxEntries = maxEntries;
+        this.maxAge = maxAgeMillis;
+        this.spillDir = spillDir;
+        if( spillDir!=null ) {
+            spillDir.mkdirs();
+            trimSpill();
+        }
+        map = new LinkedHashMap(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                if( size()<=max ) return false;
+                if( FitCache.this.spillDir!=null )
+                    spillFile((String)eldest.getKey()).delete();
+                return true;
+            }
+        };
+    }
+
+    /** Deletes all but the newest maxEntries spill files */
+    private void trimSpill() {
+        File[] files = spillDir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".fit");
+            }
+        });
+        if( files==null || files.length<=maxEntries ) return;
+        Arrays.sort(files, new Comparator() {   // newest first
+            public int compare(Object a, Object b) {
+                long ma = ((File)a).lastModified();
+                long mb = ((File)b).lastModified();
+                return ma>mb ? -1 : ma<mb ? 1 : 0;
+            }
+        });
+        for( int i=Math.max(maxEntries, 0); i<files.length; i++ )
+            files[i].delete();
+    }
+
+    /** Returns the length of the toArray() of the fit a key is for */
+    private static int fitLength(String key) {
+        if( key.endsWith("-single") ) return 4;
+        if( key.endsWith("-double") ) return 7;
+        return 12;                    // triple, pruned or not
+    }
+
+    /** Returns the single-line fit of data, from the cache if possible */
+    public SingleRegressionLine getSingle(DataSeries data) {
+        String key = key(data, "single");
+        double[] fit = lookup(key);
+        if( fit!=null ) return SingleRegressionLine.fromArray(data, fit);
+        SingleRegressionLine line = new SingleRegressionLine(data);
+        store(key, line.toArray());
+        return line;
+    }
+
+    /** Returns the two-phase fit of data, from the cache if possible */
+    public DoubleRegressionLine getDouble(DataSeries data) {
+        String key = key(data, "double");
+        double[] fit = lookup(key);
+        if( fit!=null ) return DoubleRegressionLine.fromArray(data, fit);
+        DoubleRegressionLine line = new DoubleRegressionLine(data);
+        store(key, line.toArray());
+        return line;
+    }
+
+    /** Returns the three-phase fit of data, from the cache if possible */
+    public TripleRegressionLine getTriple(DataSeries data) {
+        return getTriple(data, false);
+    }
+
+    /** Same, with the pruned search when prune is true (the fit is the
+     *  same, but the candidate counts reported by it differ) */
+    public TripleRegressionLine getTriple(DataSeries data, boolean prune) {
+        String key = key(data, prune ? "triple-pruned" : "triple");
+        double[] fit = lookup(key);
+        if( fit!=null ) return TripleRegressionLine.fromArray(data, fit);
+        TripleRegressionLine line = new TripleRegressionLine(data, prune);
+        store(key, line.toArray());
+        return line;
+    }
+
+    /** Returns the number of lookups answered from memory or disk */
+    public synchronized long getHits() {
+        return hits;
+    }
+    /** Returns the number of lookups that needed a new fit */
+    public synchronized long getMisses() {
+        return misses;
+    }
+    /** Returns the number of results currently held in memory */
+    public synchronized int size() {
+        return map.size();
+    }
+    /** Empties the cache in memory and on disk, and zeroes the counts */
+    public synchronized void clear() {
+        map.clear();
+        hits = misses = 0;
+        if( spillDir!=null ) {
+            File[] files = spillDir.listFiles();
+            for( int i=0; files!=null && i<files.length; i++ )
+                if( files[i].getName().endsWith(".fit") ) files[i].delete();
+        }
+    }
+
+    /** Returns a 64-bit hash of the x,y content of data, after sorting it
+     *  on x.  Points are mixed in order with a multiply-xorshift step on
+     *  the exact bit patterns of their values. */
+    public static long contentHash(DataSeries data) {
+        DataSeries.Point p;
+        long h = 0x9e3779b97f4a7c15L ^ data.getNumPts();
+        MomentTable.sort(data);
+        for(Enumeration e=data.elements(); e.hasMoreElements(); ) {
+            p = (DataSeries.Point)e.nextElement();
+            h = mix(h ^ Double.doubleToLongBits(p.getX()));
+            h = mix(h ^ Double.doubleToLongBits(p.getY()));
+        }
+        return h;
+    }
+
+    private static long mix(long h) {
+        h *= 0xff51afd7ed558ccdL;
+        return h ^ (h>>>33);
+    }
+
+    /** Cache key for a fit of data with the given options */
+    private static String key(DataSeries data, String options) {
+        return Long.toHexString(contentHash(data)) + "-" +
+            data.getNumPts() + "-" + options;
+    }
+
+    /** Returns the stored fit for key, or null (counting a miss) */
+    private synchronized double[] lookup(String key) {
+        long now = System.currentTimeMillis();
+        Entry entry = (Entry)map.get(key);
+        if( entry==null && spillDir!=null ) {
+            entry = readSpill(key);
+            if( entry!=null ) map.put(key, entry);
+        }
+        if( entry!=null && maxAge>0 && now-entry.created>maxAge ) {
+            map.remove(key);
+            if( spillDir!=null ) spillFile(key).delete();
+            entry = null;
+        }
+        if( entry==null ) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.fit;
+    }
+
+    /** Stores a newly calculated fit under key */
+    private synchronized void store(String key, double[] fit) {
+        Entry entry = new Entry(System.currentTimeMillis(), fit);
+        map.put(key, entry);
+        if( spillDir!=null ) writeSpill(key, entry);
+    }
+
+    private File spillFile(String key) {
+        return new File(spillDir, key + ".fit");
+    }
+
+    /** Writes an entry to its spill file.  A failure to write just means
+     *  the result won't outlive this run, so it is only reported. */
+    private void writeSpill(String key, Entry entry) {
+        File tmp = new File(spillDir, key + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(SPILL_MAGIC);
+                out.writeLong(entry.created);
+                out.writeInt(entry.fit.length);
+                for( int i=0; i<entry.fit.length; i++ )
+                    out.writeDouble(entry.fit[i]);
+            } finally {
+                out.close();
+            }
+            File file = spillFile(key);
+            file.delete();
+            tmp.renameTo(file);
+        } catch(IOException e) {
+            System.err.println("FitCache: can't write " + tmp + ": " + e);
+            tmp.delete();
+        }
+    }
+
+    /** Reads an entry back from its spill file, or returns null if there
+     *  is none or it can't be read */
+    private Entry readSpill(String key) {
+        File file = spillFile(key);
+        int length = fitLength(key);
+        if( !file.exists() ) return null;
+        if( file.length()!=SPILL_HEADER+8L*length ) {
+            System.err.println("FitCache: ignoring " + file + ", of " +
+                               file.length() + " bytes");
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if( in.readInt()!=SPILL_MAGIC ) return null;
+                long created = in.readLong();
+                if( in.readInt()!=length ) return null;
+                double[] fit = new double[length];
+                for( int i=0; i<fit.length; i++ )
+                    fit[i] = in.readDouble();
+                return new Entry(created, fit);
+            } finally {
+                in.close();
+            }
+        } catch(IOException e) {
+            System.err.println("FitCache: can't read " + file + ": " + e);
+            return null;
+        }
+    }
+}
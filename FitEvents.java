@@ -0,0 +1,56 @@
+/** FitEvents.java */
+
+package edu.washington.apl.aganse.dataTools;
+
+import jdk.jfr.*;
+
+/**
+ * FitEvents holds the JDK Flight Recorder event types emitted by the
+ * regression fitters, so a recording (eg. java -XX:StartFlightRecording)
+ * shows where the time in a fit goes.  A FitEvents.Phase event covers one
+ * stage of a fit (loading, sorting, tabulating moments, the candidate
+ * search, building output), and a FitEvents.Fit event covers a whole fit
+ * along with its candidate and improvement counts.  When no recording is
+ * running the events are never committed, and cost next to nothing.
+ * @author <A HREF="mailto:aganse@apl.washington.edu">Andy Ganse</A>,<BR>
+ * <A HREF="http://www.apl.washington.edu">Applied Physics Laboratory</A>,<BR>
+ * <A HREF="http://www.washington.edu">University of Washington</A>.
+ * @version 19 Oct 2026
+ * @see <A HREF="FitMetrics.html">FitMetrics</A>
+ */
+public class FitEvents {
+
+    /** One stage of a fit */
+    @Name("edu.washington.apl.aganse.dataTools.FitPhase")
+    @Label("Fit Phase")
+    @Category({"MultiRegressLines"})
+    @Description("One stage of a multi-phase regression fit")
+    public static class Phase extends Event {
+        @Label("Fitter")
+        String fitter;
+        @Label("Phase")
+        String phase;
+        @Label("Points")
+        long numPts;
+    }
+
+    /** A whole fit */
+    @Name("edu.washington.apl.aganse.dataTools.Fit")
+    @Label("Fit")
+    @Category({"MultiRegressLines"})
+    @Description("A complete multi-phase regression fit")
+    public static class Fit extends Event {
+        @Label("Fitter")
+        String fitter;
+        @Label("Points")
+        long numPts;
+        @Label("Distinct X Values")
+        int numRuns;
+        @Label("Candidates")
+        long candidates;
+        @Label("Candidates Pruned")
+        long pruned;
+        @Label("Improvements")
+        long improvements;
+    }
+}
@@ -0,0 +1,135 @@
+/** FitLoadTest.java */
+
+package edu.washington.apl.aganse.dataTools;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * FitLoadTest is a load-test client for FitServer: a number of threads
+ * each post a share of the requests as fast as replies come back, and the
+ * throughput, client-side latency percentiles and the server's own
+ * /metrics are reported at the end.  The profiles sent are synthetic
+ * three-phase soundspeed-like profiles on a shared depth grid (so the
+ * server can fit them in lockstep), with fresh noise in each.
+ * <P>
+ * Usage: java ... FitLoadTest [url [threads [requests [numPts [json|binary]]]]]
+ * <BR>eg. java ... FitLoadTest http://localhost:8091 16 5000 200 binary
+ * @author <A HREF="mailto:aganse@apl.washington.edu">Andy Ganse</A>,<BR>
+ * <A HREF="http://www.apl.washington.edu">Applied Physics Laboratory</A>,<BR>
+ * <A HREF="http://www.washington.edu">University of Washington</A>.
+ * @version 19 Oct 2026
+ * @see <A HREF="FitServer.html">FitServer</A>
+ */
+public class FitLoadTest {
+
+    public static void main(String[] args) throws Exception {
+        final String url = args.length>0 ? args[0] :
+            "http://localhost:" + FitServer.PORT;
+        int threads = args.length>1 ? Integer.parseInt(args[1]) : 8;
+        final int requests = args.length>2 ? Integer.parseInt(args[2]) : 1000;
+        final int numPts = args.length>3 ? Integer.parseInt(args[3]) : 100;
+        final boolean binary = args.length>4 && args[4].equals("binary");
+
+        final FitMetrics.Histogram latency = new FitMetrics.Histogram();
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        for( int t=0; t<threads; t++ ) {
+            final Random random = new Random(t);
+            pool.execute(new Runnable() {
+                public void run() {
+                    while( next.getAndIncrement()<requests ) {
+                        byte[] body = profile(random, numPts, binary);
+                        long t0 = System.nanoTime();
+                        try {
+                            if( post(url + "/fit", body, binary)!=200 )
+                                failures.incrementAndGet();
+                        } catch(IOException e) {
+                            failures.incrementAndGet();
+                        }
+                        latency.record(System.nanoTime()-t0);
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.DAYS);
+        double secs = (System.nanoTime()-start)/1e9;
+
+        System.out.println("FitLoadTest: " + requests + " requests of " +
+                           numPts + " points (" + (binary ? "binary" : "json") +
+                           ") on " + threads + " threads");
+        System.out.println(String.format("   %.1f requests/s, %d failed",
+                                         requests/secs, failures.get()));
+        System.out.println("   client latency: " + latency);
+        System.out.println("   server metrics: " + get(url + "/metrics"));
+    }
+
+    /** A synthetic three-phase profile on a fixed depth grid, encoded as a
+     *  request body */
+    static byte[] profile(Random random, int n, boolean binary) {
+        double[] x = new double[n], y = new double[n];
+        for( int i=0; i<n; i++ ) {
+            x[i] = 10.0*i;
+            y[i] = 1500 - 0.05*Math.min(x[i], 3.0*n) +
+                0.017*Math.max(0, x[i]-6.0*n) + 0.1*random.nextGaussian();
+        }
+        try {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            if( binary ) {
+                DataOutputStream out = new DataOutputStream(buf);
+                out.writeInt(n);
+                for( int i=0; i<n; i++ ) out.writeDouble(x[i]);
+                for( int i=0; i<n; i++ ) out.writeDouble(y[i]);
+                out.flush();
+            } else {
+                StringBuffer sb = new StringBuffer("{\"x\":[");
+                for( int i=0; i<n; i++ ) sb.append(i>0 ? "," : "").append(x[i]);
+                sb.append("],\"y\":[");
+                for( int i=0; i<n; i++ ) sb.append(i>0 ? "," : "").append(y[i]);
+                sb.append("]}");
+                buf.write(sb.toString().getBytes("UTF-8"));
+            }
+            return buf.toByteArray();
+        } catch(IOException e) {
+            throw new RuntimeException(e);  // can't happen in memory
+        }
+    }
+
+    /** Posts body to url, reads the whole reply, and returns its status */
+    static int post(String url, byte[] body, boolean binary)
+        throws IOException {
+        HttpURLConnection conn = (HttpURLConnection)new URL(url).openConnection();
+        conn.setDoOutput(true);
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Content-Type", binary ?
+            "application/octet-stream" : "application/json");
+        conn.setFixedLengthStreamingMode(body.length);
+        OutputStream out = conn.getOutputStream();
+        out.write(body);
+        out.close();
+        int status = conn.getResponseCode();
+        InputStream in = status<400 ? conn.getInputStream() : conn.getErrorStream();
+        if( in!=null ) {
+            byte[] b = new byte[4096];
+            while( in.read(b)>0 );
+            in.close();
+        }
+        return status;
+    }
+
+    static String get(String url) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+            new URL(url).openStream(), "UTF-8"));
+        StringBuffer sb = new StringBuffer();
+        String line;
+        while( (line=in.readLine())!=null ) sb.append(line);
+        in.close();
+        return sb.toString();
+    }
+}
@@ -0,0 +1,235 @@
+/** FitMetrics.java */
+
+package edu.washington.apl.aganse.dataTools;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * FitMetrics is a lightweight in-process tally of what the regression
+ * fitters do: counters of fits, candidates tried, candidates pruned and
+ * improvements found, and histograms of the time taken per fit and per
+ * stage of a fit.  Counters and histograms are named after the fitter,
+ * eg. "TripleRegressionLine.candidates" or "TripleRegressionLine.search".
+ * Collection is off unless turned on with setEnabled(true) or the system
+ * property multiregresslines.metrics=true; while off, the fitters only
+ * pay for one flag check per stage.  The same stages are also recorded
+ * as JDK Flight Recorder events (see FitEvents) whenever a recording is
+ * running, independently of this switch.
+ * @author <A HREF="mailto:aganse@apl.washington.edu">Andy Ganse</A>,<BR>
+ * <A HREF="http://www.apl.washington.edu">Applied Physics Laboratory</A>,<BR>
+ * <A HREF="http://www.washington.edu">University of Washington</A>.
+ * @version 19 Oct 2026
+ * @see <A HREF="FitEvents.html">FitEvents</A>
+ */
+public class FitMetrics {
+
+    // names of the stages of a fit, as used in histogram and event names
+    public static final String LOAD = "load";
+    public static final String SORT = "sort";
+    public static final String MOMENTS = "moments";
+    public static final String SEARCH = "search";
+    public static final String MATERIALIZE = "materialize";
+    public static final String LATENCY = "latency";
+
+    static volatile boolean enabled =
+        Boolean.getBoolean("multiregresslines.metrics");
+    static ConcurrentHashMap counters = new ConcurrentHashMap();
+    static ConcurrentHashMap histograms = new ConcurrentHashMap();
+
+    /** Turns collection of the counters and histograms on or off */
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+    /** Returns whether counters and histograms are being collected */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Returns the current value of the named counter (0 if unused) */
+    public static long getCount(String name) {
+        AtomicLong c = (AtomicLong)counters.get(name);
+        return c==null ? 0 : c.get();
+    }
+
+    /** Returns the named histogram, or null if nothing was recorded in it */
+    public static Histogram getHistogram(String name) {
+        return (Histogram)histograms.get(name);
+    }
+
+    /** Adds n to the named counter */
+    public static void count(String name, long n) {
+        AtomicLong c = (AtomicLong)counters.get(name);
+        if( c==null ) {
+            counters.putIfAbsent(name, new AtomicLong());
+            c = (AtomicLong)counters.get(name);
+        }
+        c.addAndGet(n);
+    }
+
+    /** Records a duration in nanoseconds in the named histogram */
+    public static void record(String name, long nanos) {
+        Histogram h = (Histogram)histograms.get(name);
+        if( h==null ) {
+            histograms.putIfAbsent(name, new Histogram());
+            h = (Histogram)histograms.get(name);
+        }
+        h.record(nanos);
+    }
+
+    /** Zeroes all counters and histograms */
+    public static void reset() {
+        counters.clear();
+        histograms.clear();
+    }
+
+    /** Returns a listing of all counters and histograms, sorted by name */
+    public static String report() {
+        StringBuffer sb = new StringBuffer("FitMetrics:\n");
+        Iterator it = new TreeSet(counters.keySet()).iterator();
+        while( it.hasNext() ) {
+            String name = (String)it.next();
+            sb.append("   " + name + " = " + getCount(name) + "\n");
+        }
+        it = new TreeSet(histograms.keySet()).iterator();
+        while( it.hasNext() ) {
+            String name = (String)it.next();
+            sb.append("   " + name + ": " + getHistogram(name) + "\n");
+        }
+        return sb.toString();
+    }
+
+    /** Histogram of durations in power-of-two nanosecond buckets, which
+     *  gives percentiles to within a factor of two at a fixed tiny cost
+     *  per value recorded. */
+    public static class Histogram {
+        AtomicLongArray buckets = new AtomicLongArray(64);
+        AtomicLong count = new AtomicLong(), sum = new AtomicLong();
+        AtomicLong max = new AtomicLong();
+
+        /** Adds one duration in nanoseconds */
+        public void record(long nanos) {
+            long m;
+            if( nanos<0 ) nanos = 0;
+            buckets.incrementAndGet(64-Long.numberOfLeadingZeros(nanos|1)-1);
+            count.incrementAndGet();
+            sum.addAndGet(nanos);
+            while( nanos>(m=max.get()) && !max.compareAndSet(m, nanos) );
+        }
+        /** Returns the number of durations recorded */
+        public long getCount() {
+            return count.get();
+        }
+        /** Returns the mean duration in nanoseconds */
+        public double getMean() {
+            long n = count.get();
+            return n==0 ? 0 : (double)sum.get()/n;
+        }
+        /** Returns the longest duration in nanoseconds */
+        public long getMax() {
+            return max.get();
+        }
+        /** Returns an upper bound (the top of the bucket it falls in) on
+         *  the p-th percentile duration in nanoseconds, 0<p<=100 */
+        public long getPercentile(double p) {
+            long n = count.get(), seen = 0;
+            long rank = (long)Math.ceil(p/100*n);
+            for( int i=0; i<64; i++ ) {
+                seen += buckets.get(i);
+                if( seen>=rank && seen>0 )
+                    return Math.min(i<62 ? (2L<<i)-1 : Long.MAX_VALUE, max.get());
+            }
+            return 0;
+        }
+        public String toString() {
+            return "n=" + getCount() +
+                String.format(" mean=%.3fms p50<=%.3fms p99<=%.3fms max=%.3fms",
+                    getMean()/1e6, getPercentile(50)/1e6,
+                    getPercentile(99)/1e6, getMax()/1e6);
+        }
+    }
+
+    /** Probe is what the fitters (and programs using them) use to time the
+     *  stages of one fit and report them to FitMetrics and the Flight
+     *  Recorder; each stage is bracketed by begin() and end(), and
+     *  finish() closes off the fit.  Stages done with a fit after it is
+     *  made, like materializing its end points, are timed with a probe
+     *  from afterFit() instead, which is no fit of its own. */
+    public static class Probe {
+        String fitter;
+        long numPts;
+        boolean collect;              // metrics on when the probe started
+        long start, phaseStart;       // System.nanoTime() stamps
+        String phase;
+        FitEvents.Fit fitEvent;
+        FitEvents.Phase phaseEvent;
+
+        public Probe(String fitter, long numPts) {
+            this(fitter, numPts, true);
+        }
+
+        private Probe(String fitter, long numPts, boolean isFit) {
+            this.fitter = fitter;
+            this.numPts = numPts;
+            collect = enabled;
+            if( isFit ) {
+                fitEvent = new FitEvents.Fit();
+                if( fitEvent.isEnabled() ) fitEvent.begin();
+                else fitEvent = null;
+            }
+            if( collect ) start = System.nanoTime();
+        }
+
+        /** Returns a probe for the stages of a fit already made, which
+         *  begins no Fit event and is not to be finished */
+        public static Probe afterFit(String fitter, long numPts) {
+            return new Probe(fitter, numPts, false);
+        }
+
+        /** Marks the start of the named stage */
+        public void begin(String phase) {
+            this.phase = phase;
+            if( collect ) phaseStart = System.nanoTime();
+            phaseEvent = new FitEvents.Phase();
+            if( phaseEvent.isEnabled() ) phaseEvent.begin();
+            else phaseEvent = null;
+        }
+
+        /** Marks the end of the stage begun last */
+        public void end() {
+            if( collect )
+                record(fitter + "." + phase, System.nanoTime()-phaseStart);
+            if( phaseEvent!=null ) {
+                phaseEvent.end();
+                phaseEvent.fitter = fitter;
+                phaseEvent.phase = phase;
+                phaseEvent.numPts = numPts;
+                phaseEvent.commit();
+                phaseEvent = null;
+            }
+        }
+
+        /** Closes off the fit, with its search statistics */
+        public void finish(int numRuns, long candidates, long pruned,
+                    long improvements) {
+            if( collect ) {
+                record(fitter + "." + LATENCY, System.nanoTime()-start);
+                count(fitter + ".fits", 1);
+                count(fitter + ".candidates", candidates);
+                count(fitter + ".pruned", pruned);
+                count(fitter + ".improvements", improvements);
+            }
+            if( fitEvent!=null ) {
+                fitEvent.end();
+                fitEvent.fitter = fitter;
+                fitEvent.numPts = numPts;
+                fitEvent.numRuns = numRuns;
+                fitEvent.candidates = candidates;
+                fitEvent.pruned = pruned;
+                fitEvent.improvements = improvements;
+                fitEvent.commit();
+            }
+        }
+    }
+}
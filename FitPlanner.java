@@ -0,0 +1,360 @@
+/** FitPlanner.java */
+
+package edu.washington.apl.aganse.dataTools;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * FitPlanner stands in front of the one-, two- and three-phase fitters
+ * and picks, for each series, whichever way of fitting it its cost model
+ * predicts to be fastest: the plain serial search for small series, the
+ * pruned three-phase search (same result, fewer pairs tried) for larger
+ * ones, the two- and three-phase searches overlapped on two threads when
+ * there are the cores for it, or, when the caller accepts breakpoints
+ * quantized to a grid of a given tolerance, a BinnedFit on bins that
+ * wide.
+ * The model estimates each plan's time from the number of points n, the
+ * number of distinct x values (runs) m, the number of bins and the cores,
+ * as linear terms in n, m and the m(m-1)/2 trial pairs of the three-phase
+ * search, each with a coefficient in nanoseconds.  The coefficients built
+ * in were measured on a modest single-core server, so are on the slow
+ * side; calibrate() runs a short microbenchmark (a second or two) to
+ * measure them on the host instead, and getCoefficients() and
+ * FitPlanner(double[],int) let them be kept and reused.  The pruned search's coefficient is an average over the
+ * benchmark's synthetic three-phase profile, so how much it prunes on
+ * other data is an estimate.
+ * The series is sorted (by MomentTable.sort()) before planning, as every
+ * plan needs its runs counted, and the Plan returned holds the fits along
+ * with the plan chosen, every plan's estimate and the time taken, which
+ * its toString() reports.  Except for the binned plan, the fits are the
+ * same whichever plan is chosen, as the pruned search returns the same
+ * fit as the exhaustive one.
+ * @author <A HREF="mailto:aganse@apl.washington.edu">Andy Ganse</A>,<BR>
+ * <A HREF="http://www.apl.washington.edu">Applied Physics Laboratory</A>,<BR>
+ * <A HREF="http://www.washington.edu">University of Washington</A>.
+ * @version 19 Oct 2026
+ * @see <A HREF="TripleRegressionLine.html">TripleRegressionLine</A>
+ * @see <A HREF="BinnedFit.html">BinnedFit</A>
+ * @see <A HREF="MomentTable.html">MomentTable</A>
+ */
+public class FitPlanner {
+
+    /** The plans, in order of preference when estimates tie */
+    public static final String SERIAL = "serial";
+    public static final String PRUNED = "pruned";
+    public static final String PARALLEL = "parallel";
+    public static final String BINNED = "binned";
+    static final String[] PLANS = {SERIAL, PRUNED, PARALLEL, BINNED};
+
+    static final int MIN_BINS = 16;   // coarsest grid worth fitting
+    static final int REPS = 5;        // benchmark runs, the first to warm up
+
+    // cost coefficients, in nanoseconds
+    double nsTable = 275;             // per point, tabulating moments
+    double nsDouble = 165;            // per run, two-phase search
+    double nsTriple = 115;            // per pair, exhaustive search
+    double nsPruned = 1.1;            // per pair, pruned search
+    double nsBin = 135;               // per point, adding into bins
+    double nsThread = 470000;         // per plan, starting a thread pool
+    int cores;
+
+    /** Creates a planner with the built-in coefficients, for the given
+     *  number of cores (0 for all the processors) */
+    public FitPlanner(int newCores) {
+        cores = newCores>0 ? newCores :
+            Runtime.getRuntime().availableProcessors();
+    }
+
+    /** Creates a planner with coefficients from getCoefficients() */
+    public FitPlanner(double[] coefficients, int newCores) {
+        this(newCores);
+        if( coefficients.length!=6 )
+            throw new IllegalArgumentException(
+                "FitPlanner: need 6 coefficients, not " + coefficients.length);
+        nsTable = coefficients[0];
+        nsDouble = coefficients[1];
+        nsTriple = coefficients[2];
+        nsPruned = coefficients[3];
+        nsBin = coefficients[4];
+        nsThread = coefficients[5];
+    }
+
+    /** Returns the coefficients: nanoseconds per point to tabulate, per
+     *  run for the two-phase search, per pair for the exhaustive and
+     *  pruned three-phase searches, per point to bin, and per thread pool */
+    public double[] getCoefficients() {
+        return new double[] {nsTable, nsDouble, nsTriple, nsPruned, nsBin,
+                             nsThread};
+    }
+
+    /** Returns a planner whose coefficients are measured on this host by a
+     *  short microbenchmark on synthetic three-phase profiles */
+    public static FitPlanner calibrate(int cores) {
+        FitPlanner p = new FitPlanner(cores);
+        Random random = new Random(1);
+        DataSeries data;
+        MomentTable table;
+        long t;
+        int rep;
+
+        // tabulating and the two-phase search: many points, many runs
+        data = benchData(random, 200000, 100000);
+        p.nsTable = p.nsDouble = Double.POSITIVE_INFINITY;
+        for( rep=0; rep<REPS; rep++ ) {
+            t = System.nanoTime();
+            table = new MomentTable(data);
+            p.nsTable = Math.min(p.nsTable,
+                                 (System.nanoTime()-t)/200000.0);
+            t = System.nanoTime();
+            new DoubleRegressionLine(data, table);
+            p.nsDouble = Math.min(p.nsDouble, (System.nanoTime()-t)/
+                                  (double)table.getNumRuns());
+        }
+        // three-phase searches, by pairs tried
+        data = benchData(random, 600, 600);
+        table = new MomentTable(data);
+        p.nsTriple = Double.POSITIVE_INFINITY;
+        for( rep=0; rep<REPS; rep++ ) {
+            t = System.nanoTime();
+            new TripleRegressionLine(data, table, false);
+            p.nsTriple = Math.min(p.nsTriple,
+                (System.nanoTime()-t)/pairs(table.getNumRuns()));
+        }
+        data = benchData(random, 2000, 2000);
+        table = new MomentTable(data);
+        p.nsPruned = Double.POSITIVE_INFINITY;
+        for( rep=0; rep<REPS; rep++ ) {
+            t = System.nanoTime();
+            new TripleRegressionLine(data, table, true);
+            p.nsPruned = Math.min(p.nsPruned,
+                (System.nanoTime()-t)/pairs(table.getNumRuns()));
+        }
+        // binning, and the overhead of a pool of two threads
+        data = benchData(random, 200000, 100000);
+        p.nsBin = p.nsThread = Double.POSITIVE_INFINITY;
+        for( rep=0; rep<REPS; rep++ ) {
+            BinnedFit bins = new BinnedFit(0, 100000, 1000);
+            t = System.nanoTime();
+            bins.addAll(data);
+            p.nsBin = Math.min(p.nsBin, (System.nanoTime()-t)/200000.0);
+            t = System.nanoTime();
+            ExecutorService pool = Executors.newFixedThreadPool(2);
+            try {
+                pool.submit(new Runnable() {
+                    public void run() {
+                    }
+                }).get();
+            } catch(Exception e) {
+                throw new RuntimeException(e);
+            } finally {
+                pool.shutdown();
+            }
+            p.nsThread = Math.min(p.nsThread, System.nanoTime()-t);
+        }
+        return p;
+    }
+
+    /** A sorted synthetic profile of n points over about m distinct x
+     *  values, of three lines plus noise */
+    private static DataSeries benchData(Random random, int n, int m) {
+        DataSeries data = new DataSeries();
+        for( int i=0; i<n; i++ ) {
+            double x = n==m ? i : random.nextInt(m);
+            double y = x<m/3 ? x : x<2*m/3 ? m/3 - 2*(x-m/3) : x-m;
+            data.add(x, y + random.nextGaussian()*m*0.01);
+        }
+        MomentTable.sort(data);
+        return data;
+    }
+
+    /** Number of trial pairs of the three-phase search over m runs */
+    static double pairs(double m) {
+        return m*(m-1)/2;
+    }
+
+    /** Returns the estimated time in millisecs of the given plan on n
+     *  points in m runs, or NaN if the plan doesn't apply (a binned plan
+     *  needs bins between MIN_BINS and m, a parallel one two cores) */
+    public double estimateMillis(String plan, long n, int m, int bins) {
+        double ns;
+        if( plan.equals(SERIAL) )
+            ns = nsTable*n + nsDouble*m + nsTriple*pairs(m);
+        else if( plan.equals(PRUNED) )
+            ns = nsTable*n + nsDouble*m + nsPruned*pairs(m);
+        else if( plan.equals(PARALLEL) ) {
+            if( cores<2 ) return Double.NaN;
+            ns = nsTable*n + nsThread +
+                Math.max(nsDouble*m, nsPruned*pairs(m));
+        } else if( plan.equals(BINNED) ) {
+            if( bins<MIN_BINS || bins>=m ) return Double.NaN;
+            ns = nsBin*n + nsDouble*bins + nsPruned*pairs(bins);
+        } else
+            throw new IllegalArgumentException("FitPlanner: no plan " + plan);
+        return ns/1e6;
+    }
+
+    /** Returns the plan with the least estimate for n points in m runs
+     *  with the given number of bins (0 for none) */
+    public String choose(long n, int m, int bins) {
+        String best = SERIAL;
+        double est, least = estimateMillis(SERIAL, n, m, bins);
+        for( int i=1; i<PLANS.length; i++ ) {
+            est = estimateMillis(PLANS[i], n, m, bins);
+            if( est<least ) {
+                best = PLANS[i];
+                least = est;
+            }
+        }
+        return best;
+    }
+
+    /** Plans and makes the fits of data, accepting breakpoints placed on
+     *  a grid of bins tolerance wide (in x units), or 0 for the exact fit.
+     *  The binned fit is the best fit to the binned data, not the exact
+     *  fit snapped to the grid, so its breakpoints can lie further than
+     *  tolerance from the exact fit's where the SSres has near ties.
+     *  data is sorted in place, as by the fitters. */
+    public Plan fit(DataSeries data, double tolerance) {
+        return new Plan(this, data, tolerance);
+    }
+
+    /** The fits of one series, with the plan that made them */
+    public static class Plan {
+        String plan;
+        int numPts, numRuns, numBins, cores;
+        double tolerance;
+        double[] estimates;           // millisecs, in the order of PLANS
+        long sortNanos, fitNanos;
+        SingleRegressionLine line1;
+        DoubleRegressionLine line2;
+        TripleRegressionLine line3;
+
+        Plan(FitPlanner planner, DataSeries data, double newTolerance) {
+            long t = System.nanoTime();
+            int i;
+            MomentTable.sort(data);
+            numPts = data.getNumPts();
+            for( i=0; i<numPts; i++ )
+                if( i==0 || ((DataSeries.Point)data.elementAt(i)).getX() !=
+                    ((DataSeries.Point)data.elementAt(i-1)).getX() )
+                    numRuns++;
+            tolerance = newTolerance;
+            cores = planner.cores;
+            if( tolerance>0 && numPts>0 )
+                numBins = (int)Math.min(Integer.MAX_VALUE-1, Math.ceil(
+                    (data.getMaxX()-data.getMinX())/tolerance));
+            estimates = new double[PLANS.length];
+            for( i=0; i<PLANS.length; i++ )
+                estimates[i] = planner.estimateMillis(PLANS[i], numPts,
+                                                      numRuns, numBins);
+            plan = planner.choose(numPts, numRuns, numBins);
+            sortNanos = System.nanoTime()-t;
+
+            t = System.nanoTime();
+            if( plan.equals(BINNED) ) {
+                BinnedFit bins = new BinnedFit(data.getMinX(),
+                                               data.getMaxX(), numBins);
+                bins.addAll(data);
+                line1 = bins.getSingle();
+                line2 = bins.getDouble();
+                line3 = bins.getTriple(true);
+            } else {
+                final DataSeries extent = data;
+                final MomentTable table = new MomentTable(data);
+                line1 = new SingleRegressionLine(extent, table);
+                if( plan.equals(PARALLEL) )
+                    fitParallel(extent, table);
+                else {
+                    line2 = new DoubleRegressionLine(extent, table);
+                    line3 = new TripleRegressionLine(extent, table,
+                                                     plan.equals(PRUNED));
+                }
+            }
+            fitNanos = System.nanoTime()-t;
+        }
+
+        /** The two- and three-phase searches, on two threads */
+        private void fitParallel(final DataSeries extent,
+                                 final MomentTable table) {
+            ExecutorService pool = Executors.newFixedThreadPool(2);
+            try {
+                Future done = pool.submit(new Runnable() {
+                    public void run() {
+                        line3 = new TripleRegressionLine(extent, table, true);
+                    }
+                });
+                line2 = new DoubleRegressionLine(extent, table);
+                done.get();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("FitPlanner: interrupted", e);
+            } catch(ExecutionException e) {
+                if( e.getCause() instanceof RuntimeException )
+                    throw (RuntimeException)e.getCause();
+                throw new RuntimeException(e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        /** Returns the plan chosen, one of SERIAL, PRUNED, PARALLEL and
+         *  BINNED */
+        public String getPlan() {
+            return plan;
+        }
+        /** Returns the estimated time in millisecs of the given plan (NaN
+         *  if it didn't apply) */
+        public double getEstimateMillis(String p) {
+            for( int i=0; i<PLANS.length; i++ )
+                if( PLANS[i].equals(p) ) return estimates[i];
+            throw new IllegalArgumentException("FitPlanner: no plan " + p);
+        }
+        /** Returns the time taken to sort, count and plan, in millisecs */
+        public double getPlanMillis() {
+            return sortNanos/1e6;
+        }
+        /** Returns the time the fits took, in millisecs */
+        public double getFitMillis() {
+            return fitNanos/1e6;
+        }
+        /** Returns the number of distinct x values */
+        public int getNumRuns() {
+            return numRuns;
+        }
+        /** Returns the number of bins of a binned plan (0 for others) */
+        public int getNumBins() {
+            return plan.equals(BINNED) ? numBins : 0;
+        }
+        public SingleRegressionLine getSingle() {
+            return line1;
+        }
+        public DoubleRegressionLine getDouble() {
+            return line2;
+        }
+        public TripleRegressionLine getTriple() {
+            return line3;
+        }
+
+        /** return a String of the plan chosen, the estimates and the time
+         *  taken */
+        public String toString() {
+            StringBuffer sb = new StringBuffer(
+                "FitPlanner: NumPts = " + numPts + ", NumRuns = " + numRuns +
+                ", cores = " + cores + ", tolerance = " + tolerance + "\n" +
+                "      plan = " + plan +
+                (plan.equals(BINNED) ? " (" + numBins + " bins)" : "") +
+                String.format(", estimated %.3g ms, took %.3g ms" +
+                              " (+ %.3g ms sorting and planning)\n",
+                              getEstimateMillis(plan), getFitMillis(),
+                              getPlanMillis()) +
+                "      estimates (ms):");
+            for( int i=0; i<PLANS.length; i++ )
+                sb.append(" " + PLANS[i] + " " +
+                          (Double.isNaN(estimates[i]) ? "n/a" :
+                           String.format("%.3g", estimates[i])));
+            sb.append("\n");
+            return sb.toString();
+        }
+    }
+}
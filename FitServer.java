@@ -0,0 +1,546 @@
+/** FitServer.java */
+
+package edu.washington.apl.aganse.dataTools;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import com.sun.net.httpserver.*;
+
+/**
+ * FitServer is a small embedded HTTP server that fits one-, two- and
+ * three-phase regression lines to x,y data posted to it, so a pipeline can
+ * keep one JVM running instead of starting MultiRegressLines per profile.
+ * <P>
+ * POST /fit with a body of either JSON, <CODE>{"x":[...],"y":[...]}</CODE>,
+ * or (with Content-Type application/octet-stream) the binary form: a
+ * big-endian int n followed by n x doubles and then n y doubles.  The
+ * reply is JSON with the single, double and triple fits; values that are
+ * not finite come back as null.  Requests of more than a maximum number
+ * of points (MAX_POINTS by default), or whose body is too long for that
+ * many, are refused with 400 before anything is allocated for them, as
+ * the three-phase search costs the square of the number of points.  So
+ * are requests of fewer than MIN_POINTS points, or with a NaN or
+ * infinite value, which the fits can't take.
+ * <P>
+ * GET /metrics returns JSON with the queue depth, the numbers of requests
+ * and batches fitted, and the request latency percentiles.
+ * <P>
+ * Requests arriving within a short window of each other are gathered
+ * into one batch and handed to a worker pool together.  Within a batch,
+ * requests with identical x values (eg. profiles on a common depth grid)
+ * are fitted in lockstep by BatchRegressionFit, and the rest one by one,
+ * also by BatchRegressionFit.  Each profile's arithmetic there is
+ * independent of the others fitted with it, so a request's reply is the
+ * same bit for bit however it was batched.  Requests still queued when
+ * the server is stopped are answered 503.
+ * <P>
+ * The server listens on the loopback interface only unless it is given
+ * another address to bind to.
+ * @author <A HREF="mailto:aganse@apl.washington.edu">Andy Ganse</A>,<BR>
+ * <A HREF="http://www.apl.washington.edu">Applied Physics Laboratory</A>,<BR>
+ * <A HREF="http://www.washington.edu">University of Washington</A>.
+ * @version 19 Oct 2026
+ * @see <A HREF="BatchRegressionFit.html">BatchRegressionFit</A>
+ * @see <A HREF="FitLoadTest.html">FitLoadTest</A>
+ */
+public class FitServer {
+
+    /** Default port */
+    public static final int PORT = 8091;
+    /** Default time a batch is held open for more requests, in millisecs */
+    public static final long BATCH_WINDOW = 2;
+    /** Default most requests in one batch */
+    public static final int MAX_BATCH = 64;
+    /** Default most points in one request */
+    public static final int MAX_POINTS = 20000;
+    /** Least points in one request, the fewest the three-phase fit can
+     *  divide into three sections of two */
+    public static final int MIN_POINTS = 6;
+    /** Most bytes of JSON allowed per point, and for the rest of the body */
+    static final int JSON_BYTES_PER_POINT = 64;
+    static final int JSON_BYTES_EXTRA = 4096;
+
+    HttpServer server;
+    ExecutorService workers;          // fit the batches
+    ExecutorService handlers;         // read requests, wait, write replies
+    Thread dispatcher;                // gathers requests into batches
+    LinkedBlockingQueue queue = new LinkedBlockingQueue(); // of Job
+    long batchWindow;
+    int maxBatch;
+    int maxPoints = MAX_POINTS;       // most points accepted in a request
+    volatile boolean running;
+
+    AtomicLong numRequests = new AtomicLong(), numBatches = new AtomicLong();
+    AtomicLong numErrors = new AtomicLong();
+    AtomicInteger inFlight = new AtomicInteger();  // batches being fitted
+    FitMetrics.Histogram latency = new FitMetrics.Histogram();
+    FitMetrics.Histogram batchSize = new FitMetrics.Histogram();
+
+    /** One fit request, waiting in the queue or being fitted */
+    private static class Job {
+        double[] x, y;
+        long enqueued;                // System.nanoTime() when queued
+        String reply;                 // the JSON result, once fitted
+        RuntimeException error;       // or what went wrong
+        boolean stopped;              // or dropped as the server stopped
+        CountDownLatch done = new CountDownLatch(1);
+    }
+
+    /** Creates a server on port of the loopback interface with the
+     *  default batching and one worker per processor */
+    public FitServer(int port) throws IOException {
+        this(port, Runtime.getRuntime().availableProcessors(),
+             BATCH_WINDOW, MAX_BATCH);
+    }
+
+    /** Creates a server on port of the loopback interface with the given
+     *  number of worker threads, holding each batch open for up to
+     *  batchWindowMillis for more requests, up to maxBatch of them.  Call
+     *  start() to start serving. */
+    public FitServer(int port, int numWorkers, long batchWindowMillis,
+                     int maxBatch) throws IOException {
+        this(InetAddress.getLoopbackAddress(), port, numWorkers,
+             batchWindowMillis, maxBatch);
+    }
+
+    /** Same, listening on address bindAddr (eg. the wildcard address, to
+     *  serve other hosts) */
+    public FitServer(InetAddress bindAddr, int port, int numWorkers,
+                     long batchWindowMillis, int maxBatch) throws IOException {
+        this.batchWindow = batchWindowMillis;
+        this.maxBatch = maxBatch;
+        // replies are small, so don't let Nagle's algorithm hold them
+        // back waiting for the client's delayed ACK
+        if( System.getProperty("sun.net.httpserver.nodelay")==null )
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress(bindAddr, port), 0);
+        workers = Executors.newFixedThreadPool(numWorkers);
+        handlers = Executors.newCachedThreadPool();
+        server.setExecutor(handlers);
+        server.createContext("/fit", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                handleFit(ex);
+            }
+        });
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                reply(ex, 200, metrics());
+            }
+        });
+    }
+
+    /** Starts serving */
+    public void start() {
+        running = true;
+        dispatcher = new Thread(new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        }, "FitServer dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        server.start();
+    }
+
+    /** Stops serving, letting requests already being fitted finish and
+     *  answering those still queued with 503 */
+    public void stop() {
+        running = false;
+        dispatcher.interrupt();
+        dropQueued();
+        server.stop(1);
+        workers.shutdown();
+        handlers.shutdown();
+    }
+
+    /** Sets the most points accepted in one request (MAX_POINTS unless
+     *  set), which also limits the length of a request body */
+    public void setMaxPoints(int newMaxPoints) {
+        maxPoints = newMaxPoints;
+    }
+
+    /** Returns the port the server is listening on */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+    /** Returns the number of requests waiting to be batched */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+    /** Returns the histogram of request latencies, from arrival in the
+     *  queue to the fit being done, in nanoseconds */
+    public FitMetrics.Histogram getLatency() {
+        return latency;
+    }
+
+    /** Reads a fit request, queues it, and replies once it is fitted */
+    private void handleFit(HttpExchange ex) throws IOException {
+        Job job = new Job();
+        if( !ex.getRequestMethod().equals("POST") ) {
+            reply(ex, 405, "{\"error\":\"POST x,y data to /fit\"}");
+            return;
+        }
+        try {
+            String type = ex.getRequestHeaders().getFirst("Content-Type");
+            InputStream in = ex.getRequestBody();
+            long length = contentLength(ex);
+            if( type!=null && type.startsWith("application/octet-stream") )
+                readBinary(in, length, maxPoints, job);
+            else
+                readJson(in, length, maxPoints, job);
+            if( job.x.length!=job.y.length )
+                throw new IOException("x and y lengths differ");
+            checkPoints(job);
+        } catch(IOException e) {
+            numErrors.incrementAndGet();
+            reply(ex, 400, "{\"error\":" + quote(e.getMessage()) + "}");
+            return;
+        }
+        job.enqueued = System.nanoTime();
+        queue.add(job);
+        if( !running ) dropQueued();  // stop() may have drained it already
+        try {
+            job.done.await();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reply(ex, 503, "{\"error\":\"server stopping\"}");
+            return;
+        }
+        if( job.stopped )
+            reply(ex, 503, "{\"error\":\"server stopping\"}");
+        else if( job.error!=null ) {
+            numErrors.incrementAndGet();
+            reply(ex, 422, "{\"error\":" + quote(job.error.toString()) + "}");
+        } else
+            reply(ex, 200, job.reply);
+    }
+
+    /** Takes requests off the queue, gathering those that arrive within
+     *  the batch window of the first into one batch for the workers */
+    private void dispatch() {
+        while( running ) {
+            final ArrayList batch = new ArrayList();
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + batchWindow*1000000;
+                long wait;
+                while( batch.size()<maxBatch &&
+                       (wait=deadline-System.nanoTime())>0 ) {
+                    Object job = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if( job==null ) break;
+                    batch.add(job);
+                }
+                queue.drainTo(batch, maxBatch-batch.size());
+                batchSize.record(batch.size());
+                inFlight.incrementAndGet();
+                try {
+                    workers.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                fitBatch(batch);
+                            } finally {
+                                inFlight.decrementAndGet();
+                            }
+                        }
+                    });
+                } catch(RejectedExecutionException e) {
+                    inFlight.decrementAndGet();
+                    throw e;
+                }
+            } catch(InterruptedException e) {
+                drop(batch);
+                return;
+            } catch(RejectedExecutionException e) {
+                drop(batch);          // stopped
+                return;
+            }
+        }
+    }
+
+    /** Answers every request still in the queue as dropped */
+    private void dropQueued() {
+        ArrayList left = new ArrayList();
+        queue.drainTo(left);
+        drop(left);
+    }
+
+    /** Answers the requests in jobs as dropped for the server stopping */
+    private static void drop(ArrayList jobs) {
+        for( int k=0; k<jobs.size(); k++ ) {
+            Job job = (Job)jobs.get(k);
+            job.stopped = true;
+            job.done.countDown();
+        }
+    }
+
+    /** Fits a batch of requests, those with the same x values together.
+     *  Every request is answered, even if the fitting throws an Error. */
+    private void fitBatch(ArrayList batch) {
+        boolean[] taken = new boolean[batch.size()];
+        numBatches.incrementAndGet();
+        try {
+            for( int i=0; i<batch.size(); i++ ) {
+                if( taken[i] ) continue;
+                Job first = (Job)batch.get(i);
+                ArrayList group = new ArrayList();
+                group.add(first);
+                for( int k=i+1; k<batch.size(); k++ )
+                    if( !taken[k] &&
+                        Arrays.equals(((Job)batch.get(k)).x, first.x) ) {
+                        group.add(batch.get(k));
+                        taken[k] = true;
+                    }
+                try {
+                    fitGroup(group);
+                } catch(RuntimeException e) {
+                    // one profile's failure mustn't fail the others, so
+                    // fit them alone, as they would be in a batch of one
+                    for( int k=0; k<group.size(); k++ )
+                        fitAlone((Job)group.get(k));
+                }
+                for( int k=0; k<group.size(); k++ )
+                    finish((Job)group.get(k));
+            }
+        } finally {
+            for( int k=0; k<batch.size(); k++ ) {
+                Job job = (Job)batch.get(k);
+                if( job.done.getCount()==0 ) continue;
+                if( job.reply==null && job.error==null )
+                    job.error = new IllegalStateException("fit abandoned");
+                finish(job);
+            }
+        }
+    }
+
+    /** Counts a fitted request and releases its handler */
+    private void finish(Job job) {
+        latency.record(System.nanoTime()-job.enqueued);
+        numRequests.incrementAndGet();
+        job.done.countDown();
+    }
+
+    /** Fits one request as a group of its own, recording any failure */
+    private void fitAlone(Job job) {
+        ArrayList group = new ArrayList();
+        group.add(job);
+        try {
+            fitGroup(group);
+        } catch(RuntimeException e) {
+            job.reply = null;
+            job.error = e;
+        }
+    }
+
+    private static DataSeries series(double[] x, double[] y) {
+        DataSeries data = new DataSeries();
+        for( int i=0; i<x.length; i++ )
+            data.add(x[i], y[i]);
+        return data;
+    }
+
+    /** Fits requests sharing the same x values in lockstep (the same way
+     *  for a group of one); each job's reply depends only on its own
+     *  points */
+    private void fitGroup(ArrayList group) {
+        int m = group.size(), n = ((Job)group.get(0)).x.length;
+        double[] y = new double[n*m];
+        for( int j=0; j<m; j++ ) {
+            double[] yj = ((Job)group.get(j)).y;
+            for( int i=0; i<n; i++ )
+                y[i*m+j] = yj[i];
+        }
+        BatchRegressionFit fits =
+            new BatchRegressionFit(((Job)group.get(0)).x, y, m);
+        String[] replies = new String[m];
+        for( int j=0; j<m; j++ ) {
+            Job job = (Job)group.get(j);
+            replies[j] = json(n,
+                new SingleRegressionLine(series(job.x, job.y)),
+                fits.getDouble(j), fits.getTriple(j));
+        }
+        for( int j=0; j<m; j++ )
+            ((Job)group.get(j)).reply = replies[j];
+    }
+
+    /** Refuses a request of fewer than MIN_POINTS points or with a value
+     *  that isn't finite */
+    private static void checkPoints(Job job) throws IOException {
+        if( job.x.length<MIN_POINTS )
+            throw new IOException(job.x.length + " points is fewer than " +
+                                  "the least, " + MIN_POINTS);
+        for( int i=0; i<job.x.length; i++ )
+            if( Double.isNaN(job.x[i]) || Double.isInfinite(job.x[i]) ||
+                Double.isNaN(job.y[i]) || Double.isInfinite(job.y[i]) )
+                throw new IOException("point " + i + " (" + job.x[i] +
+                                      ", " + job.y[i] + ") isn't finite");
+    }
+
+    /** Returns the request's Content-Length, or -1 if it has none */
+    private static long contentLength(HttpExchange ex) throws IOException {
+        String s = ex.getRequestHeaders().getFirst("Content-Length");
+        if( s==null ) return -1;
+        try {
+            return Long.parseLong(s.trim());
+        } catch(NumberFormatException e) {
+            throw new IOException("bad Content-Length " + s);
+        }
+    }
+
+    /** Reads the binary form of a request: int n, n x's, n y's, refusing
+     *  n of more than maxPoints or more than length bytes hold (where
+     *  length isn't -1) */
+    private static void readBinary(InputStream in, long length, int maxPoints,
+                                   Job job) throws IOException {
+        DataInputStream din = new DataInputStream(new BufferedInputStream(in));
+        int n = din.readInt();
+        if( n<0 ) throw new IOException("negative point count");
+        if( n>maxPoints )
+            throw new IOException(n + " points is more than the most, " +
+                                  maxPoints);
+        if( length>=0 && 4+16L*n>length )
+            throw new IOException(n + " points don't fit in " + length +
+                                  " bytes");
+        job.x = new double[n];
+        job.y = new double[n];
+        for( int i=0; i<n; i++ )
+            job.x[i] = din.readDouble();
+        for( int i=0; i<n; i++ )
+            job.y[i] = din.readDouble();
+    }
+
+    /** Reads the JSON form of a request, {"x":[...],"y":[...]}, refusing
+     *  a body longer than maxPoints points need (by Content-Length where
+     *  given, or as it is read) */
+    private static void readJson(InputStream in, long length, int maxPoints,
+                                 Job job) throws IOException {
+        long maxBytes = (long)maxPoints*JSON_BYTES_PER_POINT + JSON_BYTES_EXTRA;
+        if( length>maxBytes )
+            throw new IOException("body of " + length + " bytes is longer " +
+                                  "than the most, " + maxBytes);
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        byte[] b = new byte[8192];
+        int len;
+        while( (len=in.read(b))>0 ) {
+            if( buf.size()+len>maxBytes )
+                throw new IOException("body is longer than the most, " +
+                                      maxBytes + " bytes");
+            buf.write(b, 0, len);
+        }
+        String s = buf.toString("UTF-8");
+        job.x = jsonArray(s, "x");
+        job.y = jsonArray(s, "y");
+        if( job.x.length>maxPoints )
+            throw new IOException(job.x.length + " points is more than the " +
+                                  "most, " + maxPoints);
+    }
+
+    /** Returns the array of numbers under key in a JSON object */
+    private static double[] jsonArray(String s, String key) throws IOException {
+        int k = s.indexOf("\"" + key + "\"");
+        int open = k<0 ? -1 : s.indexOf('[', k);
+        int close = open<0 ? -1 : s.indexOf(']', open);
+        if( close<0 ) throw new IOException("no \"" + key + "\" array");
+        String body = s.substring(open+1, close).trim();
+        if( body.length()==0 ) return new double[0];
+        String[] fields = body.split(",");
+        double[] a = new double[fields.length];
+        try {
+            for( int i=0; i<a.length; i++ )
+                a[i] = Double.parseDouble(fields[i].trim());
+        } catch(NumberFormatException e) {
+            throw new IOException("bad number in \"" + key + "\": " +
+                                  e.getMessage());
+        }
+        return a;
+    }
+
+    /** JSON of the three fits of a request */
+    static String json(int numPts, SingleRegressionLine line1,
+                       DoubleRegressionLine line2, TripleRegressionLine line3) {
+        return "{\"numPts\":" + numPts +
+            ",\"single\":{\"R\":" + num(line1.getR()) +
+            ",\"slope\":" + num(line1.getSlope()) +
+            ",\"yint\":" + num(line1.getYint()) + "}" +
+            ",\"double\":{\"R\":" + num(line2.getR()) +
+            ",\"avgSigma\":" + num(line2.getAvgSigma()) +
+            ",\"slope1\":" + num(line2.getSlope1()) +
+            ",\"yint1\":" + num(line2.getYint1()) +
+            ",\"slope2\":" + num(line2.getSlope2()) +
+            ",\"yint2\":" + num(line2.getYint2()) +
+            ",\"x1\":" + num(line2.getX1()) + "}" +
+            ",\"triple\":{\"R\":" + num(line3.getR()) +
+            ",\"avgSigma\":" + num(line3.getAvgSigma()) +
+            ",\"slope1\":" + num(line3.getSlope1()) +
+            ",\"yint1\":" + num(line3.getYint1()) +
+            ",\"slope2\":" + num(line3.getSlope2()) +
+            ",\"yint2\":" + num(line3.getYint2()) +
+            ",\"slope3\":" + num(line3.getSlope3()) +
+            ",\"yint3\":" + num(line3.getYint3()) +
+            ",\"x1\":" + num(line3.getX1()) +
+            ",\"x2\":" + num(line3.getX2()) + "}}";
+    }
+
+    private static String num(double v) {
+        return Double.isNaN(v) || Double.isInfinite(v) ? "null" :
+            Double.toString(v);
+    }
+
+    private static String quote(String s) {
+        if( s==null ) return "null";
+        StringBuffer sb = new StringBuffer("\"");
+        for( int i=0; i<s.length(); i++ ) {
+            char c = s.charAt(i);
+            if( c=='"' || c=='\\' ) sb.append('\\').append(c);
+            else if( c<' ' ) sb.append(' ');
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    /** JSON of the server's queue, counts and latency percentiles */
+    String metrics() {
+        return "{\"queueDepth\":" + queue.size() +
+            ",\"batchesInFlight\":" + inFlight.get() +
+            ",\"requests\":" + numRequests.get() +
+            ",\"batches\":" + numBatches.get() +
+            ",\"errors\":" + numErrors.get() +
+            ",\"meanBatchSize\":" + num(batchSize.getMean()) +
+            ",\"latencyMs\":{\"mean\":" + num(latency.getMean()/1e6) +
+            ",\"p50\":" + num(latency.getPercentile(50)/1e6) +
+            ",\"p90\":" + num(latency.getPercentile(90)/1e6) +
+            ",\"p99\":" + num(latency.getPercentile(99)/1e6) +
+            ",\"max\":" + num(latency.getMax()/1e6) + "}}";
+    }
+
+    private static void reply(HttpExchange ex, int status, String body)
+        throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        ex.getResponseHeaders().set("Content-Type", "application/json");
+        ex.sendResponseHeaders(status, bytes.length);
+        OutputStream out = ex.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    /** Runs a server: java ... FitServer [port [workers [windowMillis]]],
+     *  on loopback unless -Dfitserver.bind=<address> is given, and taking
+     *  up to -Dfitserver.maxpoints=<n> points a request */
+    public static void main(String[] args) throws IOException {
+        int port = args.length>0 ? Integer.parseInt(args[0]) : PORT;
+        int workers = args.length>1 ? Integer.parseInt(args[1]) :
+            Runtime.getRuntime().availableProcessors();
+        long window = args.length>2 ? Long.parseLong(args[2]) : BATCH_WINDOW;
+        String bind = System.getProperty("fitserver.bind");
+        FitServer server = new FitServer(bind==null ?
+            InetAddress.getLoopbackAddress() : InetAddress.getByName(bind),
+            port, workers, window, MAX_BATCH);
+        server.setMaxPoints(Integer.getInteger("fitserver.maxpoints",
+                                               MAX_POINTS).intValue());
+        server.start();
+        System.out.println("FitServer: listening on port " + server.getPort() +
+                           " (POST /fit, GET /metrics)");
+    }
+}
@@ -0,0 +1,646 @@
+/** MomentTable.java */
+
+package edu.washington.apl.aganse.dataTools;
+
+import java.util.*;
+
+/**
+ * MomentTable holds the running sums of the regression moments (count,
+ * sum of x, y, xx, xy, yy) of an x-sorted DataSeries, so that the moments,
+ * slope, y-intercept and residual sum of squares of the line fitted to any
+ * contiguous segment of the data come out in constant time instead of by
+ * re-dividing the data and refitting it.
+ * Points sharing the same x value always fall on the same side of a trial
+ * breakpoint, so they are compacted here into a single record (a "run") and
+ * the segment fitters only need to consider one candidate per distinct x.
+ * The running sums are accumulated point by point and only sampled at the
+ * run boundaries, so a segment's moments are bit-for-bit the same as they
+ * would be without the compaction.
+ * The x and y values are shifted by their means before summing, to keep the
+ * cancellation in Sxx, Sxy and Syy down for data far from the origin (like
+ * soundspeed values around 1500 m/s).
+ * The table can also be weighted, with each point's terms multiplied by a
+ * weight w (so the count becomes the sum of w, and so on); the fitted
+ * lines are then the weighted least-squares lines, and R the weighted
+ * residual sum of squares.
+ * @author <A HREF="mailto:aganse@apl.washington.edu">Andy Ganse</A>,<BR>
+ * <A HREF="http://www.apl.washington.edu">Applied Physics Laboratory</A>,<BR>
+ * <A HREF="http://www.washington.edu">University of Washington</A>.
+ * @version 19 Oct 2026
+ * @see <A HREF="DataSeries.html">DataSeries</A>
+ * @see <A HREF="DoubleRegressionLine.html">DoubleRegressionLine</A>
+ * @see <A HREF="TripleRegressionLine.html">TripleRegressionLine</A>
+ */
+public class MomentTable {
+
+    /** Most runs a table can hold, its arrays being sized numRuns+1 */
+    public static final int MAX_RUNS = Integer.MAX_VALUE-1;
+    long numPts;                      // number of data points tabulated
+    int numRuns;                      // number of distinct x values
+    double x0, y0;                    // shift subtracted from x,y before summing
+    double[] runX;                    // x value of each run
+    long[] cn;                        // running sums at the run boundaries:
+    double[] cw, cx, cy, cxx, cxy, cyy; // cx[r] is the sum of w*x over runs
+                                      //   0..r-1, cw[r] the sum of weights,
+                                      //   cn[r] the data index of run r's 1st pt
+    boolean weighted;                 // whether weights were applied
+
+    /** For subclasses that keep their moments some other way, and
+     *  override the methods below */
+    MomentTable() {
+    }
+
+    /** Tabulates the moments of data, which must already be sorted in
+     *  order of increasing x value (as by DataSeries.sort()). */
+    public MomentTable(DataSeries data) {
+        this(data, null);
+    }
+
+    /** Same, but weighting the terms of point i (in sorted order) by
+     *  weights[i], or all by 1 if weights is null */
+    public MomentTable(DataSeries data, double[] weights) {
+        DataSeries.Point p;
+        double x, y, w, lastx=0;
+        double sw=0, sx=0, sy=0, sxx=0, sxy=0, syy=0;
+        int i, r;
+
+        numPts = data.getNumPts();
+        weighted = weights!=null;
+        if( weights!=null && weights.length!=numPts )
+            throw new IllegalArgumentException(
+                "MomentTable: need one weight per data point");
+        x0 = numPts>0 ? data.getXmean() : 0;
+        y0 = numPts>0 ? data.getYmean() : 0;
+
+        // count the runs first so the tables can be sized exactly
+        numRuns = 0;
+        for(i=0; i<numPts; i++) {
+            x = ((DataSeries.Point)data.elementAt(i)).getX();
+            if( i>0 && x<lastx )
+                throw new IllegalArgumentException(
+                    "MomentTable: data must be sorted by increasing x");
+            if( i==0 || x!=lastx ) numRuns++;
+            lastx = x;
+        }
+
+        allocate();
+
+        r = 0;
+        for(i=0; i<numPts; i++) {
+            p = (DataSeries.Point)data.elementAt(i);
+            x = p.getX()-x0;
+            y = p.getY()-y0;
+            if( weights==null ) {
+                sw += 1;
+                sx += x;
+                sy += y;
+                sxx += x*x;
+                sxy += x*y;
+                syy += y*y;
+            } else {
+                w = weights[i];
+                sw += w;
+                sx += w*x;
+                sy += w*y;
+                sxx += w*x*x;
+                sxy += w*x*y;
+                syy += w*y*y;
+            }
+            // close off the run at its last point
+            if( i==numPts-1 ||
+                ((DataSeries.Point)data.elementAt(i+1)).getX()!=p.getX() ) {
+                runX[r] = p.getX();
+                r++;
+                cn[r] = i+1;
+                cw[r] = sw;
+                cx[r] = sx;
+                cy[r] = sy;
+                cxx[r] = sxx;
+                cxy[r] = sxy;
+                cyy[r] = syy;
+            }
+        }
+    }
+
+    /** Tabulates the moments of an off-heap series, which must already be
+     *  sorted in order of increasing x value.  The series is read straight
+     *  through twice (once for the means and runs, once for the sums), and
+     *  only the per-run table is kept on the heap, so this suits series of
+     *  any length as long as the number of distinct x values is modest
+     *  (see OffHeapSeries for the limits, and BinnedFit for series over
+     *  them).  A series of more than MAX_RUNS runs is refused. */
+    public MomentTable(OffHeapSeries series) {
+        double x, y, lastx=0;
+        double sw=0, sx=0, sy=0, sxx=0, sxy=0, syy=0;
+        long i, runs;
+        int r;
+
+        numPts = series.getNumPts();
+        runs = 0;
+        for(i=0; i<numPts; i++) {
+            x = series.getX(i);
+            if( i>0 && x<lastx )
+                throw new IllegalArgumentException(
+                    "MomentTable: data must be sorted by increasing x");
+            if( i==0 || x!=lastx ) runs++;
+            if( runs>MAX_RUNS )
+                throw new IllegalArgumentException(
+                    "MomentTable: more than " + MAX_RUNS + " distinct x " +
+                    "values to tabulate; fit the series through BinnedFit");
+            lastx = x;
+            x0 += x;
+            y0 += series.getY(i);
+        }
+        numRuns = (int)runs;
+        if( numPts>0 ) {
+            x0 /= numPts;
+            y0 /= numPts;
+        }
+
+        allocate();
+
+        r = 0;
+        for(i=0; i<numPts; i++) {
+            x = series.getX(i)-x0;
+            y = series.getY(i)-y0;
+            sw += 1;
+            sx += x;
+            sy += y;
+            sxx += x*x;
+            sxy += x*y;
+            syy += y*y;
+            // close off the run at its last point
+            if( i==numPts-1 || series.getX(i+1)!=series.getX(i) ) {
+                runX[r] = series.getX(i);
+                r++;
+                cn[r] = i+1;
+                cw[r] = sw;
+                cx[r] = sx;
+                cy[r] = sy;
+                cxx[r] = sxx;
+                cxy[r] = sxy;
+                cyy[r] = syy;
+            }
+        }
+    }
+
+    /** Tabulates the moments of a compact series, measured from its own
+     *  offsets.  Each term is formed exactly (the product of two floats
+     *  fits in a double) and summed with compensated summation, so the
+     *  table holds the moments of the stored values to within a few ulps,
+     *  whatever the number of points (see CompactSeries).  On a grid, x
+     *  is taken in units of the step, counted from the middle of the
+     *  grid, which keeps the terms exact (for up to 2^26 points), and the
+     *  sums involving x are scaled by the step as they are tabulated,
+     *  adding one or two roundings to each. */
+    public MomentTable(CompactSeries series) {
+        double[] s = new double[5];           // sums of x, y, xx, xy, yy
+        double[] c = new double[5];           // and their compensations
+        double[] v = new double[5];
+        double xs, ys, t, step = series.step;
+        int i, k, r, n = series.numPts;
+        boolean grid = series.isGrid();
+
+        numPts = n;
+        x0 = series.xOffset;
+        y0 = series.yOffset;
+        numRuns = 0;
+        for(i=0; i<n; i++)
+            if( i==0 || grid || series.x[i]!=series.x[i-1] ) numRuns++;
+
+        allocate();
+
+        r = 0;
+        for(i=0; i<n; i++) {
+            xs = grid ? i-0.5*(n-1) : series.x[i];
+            ys = series.y[i];
+            v[0] = xs;
+            v[1] = ys;
+            v[2] = xs*xs;
+            v[3] = xs*ys;
+            v[4] = ys*ys;
+            for(k=0; k<5; k++) {
+                t = s[k]+v[k];
+                if( Math.abs(s[k])>=Math.abs(v[k]) )
+                    c[k] += (s[k]-t)+v[k];
+                else
+                    c[k] += (v[k]-t)+s[k];
+                s[k] = t;
+            }
+            // close off the run at its last point
+            if( i==n-1 || grid || series.x[i+1]!=series.x[i] ) {
+                runX[r] = series.getX(i);
+                r++;
+                cn[r] = i+1;
+                cw[r] = i+1;
+                cx[r] = s[0]+c[0];
+                cy[r] = s[1]+c[1];
+                cxx[r] = s[2]+c[2];
+                cxy[r] = s[3]+c[3];
+                cyy[r] = s[4]+c[4];
+                if( grid ) {
+                    cx[r] *= step;
+                    cxx[r] *= step*step;
+                    cxy[r] *= step;
+                }
+            }
+        }
+    }
+
+    /** Tabulates only the runs and x sums of the sorted x values, to be
+     *  shared by the tables of several y variables made with
+     *  MomentTable(xtable, y) */
+    MomentTable(double[] x) {
+        double sx=0, sxx=0, xs;
+        int i, r;
+
+        numPts = x.length;
+        numRuns = 0;
+        for(i=0; i<x.length; i++) {
+            if( i>0 && x[i]<x[i-1] )
+                throw new IllegalArgumentException(
+                    "MomentTable: data must be sorted by increasing x");
+            if( i==0 || x[i]!=x[i-1] ) numRuns++;
+            x0 += x[i];
+        }
+        if( numPts>0 ) x0 /= numPts;
+
+        runX = new double[numRuns];
+        cn = new long[numRuns+1];
+        cw = new double[numRuns+1];
+        cx = new double[numRuns+1];
+        cxx = new double[numRuns+1];
+        r = 0;
+        for(i=0; i<x.length; i++) {
+            xs = x[i]-x0;
+            sx += xs;
+            sxx += xs*xs;
+            if( i==x.length-1 || x[i+1]!=x[i] ) {
+                runX[r] = x[i];
+                r++;
+                cn[r] = i+1;
+                cw[r] = i+1;
+                cx[r] = sx;
+                cxx[r] = sxx;
+            }
+        }
+    }
+
+    /** Tabulates the moments of another y variable measured at the same
+     *  x values as the (unweighted) table xtable, with y[i] going with
+     *  the i-th sorted x value.  The runs and the x sums are shared with
+     *  xtable rather than recalculated, since tables are never changed
+     *  once made; only the sums involving y are accumulated here. */
+    public MomentTable(MomentTable xtable, double[] y) {
+        double x, ys, sy=0, sxy=0, syy=0;
+        int i, r;
+
+        xtable = xtable.asStatic();
+        if( xtable.weighted )
+            throw new IllegalArgumentException(
+                "MomentTable: can't share the x sums of a weighted table");
+        if( y.length!=xtable.numPts )
+            throw new IllegalArgumentException(
+                "MomentTable: need one y value per x value");
+        numPts = xtable.numPts;
+        numRuns = xtable.numRuns;
+        x0 = xtable.x0;
+        runX = xtable.runX;
+        cn = xtable.cn;
+        cw = xtable.cw;
+        cx = xtable.cx;
+        cxx = xtable.cxx;
+        for(i=0; i<y.length; i++)
+            y0 += y[i];
+        if( numPts>0 ) y0 /= numPts;
+
+        cy = new double[numRuns+1];
+        cxy = new double[numRuns+1];
+        cyy = new double[numRuns+1];
+        i = 0;
+        for(r=0; r<numRuns; r++) {
+            x = runX[r]-x0;
+            for( ; i<cn[r+1]; i++) {
+                ys = y[i]-y0;
+                sy += ys;
+                sxy += x*ys;
+                syy += ys*ys;
+            }
+            cy[r+1] = sy;
+            cxy[r+1] = sxy;
+            cyy[r+1] = syy;
+        }
+    }
+
+    /** Tabulates moments already summed run by run, as by BinnedFit: run r
+     *  stands at newRunX[r] (increasing) and holds n[r] points, whose sums
+     *  of x-newx0, y-newy0, their squares and product are sx[r] etc.  The
+     *  points' own x values are not needed, as the fitters only use the
+     *  run x values for placing breakpoints. */
+    MomentTable(double[] newRunX, long[] n, double[] sx, double[] sy,
+                double[] sxx, double[] sxy, double[] syy, double newx0,
+                double newy0) {
+        numRuns = newRunX.length;
+        x0 = newx0;
+        y0 = newy0;
+        allocate();
+        for(int r=0; r<numRuns; r++) {
+            runX[r] = newRunX[r];
+            cn[r+1] = cn[r] + n[r];
+            cw[r+1] = cw[r] + n[r];
+            cx[r+1] = cx[r] + sx[r];
+            cy[r+1] = cy[r] + sy[r];
+            cxx[r+1] = cxx[r] + sxx[r];
+            cxy[r+1] = cxy[r] + sxy[r];
+            cyy[r+1] = cyy[r] + syy[r];
+        }
+        numPts = cn[numRuns];
+    }
+
+    /** Returns a table whose run arrays hold the moments as they are now,
+     *  for sharing them as MomentTable(xtable, y) does: this table itself,
+     *  as a MomentTable is never changed once made.  Subclasses that keep
+     *  their moments some other way override this. */
+    MomentTable asStatic() {
+        return this;
+    }
+
+    /** Sizes the tables for numRuns runs */
+    private void allocate() {
+        runX = new double[numRuns];
+        cn = new long[numRuns+1];
+        cw = new double[numRuns+1];
+        cx = new double[numRuns+1];
+        cy = new double[numRuns+1];
+        cxx = new double[numRuns+1];
+        cxy = new double[numRuns+1];
+        cyy = new double[numRuns+1];
+    }
+
+    /** Sorts data in order of increasing x value, as DataSeries.sort()
+     *  does, and weights (one per point, or null) along with it, in
+     *  place, so that weights[i] stays the weight of data point i.  This
+     *  is the weighted fitters' rule, so the same data and weights can be
+     *  passed to any number of them.  Returns weights. */
+    public static double[] sortWithWeights(DataSeries data,
+                                           double[] weights) {
+        if( weights!=null && weights.length!=data.getNumPts() )
+            throw new IllegalArgumentException(
+                "MomentTable: need one weight per data point");
+        int[] order = reorder(data);
+        if( weights==null || order==null ) return weights;
+        double[] original = weights.clone();
+        for( int i=0; i<weights.length; i++ )
+            weights[i] = original[order[i]];
+        return weights;
+    }
+
+    /** Sorts data in order of increasing x value, leaving points of equal
+     *  x in their original order, exactly as DataSeries.sort() does but
+     *  without its boxed comparisons: the x values are copied out and
+     *  sorted as primitives (see sortOrder()), and the points moved into
+     *  place.  Data already in order, such as a depth profile, costs only
+     *  the copy and one scan, and is left untouched.  DataSeries keeps no
+     *  record of being sorted that would survive later changes to it, so
+     *  the scan is done on every call.  Returns whether data was already
+     *  sorted. */
+    public static boolean sort(DataSeries data) {
+        return reorder(data)==null;
+    }
+
+    /** Sorts data, returning the original index of each point in the new
+     *  order, or null if it was already sorted */
+    private static int[] reorder(DataSeries data) {
+        Object[] pts = data.toArray();
+        double[] x = new double[pts.length];
+        boolean sorted = true;
+        for( int i=0; i<pts.length; i++ ) {
+            x[i] = ((DataSeries.Point)pts[i]).getX();
+            if( i>0 && sorted && Double.compare(x[i-1], x[i])>0 )
+                sorted = false;
+        }
+        if( sorted ) return null;
+        int[] order = sortOrder(x);
+        for( int i=0; i<order.length; i++ )
+            data.set(i, pts[order[i]]);
+        return order;
+    }
+
+    /** Returns whether x never decreases, in the order of Double.compare */
+    static boolean isSorted(double[] x) {
+        for( int i=1; i<x.length; i++ )
+            if( Double.compare(x[i-1], x[i])>0 ) return false;
+        return true;
+    }
+
+    /** Returns the indices of x in order of increasing x value, with equal
+     *  values left in their original order as DataSeries.sort() leaves
+     *  them, and values ordered as by Double.compare (so -0.0 before 0.0,
+     *  and NaN last).  Sorted and reverse sorted x are handled in a
+     *  single pass; otherwise this is a least-significant-digit radix sort
+     *  of the values' bit patterns, 16 bits at a time, skipping the digits
+     *  all values share (often the sign and exponent bits). */
+    static int[] sortOrder(double[] x) {
+        int n = x.length;
+        int[] order = new int[n];
+        int i;
+        if( isSorted(x) ) {
+            for( i=0; i<n; i++ ) order[i] = i;
+            return order;
+        }
+        if( reverseOrder(x, order) ) return order;
+
+        long[] key = new long[n];         // bit patterns ordered unsigned
+        long[] key2 = new long[n];
+        int[] order2 = new int[n];
+        long[] t;
+        int[] u;
+        int[] count = new int[1<<16];
+        long bits, same;
+        int shift, digit, sum, c;
+        for( i=0; i<n; i++ ) {
+            bits = Double.doubleToLongBits(x[i]);
+            key[i] = bits ^ ((bits>>63) | Long.MIN_VALUE);
+            order[i] = i;
+        }
+        same = 0;                         // bits that differ anywhere
+        for( i=1; i<n; i++ ) same |= key[i]^key[0];
+        for( shift=0; shift<64; shift+=16 ) {
+            if( ((same>>>shift)&0xffff)==0 ) continue;
+            Arrays.fill(count, 0);
+            for( i=0; i<n; i++ )
+                count[(int)(key[i]>>>shift)&0xffff]++;
+            sum = 0;
+            for( digit=0; digit<count.length; digit++ ) {
+                c = count[digit];
+                count[digit] = sum;
+                sum += c;
+            }
+            for( i=0; i<n; i++ ) {
+                digit = (int)(key[i]>>>shift)&0xffff;
+                key2[count[digit]] = key[i];
+                order2[count[digit]++] = order[i];
+            }
+            t = key; key = key2; key2 = t;
+            u = order; order = order2; order2 = u;
+        }
+        return order;
+    }
+
+    /** If x never increases, fills in order with its sorted order (the runs
+     *  of equal values taken from last to first, each in its original
+     *  order) and returns true; otherwise returns false */
+    private static boolean reverseOrder(double[] x, int[] order) {
+        int n = x.length, i, j, end, k = 0;
+        for( i=1; i<n; i++ )
+            if( Double.compare(x[i-1], x[i])<0 ) return false;
+        for( end=n; end>0; end=j ) {
+            for( j=end-1; j>0 && Double.compare(x[j-1], x[end-1])==0; j-- );
+            for( i=j; i<end; i++ ) order[k++] = i;
+        }
+        return true;
+    }
+
+    /** Returns the number of data points in the table */
+    public long getNumPts() {
+        return numPts;
+    }
+    /** Returns the number of runs, ie distinct x values, in the table */
+    public int getNumRuns() {
+        return numRuns;
+    }
+    /** Returns the x value shared by the points of run r */
+    public double getRunX(int r) {
+        return runX[r];
+    }
+    /** Returns the data index of the first point of run r */
+    public long getRunStart(int r) {
+        return cn[r];
+    }
+    /** Returns the data index one past the last point of run r */
+    public long getRunEnd(int r) {
+        return cn[r+1];
+    }
+    /** Returns the number of data points in run r */
+    public long getRunCount(int r) {
+        return cn[r+1]-cn[r];
+    }
+
+    /** Returns the index of the run containing data point i */
+    public int runOf(long i) {
+        int lo=0, hi=numRuns-1, mid;
+        while( lo<hi ) {
+            mid = (lo+hi)>>>1;
+            if( cn[mid+1]<=i ) lo=mid+1;
+            else hi=mid;
+        }
+        return lo;
+    }
+
+    /** Returns the index of the last run with x value <= X, or -1 if all
+     *  the data lie above X.  Splitting the data after this run is the
+     *  same as dividing it with p.getX()<=X. */
+    public int runIndexOf(double X) {
+        int lo=0, hi=numRuns, mid;
+        while( lo<hi ) {
+            mid = (lo+hi)>>>1;
+            if( runX[mid]<=X ) lo=mid+1;
+            else hi=mid;
+        }
+        return lo-1;
+    }
+
+    /** Returns the x extent of the table as a DataSeries of two points,
+     *  at the least and greatest x values, each with the mean y value of
+     *  its run.  The fitters use this in place of the data itself when
+     *  fitting an OffHeapSeries or CompactSeries. */
+    public DataSeries extent() {
+        DataSeries ends = new DataSeries();
+        if( numRuns>0 ) {
+            ends.add(runX[0], segment(0,1).getYmean());
+            ends.add(runX[numRuns-1], segment(numRuns-1,numRuns).getYmean());
+        }
+        return ends;
+    }
+
+    /** Returns the moments of the data segment made up of runs r0 through
+     *  r1-1 */
+    public Segment segment(int r0, int r1) {
+        Segment s = new Segment();
+        s.numRuns = r1-r0;
+        s.numPts = cn[r1]-cn[r0];
+        s.x0 = x0;
+        s.y0 = y0;
+        s.sw = cw[r1]-cw[r0];
+        s.sx = cx[r1]-cx[r0];
+        s.sy = cy[r1]-cy[r0];
+        s.sxx = cxx[r1]-cxx[r0];
+        s.sxy = cxy[r1]-cxy[r0];
+        s.syy = cyy[r1]-cyy[r0];
+        return s;
+    }
+
+    /** Segment holds the moments of one contiguous section of the data and
+     *  offers the least-squares line through it, with the same meanings as
+     *  the corresponding methods in DataSeries and SingleRegressionLine.
+     *  As there, a segment of fewer than two distinct x values has no
+     *  defined line and gives NaN slope, y-intercept and R. */
+    public static class Segment {
+        int numRuns;
+        long numPts;
+        double x0, y0;                // shift applied to the sums below
+        double sw;                    // sum of weights (numPts unweighted)
+        double sx, sy, sxx, sxy, syy; // weighted sums of shifted x and y
+
+        /** Returns the number of data points in the segment */
+        public long getNumPts() {
+            return numPts;
+        }
+        /** Returns the sum of the weights of the segment's points, which
+         *  is just their number for an unweighted table */
+        public double getSumW() {
+            return sw;
+        }
+        /** Returns the (weighted) mean x value of the segment */
+        public double getXmean() {
+            return x0 + sx/sw;
+        }
+        /** Returns the (weighted) mean y value of the segment */
+        public double getYmean() {
+            return y0 + sy/sw;
+        }
+        /** Returns the sum of squared x deviations from the mean */
+        public double getSxx() {
+            // exactly zero for a single run, where the running sums would
+            // otherwise leave a little rounding noise
+            if( numRuns<2 ) return 0;
+            return sxx - sx*sx/sw;
+        }
+        /** Returns the sum of x,y deviation products from the means */
+        public double getSxy() {
+            if( numRuns<2 ) return 0;
+            return sxy - sx*sy/sw;
+        }
+        /** Returns the sum of squared y deviations from the mean */
+        public double getSyy() {
+            return syy - sy*sy/sw;
+        }
+        /** Returns the slope of the line fitted to the segment */
+        public double getSlope() {
+            return getSxy()/getSxx();
+        }
+        /** Returns the y-intercept of the line fitted to the segment */
+        public double getYint() {
+            double slope = getSlope();
+            return y0 + (sy - slope*sx)/sw - slope*x0;
+        }
+        /** Returns the residual sum of squares about the fitted line.
+         *  Notation warning: note this is SSres, not correlation coefficient!
+         */
+        public double getR() {
+            double Sxy = getSxy();
+            // rounding can take a near-perfect fit a hair below zero
+            return Math.max(0, getSyy() - Sxy*Sxy/getSxx());
+        }
+    }
+}
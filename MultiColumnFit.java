@@ -0,0 +1,186 @@
+/** MultiColumnFit.java */
+
+package edu.washington.apl.aganse.dataTools;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * MultiColumnFit computes the one-, two- and three-phase regression fits
+ * of several y variables measured against the same x values, such as the
+ * temperature, salinity and soundspeed columns of a CTD cast against its
+ * depth column.  The x values are sorted once and their runs and sums
+ * tabulated once in a MomentTable shared by all the columns, so each
+ * further column costs only the tabulation of its own y sums plus the
+ * three searches.  The columns can be fitted in parallel, each column's
+ * fits being independent of the others.
+ * The fits are the same as SingleRegressionLine, DoubleRegressionLine and
+ * TripleRegressionLine would give for a DataSeries of x and that column,
+ * and are returned as those classes.  Since the columns are never made
+ * into DataSeries for fitting, getColumn() builds one on request (eg. for
+ * plotting).
+ * @author <A HREF="mailto:aganse@apl.washington.edu">Andy Ganse</A>,<BR>
+ * <A HREF="http://www.apl.washington.edu">Applied Physics Laboratory</A>,<BR>
+ * <A HREF="http://www.washington.edu">University of Washington</A>.
+ * @version 19 Oct 2026
+ * @see <A HREF="MomentTable.html">MomentTable</A>
+ * @see <A HREF="TripleRegressionLine.html">TripleRegressionLine</A>
+ */
+public class MultiColumnFit {
+
+    double[] x;                       // x values, sorted
+    double[][] y;                     // y columns, in the sorted x order
+    MomentTable xtable;               // runs and x sums shared by columns
+    SingleRegressionLine[] line1;     // the fits of each column
+    DoubleRegressionLine[] line2;
+    TripleRegressionLine[] line3;
+
+    /** Fits each column y[k] against x, where y[k][i] goes with x[i]; the
+     *  arrays are left as they are.  With parallel true, the columns are
+     *  fitted at the same time on up to one thread per processor. */
+    public MultiColumnFit(double[] newx, double[][] newy, boolean parallel) {
+        int[] order;
+        int i, k;
+
+        order = MomentTable.sortOrder(newx);
+        x = new double[newx.length];
+        for( i=0; i<x.length; i++ )
+            x[i] = newx[order[i]];
+        y = new double[newy.length][];
+        for( k=0; k<y.length; k++ ) {
+            if( newy[k].length!=x.length )
+                throw new IllegalArgumentException(
+                    "MultiColumnFit: column " + k + " has " + newy[k].length +
+                    " values for " + x.length + " x values");
+            y[k] = new double[x.length];
+            for( i=0; i<x.length; i++ )
+                y[k][i] = newy[k][order[i]];
+        }
+        xtable = new MomentTable(x);
+
+        line1 = new SingleRegressionLine[y.length];
+        line2 = new DoubleRegressionLine[y.length];
+        line3 = new TripleRegressionLine[y.length];
+        if( parallel && y.length>1 )
+            fitParallel();
+        else
+            for( k=0; k<y.length; k++ ) fit(k);
+    }
+
+    /** Fits column k */
+    private void fit(int k) {
+        MomentTable table = new MomentTable(xtable, y[k]);
+        DataSeries extent = table.extent();
+        line1[k] = new SingleRegressionLine(extent, table);
+        line2[k] = new DoubleRegressionLine(extent, table);
+        line3[k] = new TripleRegressionLine(extent, table, false);
+    }
+
+    /** Fits all the columns on a pool of threads */
+    private void fitParallel() {
+        int nthreads = Math.min(y.length,
+                                Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+        Future[] done = new Future[y.length];
+        try {
+            for( int k=0; k<y.length; k++ ) {
+                final int col = k;
+                done[k] = pool.submit(new Runnable() {
+                    public void run() {
+                        fit(col);
+                    }
+                });
+            }
+            for( int k=0; k<y.length; k++ )
+                done[k].get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("MultiColumnFit: interrupted", e);
+        } catch(ExecutionException e) {
+            if( e.getCause() instanceof RuntimeException )
+                throw (RuntimeException)e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Loads an ascii file of columns x y1 y2 ..., separated by spaces,
+     *  tabs or commas, and fits each y column against x.  Blank lines and
+     *  lines starting with # are skipped, and every other line must have
+     *  the same number (at least two) of numeric columns. */
+    public static MultiColumnFit loadFromFile(String filename,
+                                              boolean parallel)
+        throws IOException {
+        ArrayList rows = new ArrayList();
+        BufferedReader in = new BufferedReader(new FileReader(filename));
+        String line;
+        String[] fields;
+        double[] row;
+        int ncols = -1, lineno = 0;
+        try {
+            while( (line=in.readLine())!=null ) {
+                lineno++;
+                line = line.trim();
+                if( line.length()==0 || line.startsWith("#") ) continue;
+                fields = line.split("[\\s,]+");
+                if( ncols<0 ) ncols = fields.length;
+                if( fields.length!=ncols || ncols<2 )
+                    throw new IOException(filename + ":" + lineno +
+                        ": expected " + Math.max(ncols,2) + " columns");
+                row = new double[ncols];
+                try {
+                    for( int j=0; j<ncols; j++ )
+                        row[j] = Double.parseDouble(fields[j]);
+                } catch(NumberFormatException e) {
+                    throw new IOException(filename + ":" + lineno +
+                        ": bad number " + e.getMessage());
+                }
+                rows.add(row);
+            }
+        } finally {
+            in.close();
+        }
+        if( ncols<0 )
+            throw new IOException(filename + ": no data");
+
+        double[] x = new double[rows.size()];
+        double[][] y = new double[ncols-1][rows.size()];
+        for( int i=0; i<x.length; i++ ) {
+            row = (double[])rows.get(i);
+            x[i] = row[0];
+            for( int k=0; k<ncols-1; k++ )
+                y[k][i] = row[k+1];
+        }
+        return new MultiColumnFit(x, y, parallel);
+    }
+
+    /** Returns the number of y columns */
+    public int getNumColumns() {
+        return y.length;
+    }
+    /** Returns the number of x,y points in each column */
+    public int getNumPts() {
+        return x.length;
+    }
+    /** Returns column k as a new DataSeries, sorted by x */
+    public DataSeries getColumn(int k) {
+        DataSeries data = new DataSeries();
+        for( int i=0; i<x.length; i++ )
+            data.add(x[i], y[k][i]);
+        return data;
+    }
+    /** Returns the single-line fit of column k */
+    public SingleRegressionLine getSingle(int k) {
+        return line1[k];
+    }
+    /** Returns the two-phase fit of column k */
+    public DoubleRegressionLine getDouble(int k) {
+        return line2[k];
+    }
+    /** Returns the three-phase fit of column k */
+    public TripleRegressionLine getTriple(int k) {
+        return line3[k];
+    }
+}
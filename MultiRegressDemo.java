@@ -97,6 +97,7 @@ public class MultiRegressDemo extends JApplet {
 	    public void actionPerformed(ActionEvent e) {
 		    data.clear();
 		    data.addExampleData();
+		    dp.resetPoints();
 		    dp.repaint();
 	   }
 	}
@@ -105,6 +106,7 @@ public class MultiRegressDemo extends JApplet {
 	    public void actionPerformed(ActionEvent e) {
 		    data.clear();
 		    regLine=null;
+		    dp.resetPoints();
 		    dp.repaint();
 	    }
 	}	
@@ -175,6 +177,11 @@ public class MultiRegressDemo extends JApplet {
 	Dimension r;
 	DataSeries.Point p;
 	DS2PanelXY grid;
+	Image pointLayer;  // axes and data points drawn so far
+	Image backBuffer;  // pointLayer plus the regression lines
+	Dimension layerSize;
+	int layerPts = -1;  // number of points on pointLayer, -1 to redraw
+	int fitPts = -1;    // number of points when regLine was fitted
 	Dimension outerAxisBorder = new Dimension(5,5); //15,15 with axislabels
 	Dimension innerAxisBorder = new Dimension(15,15); //25,25 with axislab.
 	ResultPanel rp;
@@ -220,11 +227,80 @@ public class MultiRegressDemo extends JApplet {
 	public void mouseClicked(MouseEvent e) {
 	}
 
+	/** Redraws straight over the old frame rather than clearing the
+	 *  canvas first (as Canvas.update() does), since paint() covers the
+	 *  whole canvas with the back buffer anyway; this stops the flicker. */
+	public void update(Graphics g) {
+	    paint(g);
+	}
+
+	/** Has the next paint() redraw the axes and all the points afresh,
+	 *  for when the data have been replaced rather than added to. */
+	public void resetPoints() {
+	    layerPts = -1;
+	}
+
+	/** Paints the canvas from two off-screen images: pointLayer holds the
+	 *  axes and the points drawn so far, and only points added since the
+	 *  last paint are drawn onto it; the regression lines are then drawn
+	 *  as an overlay over a copy of it in backBuffer, which goes to the
+	 *  screen in one piece.  So a frame costs the same however many points
+	 *  there are, and the fit is only recalculated when they change. */
 	public void paint(Graphics g) {
+	    Graphics lg, bg;
+	    int n;
 	    rp.repaint();
 	    r = getSize();  /** get size of canvas */
 	    grid.update(r); /** tell size of canvas to 'grid' so it knows how
 						 *  to convert plot locations to/from data points */
+	    if (r.width<=0 || r.height<=0) return;
+	    /** (re)make the images when the canvas is first shown or resized */
+	    if (pointLayer==null || !r.equals(layerSize)) {
+		pointLayer = createImage(r.width, r.height);
+		backBuffer = createImage(r.width, r.height);
+		layerSize = new Dimension(r);
+		layerPts = -1;
+	    }
+	    n = data.getNumPts();
+	    lg = pointLayer.getGraphics();
+	    if (layerPts<0 || layerPts>n) {
+		/** start the layer afresh: background and axes */
+		lg.setColor(Color.white);
+		lg.fillRect(0, 0, r.width, r.height);
+		drawAxes(lg);
+		layerPts = 0;
+	    }
+	    /** Draw data points added since the last paint */
+	    lg.setColor(Color.blue);
+	    for (int i=layerPts; i<n; i++) {
+		p = (DataSeries.Point)data.elementAt(i);
+		/** In the fillOval line below, the x's and y's are not swapped
+		 * accidentally.  In InteractiveDepthPlot, depth is the
+		 * independent variable, but is shown per convention on the 
+		 * y-axis.  In DataSeries.Point (note object p) the x-axis is
+		 * the dependent axis, hence the swap here.  Sorry for the
+		 * confusion, but I'm trying to match convention in both. */
+		lg.fillOval( grid.getX( p.getY() /* ie SS */ ) - 2,
+			    grid.getY( p.getX() /* ie depth */) - 2,
+			    4, 4);
+	    }
+	    lg.dispose();
+	    /** Refit only when the points have changed (the fit may reorder
+	     *  them, so this comes after the new ones are drawn) */
+	    if (n!=fitPts || layerPts==0) {
+		regLine = n>1 ? data.bestRegressionLine(sigTol1,sigTol2,sigTol3) : null;
+		fitPts = n;
+	    }
+	    layerPts = n;
+	    bg = backBuffer.getGraphics();
+	    bg.drawImage(pointLayer, 0, 0, null);
+	    drawRegLine(bg);
+	    bg.dispose();
+	    g.drawImage(backBuffer, 0, 0, null);
+	}
+
+	/** Draws the axes, with arrows at their tips */
+	private void drawAxes(Graphics g) {
 	    g.setColor(Color.black);
 	    /** Draw x-axes */
 	    g.drawLine(outerAxisBorder.width,
@@ -254,23 +330,12 @@ public class MultiRegressDemo extends JApplet {
 		       r.height-outerAxisBorder.height,
 		       innerAxisBorder.width+5,
 		       r.height-outerAxisBorder.height-5);
-	    /** Draw data points */
-	    for (Enumeration e = data.elements(); e.hasMoreElements(); ) {
-		g.setColor(Color.blue);
-		p = (DataSeries.Point)e.nextElement();
-		/** In the fillOval line below, the x's and y's are not swapped
-		 * accidentally.  In InteractiveDepthPlot, depth is the
-		 * independent variable, but is shown per convention on the 
-		 * y-axis.  In DataSeries.Point (note object p) the x-axis is
-		 * the dependent axis, hence the swap here.  Sorry for the
-		 * confusion, but I'm trying to match convention in both. */
-		g.fillOval( grid.getX( p.getY() /* ie SS */ ) - 2,
-			    grid.getY( p.getX() /* ie depth */) - 2,
-			    4, 4);
-	    }
+	}
+
+	/** Draws the regression lines over the points */
+	private void drawRegLine(Graphics g) {
 	    /** Draw regression line (if enough pts) */
-	    if (data.getNumPts() > 1){
-		regLine = data.bestRegressionLine(sigTol1,sigTol2,sigTol3);
+	    if (data.getNumPts() > 1 && regLine != null){
 		if (regLine.length==5) {
 			/** if 5 args in regLine then it's a single regression
 			 *  line: stdDev,x1,y1,x2,y2 */
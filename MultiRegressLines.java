@@ -27,7 +27,7 @@ public class MultiRegressLines {
 
     /** MultiRegressLines is a separate program that is called from the commandline
      *  as "java -jar MultiRegressLines <mydatafile>". */
-    public static void main(String[] args) {
+    public static void main(String[] args) throws java.io.IOException {
 
         DataSeries mydata = new DataSeries();
 
@@ -36,25 +36,66 @@ public class MultiRegressLines {
 		System.out.println("Andy Ganse, APL-UW, 2002-2015, aganse@apl.washington.edu");
 		System.out.println("(see http://staff.washington.edu/aganse/mpregression/mpregression.html for discussion)\n");
 
+		if(args.length>=1 && args.length<=2 && args[0].equalsIgnoreCase("-server")) {
+			FitServer.main(args.length==2 ? new String[] {args[1]} : new String[0]);
+			return;
+		}
+		if(args.length==2 && args[0].equalsIgnoreCase("-columns")) {
+			fitColumns(args[1]);
+			return;
+		}
+		if(args.length==2 && args[0].equalsIgnoreCase("-cv")) {
+			crossValidate(args[1]);
+			return;
+		}
+		if(args.length==2 && args[0].equalsIgnoreCase("-check")) {
+			checkSearches(args[1]);
+			return;
+		}
 		if(args.length!=1) {
 			System.out.println("Usage: java -jar MultiRegressLines.jar <datafilename>");
 			System.out.println("       (where datafile is a two-column ascii file of x and y data)");
 			System.out.println("   or: java -jar MultiRegressLines.jar -exampledata");
+			System.out.println("   or: java -jar MultiRegressLines.jar -columns <datafilename>");
+			System.out.println("       (where datafile has columns x y1 y2 ..., each y fitted against x)");
+			System.out.println("   or: java -jar MultiRegressLines.jar -cv <datafilename>");
+			System.out.println("       (chooses the number of lines, 1 to 4, by 10-fold cross-validation)");
+			System.out.println("   or: java -jar MultiRegressLines.jar -check <datafilename>");
+			System.out.println("       (checks the faster three-line searches, warm-started ones too, against the full one)");
+			System.out.println("   or: java -jar MultiRegressLines.jar -server [port]");
+			System.out.println("       (serves fits over HTTP: POST x,y data to /fit, GET /metrics)");
+			System.out.println("   (add -Dmultiregresslines.metrics=true before -jar to list timing metrics,");
+			System.out.println("    -Dmultiregresslines.calibrate=true to time the fitting plans on this host,");
+			System.out.println("    -Dmultiregresslines.tolerance=<dx> to accept breakpoints on a grid dx wide for speed,");
+			System.out.println("    -Dmultiregresslines.residuals=<file> to write each point's fits and residuals,");
+			System.out.println("     as CSV if the file name ends in .csv, otherwise as binary doubles)");
 			System.exit(1);
 		}
-		else if(args[0].equalsIgnoreCase("-exampledata")) {
+		FitMetrics.Probe probe = new FitMetrics.Probe("MultiRegressLines", 0);
+		probe.begin(FitMetrics.LOAD);
+		if(args[0].equalsIgnoreCase("-exampledata")) {
 			System.out.println("...using built-in example data, actually an oceanic soundspeed profile"+
 							   "\nwith x=depth(m) and y=speed(m/s) :  Calculating...");
 			mydata.addExampleData();
 		}
 		else {
 			System.out.println("Data file "+args[0]+":  Calculating...");
-			mydata.loadFromFile(args[0]);
+			try {
+				mydata = new ParallelLoader(args[0], 0).toDataSeries();
+			} catch(java.io.IOException e) {
+				System.out.println("Can't load "+args[0]+": "+e.getMessage());
+				System.exit(1);
+			}
 		}
+		probe.end();
 
-		SingleRegressionLine line1 = new SingleRegressionLine(mydata);
-		DoubleRegressionLine line2 = new DoubleRegressionLine(mydata);
-		TripleRegressionLine line3 = new TripleRegressionLine(mydata);
+		FitPlanner planner = Boolean.getBoolean("multiregresslines.calibrate") ?
+			FitPlanner.calibrate(0) : new FitPlanner(0);
+		FitPlanner.Plan plan = planner.fit(mydata,
+			Double.parseDouble(System.getProperty("multiregresslines.tolerance", "0")));
+		SingleRegressionLine line1 = plan.getSingle();
+		DoubleRegressionLine line2 = plan.getDouble();
+		TripleRegressionLine line3 = plan.getTriple();
 
 		System.out.println("NumPts = "+mydata.getNumPts());
 		System.out.println("Data Range = "+mydata.getMinX()+"/"+mydata.getMaxX()+"/"+
@@ -62,8 +103,13 @@ public class MultiRegressLines {
 		System.out.println(line1);
 		System.out.println(line2);
 		System.out.println(line3);
+		System.out.println(plan);
+		if(System.getProperty("multiregresslines.residuals") != null)
+			exportResiduals(mydata, line1, line2, line3,
+							System.getProperty("multiregresslines.residuals"));
+		if(FitMetrics.isEnabled()) System.out.println(FitMetrics.report());
 
-		DataPlotWindow myplot = new DataPlotWindow(mydata);
+		DataPlotWindow myplot = new DecimatedPlotWindow(mydata);
 		//DepthDataPlotWindow myplot = new DepthDataPlotWindow(mydata);
 
 		myplot.addDataSeries(line1.getEndPoints());
@@ -74,4 +120,135 @@ public class MultiRegressLines {
 			"     SSres3="+String.format("%4.2f",line3.getR()));
 
     }
+
+    /** Writes each point's fitted values and residuals under the three
+     *  fits to a file, as CSV if its name ends in .csv, otherwise binary. */
+    static void exportResiduals(DataSeries mydata, SingleRegressionLine line1,
+			DoubleRegressionLine line2, TripleRegressionLine line3, String filename) {
+		ResidualExporter exporter = new ResidualExporter(line1, line2, line3);
+		int format = filename.toLowerCase().endsWith(".csv") ?
+			ResidualExporter.CSV : ResidualExporter.BINARY;
+		try {
+			exporter.export(mydata, new java.io.File(filename), format);
+		} catch(java.io.IOException e) {
+			System.out.println("Can't write "+filename+": "+e.getMessage());
+			return;
+		}
+		System.out.println("Residuals of "+exporter.getNumPts()+" points written to "+filename+
+			String.format(" (%.1f MB/s)", exporter.getMBPerSec()));
+    }
+
+    /** Fits every y column of a multi-column data file against its x
+     *  column, sorting the x values just once for all of them, and lists
+     *  and plots the fits of each column. */
+    static void fitColumns(String filename) {
+		MultiColumnFit fits;
+		System.out.println("Data file "+filename+" (x y1 y2 ...):  Calculating...");
+		FitMetrics.Probe probe = new FitMetrics.Probe("MultiRegressLines", 0);
+		probe.begin(FitMetrics.LOAD);
+		try {
+			fits = MultiColumnFit.loadFromFile(filename, true);
+		} catch(java.io.IOException e) {
+			System.out.println("Can't load "+filename+": "+e.getMessage());
+			System.exit(1);
+			return;
+		}
+		probe.end();
+		System.out.println("NumPts = "+fits.getNumPts()+
+						   ", NumColumns = "+fits.getNumColumns()+"\n");
+		for(int k=0; k<fits.getNumColumns(); k++) {
+			System.out.println("Column y"+(k+1)+":");
+			System.out.println(fits.getSingle(k));
+			System.out.println(fits.getDouble(k));
+			System.out.println(fits.getTriple(k));
+
+			DataPlotWindow myplot = new DecimatedPlotWindow(fits.getColumn(k));
+			myplot.addDataSeries(fits.getSingle(k).getEndPoints());
+			myplot.addDataSeries(fits.getDouble(k).getEndPoints());
+			myplot.addDataSeries(fits.getTriple(k).getEndPoints());
+			myplot.setTitle("y"+(k+1)+
+				":  SSres1="+String.format("%4.2f",fits.getSingle(k).getR())+
+				"     SSres2="+String.format("%4.2f",fits.getDouble(k).getR())+
+				"     SSres3="+String.format("%4.2f",fits.getTriple(k).getR()));
+		}
+		if(FitMetrics.isEnabled()) System.out.println(FitMetrics.report());
+    }
+
+    /** Chooses the number of lines to fit to a data file by 10-fold
+     *  cross-validation, and lists the scores and the chosen fit. */
+    static void crossValidate(String filename) {
+		DataSeries mydata;
+		System.out.println("Data file "+filename+":  Cross-validating...");
+		try {
+			mydata = new ParallelLoader(filename, 0).toDataSeries();
+		} catch(java.io.IOException e) {
+			System.out.println("Can't load "+filename+": "+e.getMessage());
+			System.exit(1);
+			return;
+		}
+		CrossValidatedFit cv = new CrossValidatedFit(mydata,
+			Math.min(10, mydata.getNumPts()), 4, 0, 0);
+		System.out.println(cv.report());
+		PiecewiseLinearModel model = cv.getModel();
+		System.out.println(model!=null ? model.toString() :
+			"No model of "+cv.getBestOrder()+" lines could be fitted to all the points");
+		if(FitMetrics.isEnabled()) System.out.println(FitMetrics.report());
+    }
+
+    /** Fits three lines to the data of a file by the exhaustive search,
+     *  and again by the pruned, the budgeted (with no time limit) and the
+     *  warm-started searches, the last from several prior breakpoints,
+     *  and reports whether each came to the same fit, as they all should;
+     *  exits with status 1 if any didn't. */
+    static void checkSearches(String filename) {
+		DataSeries mydata;
+		System.out.println("Data file "+filename+":  Checking the three-line searches...");
+		try {
+			mydata = new ParallelLoader(filename, 0).toDataSeries();
+		} catch(java.io.IOException e) {
+			System.out.println("Can't load "+filename+": "+e.getMessage());
+			System.exit(1);
+			return;
+		}
+		TripleRegressionLine cold = new TripleRegressionLine(mydata);
+		double minX = mydata.getMinX(), maxX = mydata.getMaxX();
+		double[][] priors = {
+			{cold.getX1(), cold.getX2()},
+			{minX, maxX},
+			{(2*minX+maxX)/3, (minX+2*maxX)/3},
+			{(minX+maxX)/2, (minX+maxX)/2},
+			{maxX, minX}};
+		int failed = 0;
+		failed += checkSearch("pruned", cold,
+			new TripleRegressionLine(mydata, true));
+		failed += checkSearch("budgeted", cold,
+			new TripleRegressionLine(mydata, 24L*3600*1000, null));
+		for(int i=0; i<priors.length; i++)
+			failed += checkSearch("warm-started from "+priors[i][0]+", "+priors[i][1], cold,
+				new TripleRegressionLine(mydata, priors[i][0], priors[i][1]));
+		System.out.println(failed==0 ? "All the searches agree with the exhaustive one." :
+			failed+" search(es) disagree with the exhaustive one.");
+		if(failed>0) System.exit(1);
+    }
+
+    /** Compares one search's three-line fit with the exhaustive one's,
+     *  printing the outcome, and returns 1 if they differ, 0 if not */
+    static int checkSearch(String name, TripleRegressionLine cold,
+			TripleRegressionLine fit) {
+		double[] a = {cold.getR(), cold.getX1(), cold.getX2(), cold.getSlope1(),
+			cold.getSlope2(), cold.getSlope3(), cold.getYint1(), cold.getYint2(),
+			cold.getYint3()};
+		double[] b = {fit.getR(), fit.getX1(), fit.getX2(), fit.getSlope1(),
+			fit.getSlope2(), fit.getSlope3(), fit.getYint1(), fit.getYint2(),
+			fit.getYint3()};
+		for(int i=0; i<a.length; i++)
+			if(Double.compare(a[i], b[i])!=0 || !fit.isOptimal()) {
+				System.out.println("   "+name+": DIFFERS, SSres="+fit.getR()+
+					" X1="+fit.getX1()+" X2="+fit.getX2()+" (exhaustive SSres="+
+					cold.getR()+" X1="+cold.getX1()+" X2="+cold.getX2()+")");
+				return 1;
+			}
+		System.out.println("   "+name+": same");
+		return 0;
+    }
 }
@@ -0,0 +1,209 @@
+/** OffHeapSeries.java */
+
+package edu.washington.apl.aganse.dataTools;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * OffHeapSeries holds a series of x,y points outside the Java heap, either
+ * in freshly allocated native memory or mapped from a file, for datasets
+ * (like concatenated multi-year mooring records) too large to keep as a
+ * DataSeries of Point objects.  Points are addressed by long index, so a
+ * series may hold more than 2^31 of them, and the garbage collector never
+ * sees more than a handful of buffer objects however long the series is.
+ * Points are stored as consecutive pairs of 8-byte doubles x,y; in a file
+ * they are little-endian with no header, so the file length is 16 bytes
+ * per point.  The storage is split over buffers of at most 2^26 points
+ * (1 GiB) each, since a single NIO buffer is limited to 2^31 bytes.
+ * A series is used until close() is called, after which any access throws
+ * IllegalStateException.  Closing a file-backed series forces its contents
+ * out to the file (trimmed to the points actually added, for one made by
+ * create()), and drops the buffers; the JDK frees their memory or mapping
+ * when it next reclaims the buffer objects, as it offers no supported way
+ * to unmap them sooner.
+ * The fitters and MomentTable take an OffHeapSeries sorted in order of
+ * increasing x value; unlike a DataSeries it is not sorted for them.
+ * <P>
+ * <B>Limit on distinct x values.</B>  Only the points are off the heap.
+ * The exact fitters (the OffHeapSeries constructors of the
+ * RegressionLine classes and BinarySegmentation) tabulate the moments of
+ * each run of equal x values in a MomentTable on the heap, at 64 bytes a
+ * run, and a table holds at most MomentTable.MAX_RUNS runs (2^31-2).
+ * Long before that the heap runs out (a 4 GiB heap holds some 60
+ * million runs), and the three-phase search, which tries every pair of
+ * runs, becomes impractical above some 10^5 runs.  So a series of as
+ * many distinct x values as points, such as a long time series, can be
+ * fitted exactly only while it is modest; a longer one should be fitted
+ * through BinnedFit (new BinnedFit(series, numBins)), whose cost depends
+ * only on the number of bins, at the price of breakpoints on the bin
+ * grid.  MomentTable(OffHeapSeries) refuses a series of more than
+ * MAX_RUNS runs with an IllegalArgumentException saying so.
+ * @author <A HREF="mailto:aganse@apl.washington.edu">Andy Ganse</A>,<BR>
+ * <A HREF="http://www.apl.washington.edu">Applied Physics Laboratory</A>,<BR>
+ * <A HREF="http://www.washington.edu">University of Washington</A>.
+ * @version 19 Oct 2026
+ * @see <A HREF="DataSeries.html">DataSeries</A>
+ * @see <A HREF="MomentTable.html">MomentTable</A>
+ */
+public class OffHeapSeries {
+
+    static final int CHUNK_SHIFT = 26;        // 2^26 points per buffer
+    static final int CHUNK_MASK = (1<<CHUNK_SHIFT)-1;
+    static final int POINT_BYTES = 16;
+
+    ByteBuffer[] chunks;              // the storage, null once closed
+    long numPts;                      // number of points in the series
+    long capacity;                    // most points the storage can hold
+    boolean writable;
+    FileChannel channel;              // the mapped file, or null
+    boolean trimOnClose;              // cut the file down to numPts on close
+
+    private OffHeapSeries() {
+    }
+
+    /** Returns an empty series in native memory, with room for capacity
+     *  points */
+    public static OffHeapSeries allocate(long capacity) {
+        OffHeapSeries s = new OffHeapSeries();
+        int n = numChunks(capacity);
+        s.chunks = new ByteBuffer[n];
+        for( int c=0; c<n; c++ )
+            s.chunks[c] = ByteBuffer.allocateDirect(chunkBytes(capacity,c))
+                .order(ByteOrder.nativeOrder());
+        s.capacity = capacity;
+        s.writable = true;
+        return s;
+    }
+
+    /** Returns a read-only series of all the points in an existing file */
+    public static OffHeapSeries map(File file) throws IOException {
+        OffHeapSeries s = new OffHeapSeries();
+        s.channel = new RandomAccessFile(file, "r").getChannel();
+        s.numPts = s.capacity = s.channel.size()/POINT_BYTES;
+        s.mapChunks(FileChannel.MapMode.READ_ONLY);
+        return s;
+    }
+
+    /** Returns an empty series backed by file (created, or overwritten),
+     *  with room for capacity points to be added */
+    public static OffHeapSeries create(File file, long capacity)
+        throws IOException {
+        OffHeapSeries s = new OffHeapSeries();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        raf.setLength(capacity*POINT_BYTES);
+        s.channel = raf.getChannel();
+        s.capacity = capacity;
+        s.writable = true;
+        s.trimOnClose = true;
+        s.mapChunks(FileChannel.MapMode.READ_WRITE);
+        return s;
+    }
+
+    private void mapChunks(FileChannel.MapMode mode) throws IOException {
+        int n = numChunks(capacity);
+        chunks = new ByteBuffer[n];
+        for( int c=0; c<n; c++ )
+            chunks[c] = channel.map(mode, ((long)c<<CHUNK_SHIFT)*POINT_BYTES,
+                                    chunkBytes(capacity,c))
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int numChunks(long capacity) {
+        if( capacity<0 )
+            throw new IllegalArgumentException(
+                "OffHeapSeries: negative capacity " + capacity);
+        return (int)((capacity+CHUNK_MASK)>>>CHUNK_SHIFT);
+    }
+
+    private static int chunkBytes(long capacity, int c) {
+        return (int)Math.min(capacity-((long)c<<CHUNK_SHIFT), 1L<<CHUNK_SHIFT)
+            * POINT_BYTES;
+    }
+
+    /** Returns the buffer holding point i */
+    private ByteBuffer chunk(long i) {
+        if( chunks==null )
+            throw new IllegalStateException("OffHeapSeries: already closed");
+        return chunks[(int)(i>>>CHUNK_SHIFT)];
+    }
+
+    /** Returns the number of points in the series */
+    public long getNumPts() {
+        return numPts;
+    }
+    /** Returns the number of points the series has room for */
+    public long getCapacity() {
+        return capacity;
+    }
+    /** Returns the x value of point i */
+    public double getX(long i) {
+        if( i<0 || i>=numPts ) throw new IndexOutOfBoundsException("" + i);
+        return chunk(i).getDouble(((int)i&CHUNK_MASK)*POINT_BYTES);
+    }
+    /** Returns the y value of point i */
+    public double getY(long i) {
+        if( i<0 || i>=numPts ) throw new IndexOutOfBoundsException("" + i);
+        return chunk(i).getDouble(((int)i&CHUNK_MASK)*POINT_BYTES + 8);
+    }
+
+    /** Replaces point i with x,y */
+    public void set(long i, double x, double y) {
+        if( i<0 || i>=numPts ) throw new IndexOutOfBoundsException("" + i);
+        if( !writable )
+            throw new IllegalStateException("OffHeapSeries: read-only");
+        ByteBuffer b = chunk(i);
+        int off = ((int)i&CHUNK_MASK)*POINT_BYTES;
+        b.putDouble(off, x);
+        b.putDouble(off+8, y);
+    }
+
+    /** Appends the point x,y to the end of the series */
+    public void add(double x, double y) {
+        if( numPts>=capacity )
+            throw new IllegalStateException(
+                "OffHeapSeries: full at " + capacity + " points");
+        numPts++;
+        set(numPts-1, x, y);
+    }
+
+    /** Appends all the points of a DataSeries, in their current order */
+    public void addAll(DataSeries data) {
+        for( int i=0; i<data.getNumPts(); i++ )
+            add(data.getX(i), data.getY(i));
+    }
+
+    /** Returns whether the points are in order of increasing x value */
+    public boolean isSorted() {
+        for( long i=1; i<numPts; i++ )
+            if( getX(i)<getX(i-1) ) return false;
+        return true;
+    }
+
+    /** Returns points from (inclusive) through to (exclusive) as an
+     *  ordinary DataSeries on the heap, eg. for plotting a piece of the
+     *  series */
+    public DataSeries toDataSeries(long from, long to) {
+        DataSeries data = new DataSeries();
+        for( long i=from; i<to; i++ )
+            data.add(getX(i), getY(i));
+        return data;
+    }
+
+    /** Ends the life of the series: writes a file-backed series out to its
+     *  file and releases the storage.  Closing twice does nothing. */
+    public void close() throws IOException {
+        if( chunks==null ) return;
+        if( channel!=null && writable )
+            for( int c=0; c<chunks.length; c++ )
+                ((MappedByteBuffer)chunks[c]).force();
+        chunks = null;
+        if( channel!=null ) {
+            if( trimOnClose ) channel.truncate(numPts*POINT_BYTES);
+            channel.close();
+            channel = null;
+        }
+    }
+}
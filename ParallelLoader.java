@@ -0,0 +1,359 @@
+/** ParallelLoader.java */
+
+package edu.washington.apl.aganse.dataTools;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * ParallelLoader reads ascii x,y data files on several threads at once,
+ * for files large enough that DataSeries.loadFromFile() would take longer
+ * than the fits themselves.  Each file is cut into chunks at line
+ * boundaries, the chunks are parsed on a pool of threads into primitive
+ * arrays of x and y, and the arrays are joined back together in file and
+ * chunk order, so the points come out in the same order as from
+ * loadFromFile(): data that was sorted in the file is still sorted, and
+ * isSorted() says so.  (The fitters' MomentTable.sort() then costs just
+ * a linear check.)
+ * <P>
+ * The format is that of loadFromFile(): each line holds x and y as the
+ * first two whitespace-separated numbers, further fields on the line are
+ * ignored, and a line starting with '&gt;' ends the file's data.  Blank
+ * lines are skipped.  Numbers are parsed directly from the file's bytes:
+ * those of at most 15 significant digits and a decimal exponent within
+ * +/-22 (which covers most instrument data) take an exact fast path,
+ * being an integer of at most 53 bits multiplied or divided by an exactly
+ * representable power of ten, which is correctly rounded just as
+ * Double.parseDouble() is; anything else (more digits, larger exponents,
+ * NaN, Infinity, hex) is handed to Double.parseDouble().  Either way the
+ * values are exactly those loadFromFile() would read.
+ * @author <A HREF="mailto:aganse@apl.washington.edu">Andy Ganse</A>,<BR>
+ * <A HREF="http://www.apl.washington.edu">Applied Physics Laboratory</A>,<BR>
+ * <A HREF="http://www.washington.edu">University of Washington</A>.
+ * @version 19 Oct 2026
+ * @see <A HREF="DataSeries.html">DataSeries</A>
+ * @see <A HREF="OffHeapSeries.html">OffHeapSeries</A>
+ */
+public class ParallelLoader {
+
+    static final int MIN_CHUNK = 1<<20;       // least bytes per chunk
+    static final int MAX_CHUNK = 1<<30;       // most bytes per chunk
+    static final int CHUNKS_PER_THREAD = 4;   // for load balance
+
+    // exactly representable powers of ten, for the fast path
+    private static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    double[] x, y;                    // the points, in file order
+    int numPts;
+    boolean sorted;                   // whether x never decreases
+    long parseNanos;                  // wall-clock time of the load
+
+    /** Loads one file on nthreads threads (0 for one per processor) */
+    public ParallelLoader(String filename, int nthreads) throws IOException {
+        this(new String[] {filename}, nthreads);
+    }
+
+    /** Loads several files, one after another in the order given, as
+     *  though they were one; each file's data ends at the end of the file
+     *  or at its first '&gt;' line, whichever comes first. */
+    public ParallelLoader(String[] filenames, int nthreads)
+        throws IOException {
+        long start = System.nanoTime();
+        if( nthreads<=0 ) nthreads = Runtime.getRuntime().availableProcessors();
+        FitMetrics.Probe probe = new FitMetrics.Probe("ParallelLoader", 0);
+        probe.begin(FitMetrics.LOAD);
+        Vector chunks = new Vector();
+        FileChannel[] channels = new FileChannel[filenames.length];
+        ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+        try {
+            for( int f=0; f<filenames.length; f++ ) {
+                channels[f] = new FileInputStream(filenames[f]).getChannel();
+                long size = channels[f].size();
+                long step = Math.min(MAX_CHUNK, Math.max(MIN_CHUNK,
+                    size/(nthreads*CHUNKS_PER_THREAD)+1));
+                for( long pos=0; pos<size; pos+=step ) {
+                    Chunk c = new Chunk(filenames[f], f, channels[f], pos,
+                                        Math.min(pos+step, size));
+                    c.done = pool.submit(c);
+                    chunks.add(c);
+                }
+            }
+            for(Enumeration e=chunks.elements(); e.hasMoreElements(); )
+                ((Chunk)e.nextElement()).done.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("ParallelLoader: interrupted");
+        } catch(ExecutionException e) {
+            if( e.getCause() instanceof IOException )
+                throw (IOException)e.getCause();
+            if( e.getCause() instanceof RuntimeException )
+                throw (RuntimeException)e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+            for( int f=0; f<channels.length; f++ )
+                if( channels[f]!=null ) channels[f].close();
+        }
+        join(chunks);
+        probe.end();
+        probe.finish(numPts, 0, 0, 0);
+        parseNanos = System.nanoTime()-start;
+    }
+
+    /** Joins the chunks' points in order, dropping those after a '>' line
+     *  in the same file */
+    private void join(Vector chunks) throws IOException {
+        Chunk c;
+        int stoppedFile = -1;
+        long total = 0;
+        for(Enumeration e=chunks.elements(); e.hasMoreElements(); ) {
+            c = (Chunk)e.nextElement();
+            if( c.file==stoppedFile ) c.n = 0;
+            else if( c.stopped ) stoppedFile = c.file;
+            total += c.n;
+        }
+        if( total>Integer.MAX_VALUE-8 )
+            throw new IOException("ParallelLoader: " + total + " points " +
+                "is too many for arrays; see OffHeapSeries.create()");
+        numPts = (int)total;
+        x = new double[numPts];
+        y = new double[numPts];
+        sorted = true;
+        int i = 0;
+        for(Enumeration e=chunks.elements(); e.hasMoreElements(); ) {
+            c = (Chunk)e.nextElement();
+            if( c.n==0 ) continue;
+            if( !c.sorted || (i>0 && !(c.x[0]>=x[i-1])) ) sorted = false;
+            System.arraycopy(c.x, 0, x, i, c.n);
+            System.arraycopy(c.y, 0, y, i, c.n);
+            i += c.n;
+            c.x = c.y = null;
+        }
+    }
+
+    /** Returns the number of points loaded */
+    public int getNumPts() {
+        return numPts;
+    }
+    /** Returns the x values in file order (the loader's own array) */
+    public double[] getXArray() {
+        return x;
+    }
+    /** Returns the y values in file order (the loader's own array) */
+    public double[] getYArray() {
+        return y;
+    }
+    /** Returns whether the x values never decrease through the files */
+    public boolean isSorted() {
+        return sorted;
+    }
+    /** Returns the wall-clock time the load took in millisecs */
+    public double getLoadMillis() {
+        return parseNanos/1e6;
+    }
+    /** Returns the points as a new DataSeries, in file order */
+    public DataSeries toDataSeries() {
+        DataSeries data = new DataSeries();
+        for( int i=0; i<numPts; i++ )
+            data.add(x[i], y[i]);
+        return data;
+    }
+    /** Returns the points as a new OffHeapSeries in native memory, in file
+     *  order (which the fitters need to be sorted, see isSorted()) */
+    public OffHeapSeries toOffHeapSeries() {
+        OffHeapSeries series = OffHeapSeries.allocate(numPts);
+        for( int i=0; i<numPts; i++ )
+            series.add(x[i], y[i]);
+        return series;
+    }
+
+    /** One chunk of a file: the lines that start in bytes start through
+     *  end-1, parsed when the pool runs it */
+    private static class Chunk implements Callable {
+        String filename;
+        int file;                     // index of the file in the list
+        FileChannel channel;
+        long start, end;
+        Future done;
+        double[] x = new double[1024], y = new double[1024];
+        int n;                        // number of points parsed
+        boolean sorted = true;        // whether x never decreases
+        boolean stopped;              // whether a '>' line ended the data
+        long base;                    // file offset of the buffer parsed
+
+        Chunk(String filename, int file, FileChannel channel, long start,
+              long end) {
+            this.filename = filename;
+            this.file = file;
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        public Object call() throws IOException {
+            // read from the byte before start, to tell whether start begins
+            // a line, on past end until the last line is finished
+            long from = Math.max(start-1, 0);
+            byte[] buf = read(from, (int)(end-from));
+            int len = buf.length;
+            while( true ) {
+                int i = len-1;
+                if( len>0 && buf[i]=='\n' ) break;
+                byte[] more = read(from+len, 1<<16);
+                if( more.length==0 ) break;                     // EOF
+                if( len+more.length>buf.length ) {
+                    byte[] b = new byte[Math.max(2*buf.length,
+                                                 len+more.length)];
+                    System.arraycopy(buf, 0, b, 0, len);
+                    buf = b;
+                }
+                System.arraycopy(more, 0, buf, len, more.length);
+                // only the new bytes can hold the end of the line
+                int scan = len;
+                len += more.length;
+                while( scan<len && buf[scan]!='\n' ) scan++;
+                if( scan<len ) { len = scan+1; break; }
+            }
+            int p = 0;
+            if( start>0 ) {
+                // skip the rest of a line begun in the previous chunk
+                while( p<len && buf[p]!='\n' ) p++;
+                p++;
+            }
+            base = from;
+            parse(buf, p, len);
+            return null;
+        }
+
+        /** Reads up to length bytes of the file from pos */
+        private byte[] read(long pos, int length) throws IOException {
+            ByteBuffer b = ByteBuffer.allocate(length);
+            while( b.hasRemaining() ) {
+                int r = channel.read(b, pos+b.position());
+                if( r<0 ) break;
+            }
+            if( b.position()==length ) return b.array();
+            byte[] a = new byte[b.position()];
+            System.arraycopy(b.array(), 0, a, 0, a.length);
+            return a;
+        }
+
+        /** Parses the lines in buf from p up to len */
+        private void parse(byte[] buf, int p, int len) throws IOException {
+            int[] pos = new int[1];
+            double xi, yi;
+            while( p<len ) {
+                int eol = p;
+                while( eol<len && buf[eol]!='\n' ) eol++;
+                if( buf[p]=='>' ) {
+                    stopped = true;
+                    return;
+                }
+                pos[0] = p;
+                if( skipSpace(buf, pos, eol) ) {
+                    xi = parseNumber(buf, pos, eol);
+                    if( !skipSpace(buf, pos, eol) )
+                        throw new IOException(filename +
+                            ": no y value on the line at byte " + (base+p));
+                    yi = parseNumber(buf, pos, eol);
+                    if( n==x.length ) {
+                        double[] t = new double[2*n];
+                        System.arraycopy(x, 0, t, 0, n);
+                        x = t;
+                        t = new double[2*n];
+                        System.arraycopy(y, 0, t, 0, n);
+                        y = t;
+                    }
+                    if( n>0 && !(xi>=x[n-1]) ) sorted = false;
+                    x[n] = xi;
+                    y[n] = yi;
+                    n++;
+                }
+                p = eol+1;
+            }
+        }
+
+        /** Parses the number starting at pos[0], leaving pos[0] after it */
+        private double parseNumber(byte[] buf, int[] pos, int eol)
+            throws IOException {
+            int p = pos[0], q = p;
+            while( q<eol && !isSpace(buf[q]) ) q++;
+            pos[0] = q;
+            double v = fastParse(buf, p, q);
+            if( v==v ) return v;
+            // not for the fast path (or a real NaN), so do it the slow way
+            String s = new String(buf, p, q-p, "ISO-8859-1");
+            try {
+                return Double.parseDouble(s);
+            } catch(NumberFormatException e) {
+                throw new IOException(filename + ": bad number \"" + s +
+                                      "\"");
+            }
+        }
+    }
+
+    /** Moves pos[0] past spaces and tabs, returning whether anything but
+     *  the end of the line follows */
+    private static boolean skipSpace(byte[] buf, int[] pos, int eol) {
+        int p = pos[0];
+        while( p<eol && isSpace(buf[p]) ) p++;
+        pos[0] = p;
+        return p<eol;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b==' ' || b=='\t' || b=='\r' || b=='\f';
+    }
+
+    /** Returns the decimal number in buf[p] through buf[q-1], or NaN if it
+     *  isn't one the fast path can do exactly */
+    static double fastParse(byte[] buf, int p, int q) {
+        boolean neg = false;
+        long m = 0;                       // significant digits
+        int digits = 0;                   // number of them, after any
+                                          //   leading zeros
+        int exp = 0;                      // decimal exponent of m
+        boolean any = false;
+        if( p<q && (buf[p]=='-' || buf[p]=='+') ) neg = buf[p++]=='-';
+        for( ; p<q && buf[p]>='0' && buf[p]<='9'; p++ ) {
+            any = true;
+            if( m==0 && buf[p]=='0' ) continue;
+            if( ++digits>15 ) return Double.NaN;
+            m = 10*m + (buf[p]-'0');
+        }
+        if( p<q && buf[p]=='.' ) {
+            for( p++; p<q && buf[p]>='0' && buf[p]<='9'; p++ ) {
+                any = true;
+                exp--;
+                if( m==0 && buf[p]=='0' ) continue;
+                if( ++digits>15 ) return Double.NaN;
+                m = 10*m + (buf[p]-'0');
+            }
+        }
+        if( !any ) return Double.NaN;
+        if( p<q && (buf[p]=='e' || buf[p]=='E') ) {
+            boolean eneg = false;
+            int e = 0, edigits = 0;
+            p++;
+            if( p<q && (buf[p]=='-' || buf[p]=='+') ) eneg = buf[p++]=='-';
+            for( ; p<q && buf[p]>='0' && buf[p]<='9'; p++ ) {
+                if( ++edigits>3 ) return Double.NaN;
+                e = 10*e + (buf[p]-'0');
+            }
+            if( edigits==0 ) return Double.NaN;
+            exp += eneg ? -e : e;
+        }
+        if( p!=q ) return Double.NaN;
+        double v;
+        if( m==0 ) v = 0;
+        else if( exp>=0 && exp<=22 ) v = m*POW10[exp];
+        else if( exp<0 && exp>=-22 ) v = m/POW10[-exp];
+        else return Double.NaN;
+        return neg ? -v : v;
+    }
+}
@@ -0,0 +1,274 @@
+/** PiecewiseLinearModel.java */
+
+package edu.washington.apl.aganse.dataTools;
+
+import java.io.*;
+
+/**
+ * PiecewiseLinearModel is the result of a regression fit reduced to what is
+ * needed to evaluate it: the breakpoints and the slope and y-intercept of
+ * each line, with none of the data or search state of the fitter.  It is
+ * immutable, so one model can be shared by any number of threads, and it
+ * evaluates whole arrays of x values at a time, for producing gridded
+ * products on dense output grids.
+ * Line s applies from breakpoint s-1 up to and including breakpoint s, as
+ * in getEndPoints() of the fitters, and the first and last lines are
+ * extended beyond the breakpoints without limit; the x range of the
+ * original data is kept (getMinX(), getMaxX()) for callers that want to
+ * limit themselves to it.
+ * A model can be written to and read back from a compact binary form:
+ * <PRE>
+ *    int    MAGIC ("PLM1")
+ *    int    number of lines, k
+ *    double minX, maxX
+ *    double k-1 breakpoints, k slopes, k y-intercepts
+ * </PRE>
+ * all big-endian as written by a DataOutput.
+ * @author <A HREF="mailto:aganse@apl.washington.edu">Andy Ganse</A>,<BR>
+ * <A HREF="http://www.apl.washington.edu">Applied Physics Laboratory</A>,<BR>
+ * <A HREF="http://www.washington.edu">University of Washington</A>.
+ * @version 19 Oct 2026
+ * @see <A HREF="SingleRegressionLine.html">SingleRegressionLine</A>
+ * @see <A HREF="DoubleRegressionLine.html">DoubleRegressionLine</A>
+ * @see <A HREF="TripleRegressionLine.html">TripleRegressionLine</A>
+ */
+public final class PiecewiseLinearModel {
+
+    static final int MAGIC = 0x504c4d31;    // "PLM1"
+
+    private final double[] breaks;    // breakpoints, increasing, k-1 of them
+    private final double[] slopes;    // slope of each line, k of them
+    private final double[] yints;     // y-intercept of each line
+    private final double minX, maxX;  // x range of the fitted data
+
+    /** Creates a model of the k lines with the given slopes and
+     *  y-intercepts, separated by the k-1 breakpoints (which must not
+     *  decrease).  The arrays are copied. */
+    public PiecewiseLinearModel(double[] newbreaks, double[] newslopes,
+                                double[] newyints, double newminX,
+                                double newmaxX) {
+        if( newslopes.length<1 || newyints.length!=newslopes.length ||
+            newbreaks.length!=newslopes.length-1 )
+            throw new IllegalArgumentException(
+                "PiecewiseLinearModel: need k slopes and y-intercepts and " +
+                "k-1 breakpoints, got " + newslopes.length + ", " +
+                newyints.length + " and " + newbreaks.length);
+        for( int s=1; s<newbreaks.length; s++ )
+            if( !(newbreaks[s]>=newbreaks[s-1]) )
+                throw new IllegalArgumentException(
+                    "PiecewiseLinearModel: breakpoints out of order at " + s);
+        breaks = newbreaks.clone();
+        slopes = newslopes.clone();
+        yints = newyints.clone();
+        minX = newminX;
+        maxX = newmaxX;
+    }
+
+    /** The model of a single-line fit */
+    public PiecewiseLinearModel(SingleRegressionLine line) {
+        this(new double[0], new double[] {line.getSlope()},
+             new double[] {line.getYint()},
+             line.getEndPoints().getX(0), line.getEndPoints().getX(1));
+    }
+
+    /** The model of a two-phase fit */
+    public PiecewiseLinearModel(DoubleRegressionLine line) {
+        this(new double[] {line.getX1()},
+             new double[] {line.getSlope1(), line.getSlope2()},
+             new double[] {line.getYint1(), line.getYint2()},
+             line.getEndPoints().getX(0), line.getEndPoints().getX(2));
+    }
+
+    /** The model of a three-phase fit.  The fitter's lines meet where
+     *  they meet, so its X1 can come out above X2, or either can be NaN
+     *  (lines that don't meet); the model then applies the lines as the
+     *  fit's own sections do, the first up to X1 and the second from
+     *  there up to X2: a NaN X1 counts as minus infinity, and X2 as no
+     *  less than that breakpoint (so the middle line may apply nowhere),
+     *  or as equal to it when X2 is NaN. */
+    public PiecewiseLinearModel(TripleRegressionLine line) {
+        this(tripleBreaks(line.getX1(), line.getX2()),
+             new double[] {line.getSlope1(), line.getSlope2(),
+                           line.getSlope3()},
+             new double[] {line.getYint1(), line.getYint2(),
+                           line.getYint3()},
+             line.getEndPoints().getX(0), line.getEndPoints().getX(3));
+    }
+
+    /** The breakpoints of a three-phase fit whose lines meet at x1 and
+     *  x2, in order (see PiecewiseLinearModel(TripleRegressionLine)) */
+    private static double[] tripleBreaks(double x1, double x2) {
+        double b1 = Double.isNaN(x1) ? Double.NEGATIVE_INFINITY : x1;
+        double b2 = Double.isNaN(x2) ? b1 : Math.max(x2, b1);
+        return new double[] {b1, b2};
+    }
+
+    /** Returns the number of lines */
+    public int getNumLines() {
+        return slopes.length;
+    }
+    /** Returns breakpoint s, between lines s and s+1 */
+    public double getBreak(int s) {
+        return breaks[s];
+    }
+    /** Returns the slope of line s */
+    public double getSlope(int s) {
+        return slopes[s];
+    }
+    /** Returns the y-intercept of line s */
+    public double getYint(int s) {
+        return yints[s];
+    }
+    /** Returns the least x value of the fitted data */
+    public double getMinX() {
+        return minX;
+    }
+    /** Returns the greatest x value of the fitted data */
+    public double getMaxX() {
+        return maxX;
+    }
+
+    /** Returns the line that applies at x: the number of breakpoints less
+     *  than x, found by binary search */
+    public int lineOf(double x) {
+        int lo = 0, hi = breaks.length;
+        while( lo<hi ) {
+            int mid = (lo+hi)>>>1;
+            if( breaks[mid]<x ) lo = mid+1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /** Returns the model's y value at x */
+    public double predict(double x) {
+        int s = lineOf(x);
+        return slopes[s]*x + yints[s];
+    }
+
+    /** Puts the model's y value at each xs[i] into out[i].  The line for
+     *  each x is found by stepping on from the previous x's line while the
+     *  xs increase, so sorted xs cost one pass over the breakpoints in
+     *  all; where the xs step back the line is found by binary search
+     *  instead, so the xs needn't be sorted. */
+    public void predict(double[] xs, double[] out) {
+        predict(xs, 0, out, 0, xs.length);
+    }
+
+    /** Same, for xs[from] through xs[from+n-1] into out[to] onwards */
+    public void predict(double[] xs, int from, double[] out, int to, int n) {
+        int s = 0, last = breaks.length;
+        double prev = Double.NEGATIVE_INFINITY;
+        double x;
+        for( int i=0; i<n; i++ ) {
+            x = xs[from+i];
+            if( x>=prev )
+                while( s<last && breaks[s]<x ) s++;
+            else
+                s = lineOf(x);
+            out[to+i] = slopes[s]*x + yints[s];
+            if( x==x ) prev = x;          // a NaN x leaves the line as is
+        }
+    }
+
+    /** Puts the residuals ys[i] minus the model at xs[i] into out[i] (which
+     *  may be ys itself), and returns their sum of squares */
+    public double residuals(double[] xs, double[] ys, double[] out) {
+        double r, sum = 0;
+        if( ys.length!=xs.length )
+            throw new IllegalArgumentException(
+                "PiecewiseLinearModel: " + xs.length + " x values and " +
+                ys.length + " y values");
+        if( out!=ys ) System.arraycopy(ys, 0, out, 0, ys.length);
+        // predict into a block at a time, then subtract in place
+        double[] block = new double[Math.min(xs.length, 4096)];
+        for( int i=0; i<xs.length; i+=block.length ) {
+            int n = Math.min(block.length, xs.length-i);
+            predict(xs, i, block, 0, n);
+            for( int j=0; j<n; j++ ) {
+                r = out[i+j] - block[j];
+                out[i+j] = r;
+                sum += r*r;
+            }
+        }
+        return sum;
+    }
+
+    /** Returns the sum of squares of the residuals of data from the model */
+    public double residSumSq(DataSeries data) {
+        double r, sum = 0;
+        for( int i=0; i<data.getNumPts(); i++ ) {
+            r = data.getY(i) - predict(data.getX(i));
+            sum += r*r;
+        }
+        return sum;
+    }
+
+    /** Writes the model in its binary form */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(slopes.length);
+        out.writeDouble(minX);
+        out.writeDouble(maxX);
+        for( int s=0; s<breaks.length; s++ ) out.writeDouble(breaks[s]);
+        for( int s=0; s<slopes.length; s++ ) out.writeDouble(slopes[s]);
+        for( int s=0; s<yints.length; s++ ) out.writeDouble(yints[s]);
+    }
+
+    /** Reads a model written by writeTo() */
+    public static PiecewiseLinearModel readFrom(DataInput in)
+        throws IOException {
+        if( in.readInt()!=MAGIC )
+            throw new IOException("PiecewiseLinearModel: not a model");
+        int k = in.readInt();
+        if( k<1 || k>1<<20 )
+            throw new IOException("PiecewiseLinearModel: bad number of " +
+                                  "lines " + k);
+        double newminX = in.readDouble();
+        double newmaxX = in.readDouble();
+        double[] newbreaks = new double[k-1];
+        double[] newslopes = new double[k];
+        double[] newyints = new double[k];
+        for( int s=0; s<k-1; s++ ) newbreaks[s] = in.readDouble();
+        for( int s=0; s<k; s++ ) newslopes[s] = in.readDouble();
+        for( int s=0; s<k; s++ ) newyints[s] = in.readDouble();
+        try {
+            return new PiecewiseLinearModel(newbreaks, newslopes, newyints,
+                                            newminX, newmaxX);
+        } catch(IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /** Returns the model's binary form as a byte array */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream buf =
+            new ByteArrayOutputStream(16 + 8*(2+3*slopes.length));
+        try {
+            writeTo(new DataOutputStream(buf));
+        } catch(IOException e) {
+            throw new RuntimeException(e);  // can't happen in memory
+        }
+        return buf.toByteArray();
+    }
+
+    /** Returns the model whose binary form is in b */
+    public static PiecewiseLinearModel fromByteArray(byte[] b)
+        throws IOException {
+        return readFrom(new DataInputStream(new ByteArrayInputStream(b)));
+    }
+
+    /** return a String representation listing the lines and breakpoints */
+    public String toString() {
+        StringBuffer sb = new StringBuffer("PiecewiseLinearModel: " +
+            slopes.length + " line(s) fitted over " + minX + " to " + maxX +
+            "\n");
+        for( int s=0; s<slopes.length; s++ ) {
+            sb.append("      Slope" + (s+1) + " = " + slopes[s] +
+                      ", Yint" + (s+1) + " = " + yints[s] + "\n");
+            if( s<breaks.length )
+                sb.append("      X" + (s+1) + " = " + breaks[s] + "\n");
+        }
+        return sb.toString();
+    }
+}
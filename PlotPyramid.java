@@ -0,0 +1,197 @@
+/** PlotPyramid.java */
+
+package edu.washington.apl.aganse.dataTools;
+
+/**
+ * PlotPyramid downsamples a large series of x,y points for display, so
+ * that plotting a million-point cast costs in proportion to the width of
+ * the plot in pixels rather than to the number of points.  The points are
+ * copied out in order of x, and over them is built a pyramid of levels,
+ * level k holding for each block of 2^k consecutive points the index of
+ * its lowest and of its highest y value; this costs about 8 bytes per
+ * point beyond the copy of x and y, and O(n) time to build (plus a sort if
+ * the points aren't already in order of x).
+ * decimate() then divides an x range into pixel columns and returns for
+ * each column the points with its least and greatest y, found from the
+ * pyramid in O(log n) whatever the number of points in the column, so
+ * outliers are never dropped however far out the plot is zoomed.  To keep
+ * some of the texture inside a dense column (which as dots would
+ * otherwise show only the top and bottom of the scatter), a few more
+ * points evenly spaced through the column are returned with them.  The
+ * first and last points of the range are always included, so a plot of
+ * the result spans the same x extent as the data.  Points are returned
+ * as they are in the data, never averaged or moved.
+ * @author <A HREF="mailto:aganse@apl.washington.edu">Andy Ganse</A>,<BR>
+ * <A HREF="http://www.apl.washington.edu">Applied Physics Laboratory</A>,<BR>
+ * <A HREF="http://www.washington.edu">University of Washington</A>.
+ * @version 19 Oct 2026
+ * @see <A HREF="DecimatedPlotWindow.html">DecimatedPlotWindow</A>
+ * @see <A HREF="DataSeries.html">DataSeries</A>
+ */
+public class PlotPyramid {
+
+    double[] x, y;                    // the points, in order of x
+    int[][] lo, hi;                   // lo[k-1][b]: index of least y in
+                                      // block b of 2^k points (hi: greatest)
+
+    /** Creates the pyramid of the points of data, in any order (data
+     *  itself is left as it is) */
+    public PlotPyramid(DataSeries data) {
+        this(data.xToArray(), data.yToArray());
+    }
+
+    /** Creates the pyramid of the points newx[i],newy[i], in any order;
+     *  the arrays are copied, not kept */
+    public PlotPyramid(double[] newx, double[] newy) {
+        int n = newx.length, k, b, m, i;
+        if( newy.length!=n )
+            throw new IllegalArgumentException("PlotPyramid: " + n +
+                " x values but " + newy.length + " y values");
+        x = new double[n];
+        y = new double[n];
+        if( MomentTable.isSorted(newx) ) {
+            System.arraycopy(newx, 0, x, 0, n);
+            System.arraycopy(newy, 0, y, 0, n);
+        } else {
+            int[] order = MomentTable.sortOrder(newx);
+            for( i=0; i<n; i++ ) {
+                x[i] = newx[order[i]];
+                y[i] = newy[order[i]];
+            }
+        }
+        for( k=0; (n>>(k+1))>0; k++ );
+        lo = new int[k][];
+        hi = new int[k][];
+        for( k=0; k<lo.length; k++ ) {
+            m = n>>(k+1);
+            lo[k] = new int[m];
+            hi[k] = new int[m];
+            for( b=0; b<m; b++ ) {
+                int a0, a1, b0, b1;
+                if( k==0 ) {
+                    a0 = b0 = 2*b;
+                    a1 = b1 = 2*b+1;
+                } else {
+                    a0 = lo[k-1][2*b];
+                    a1 = lo[k-1][2*b+1];
+                    b0 = hi[k-1][2*b];
+                    b1 = hi[k-1][2*b+1];
+                }
+                lo[k][b] = lower(a1, a0) ? a1 : a0;
+                hi[k][b] = higher(b1, b0) ? b1 : b0;
+            }
+        }
+    }
+
+    /** Whether point i's y is below point j's (NaN y counting as neither
+     *  lowest nor highest) */
+    private boolean lower(int i, int j) {
+        return y[i]<y[j] || (Double.isNaN(y[j]) && !Double.isNaN(y[i]));
+    }
+    private boolean higher(int i, int j) {
+        return y[i]>y[j] || (Double.isNaN(y[j]) && !Double.isNaN(y[i]));
+    }
+
+    /** Returns the number of points */
+    public int getNumPts() {
+        return x.length;
+    }
+    /** Returns the least x value */
+    public double getMinX() {
+        return x.length>0 ? x[0] : Double.NaN;
+    }
+    /** Returns the greatest x value (other than NaN) */
+    public double getMaxX() {
+        int i = x.length;
+        while( i>0 && Double.isNaN(x[i-1]) ) i--;
+        return i>0 ? x[i-1] : Double.NaN;
+    }
+
+    /** Returns the index of the first point with x at or above X (if
+     *  after is false) or above X (if after is true) */
+    int indexOf(double X, boolean after) {
+        int a = 0, b = x.length, c, cmp;
+        while( a<b ) {
+            c = (a+b)>>>1;
+            cmp = Double.compare(x[c], X);
+            if( cmp<0 || (after && cmp==0) ) a = c+1;
+            else b = c;
+        }
+        return a;
+    }
+
+    /** Puts the indices of the least and greatest y among points i0 to
+     *  i1-1 (i0&lt;i1) into ext[0] and ext[1], by covering the range with
+     *  the largest aligned blocks of the pyramid that fit in it */
+    void extremes(int i0, int i1, int[] ext) {
+        int i = i0, k, a, b;
+        ext[0] = ext[1] = i0;
+        while( i<i1 ) {
+            for( k=0; k<lo.length && (i&((2<<k)-1))==0 && i+(2<<k)<=i1;
+                 k++ );
+            if( k==0 )
+                a = b = i;
+            else {
+                a = lo[k-1][i>>k];
+                b = hi[k-1][i>>k];
+            }
+            if( lower(a, ext[0]) ) ext[0] = a;
+            if( higher(b, ext[1]) ) ext[1] = b;
+            i += 1<<k;
+        }
+    }
+
+    /** Returns the points to draw for the x range xlo to xhi divided into
+     *  columns pixel columns, as {x values, y values} in order of x: in
+     *  each column, the points with its least and greatest y and up to
+     *  perColumn-2 more spread evenly through it (all its points if it has
+     *  no more than perColumn).  At most columns*perColumn+2 points are
+     *  returned, in O(columns*(perColumn+log n)) time. */
+    public double[][] decimate(double xlo, double xhi, int columns,
+                               int perColumn) {
+        if( columns<1 || perColumn<2 || !(xhi>=xlo) )
+            throw new IllegalArgumentException("PlotPyramid: can't decimate "
+                + xlo + " to " + xhi + " into " + columns + " columns of "
+                + perColumn + " points");
+        int first = indexOf(xlo, false), last = indexOf(xhi, true);
+        int[] pick = new int[perColumn+2], ext = new int[2];
+        double[] outx = new double[columns*perColumn+2];
+        double[] outy = new double[outx.length];
+        int num = 0, i0 = first, i1, c, j, k, np;
+        for( c=0; c<columns && i0<last; c++, i0=i1 ) {
+            i1 = c==columns-1 ? last :
+                Math.max(i0, indexOf(xlo + (xhi-xlo)*(c+1)/columns, false));
+            if( i1-i0<=perColumn ) {
+                for( j=i0; j<i1; j++ ) {
+                    outx[num] = x[j];
+                    outy[num++] = y[j];
+                }
+                continue;
+            }
+            extremes(i0, i1, ext);
+            np = 0;
+            pick[np++] = ext[0];
+            pick[np++] = ext[1];
+            for( j=1; j<=perColumn-2; j++ )
+                pick[np++] = i0 + (int)((long)(i1-i0)*j/(perColumn-1));
+            if( i0==first ) pick[np++] = first;
+            if( i1==last ) pick[np++] = last-1;
+            // in order of index (so of x), each once
+            for( j=1; j<np; j++ )
+                for( k=j; k>0 && pick[k-1]>pick[k]; k-- ) {
+                    int t = pick[k];
+                    pick[k] = pick[k-1];
+                    pick[k-1] = t;
+                }
+            for( j=0; j<np; j++ )
+                if( j==0 || pick[j]!=pick[j-1] ) {
+                    outx[num] = x[pick[j]];
+                    outy[num++] = y[pick[j]];
+                }
+        }
+        double[][] out = new double[2][num];
+        System.arraycopy(outx, 0, out[0], 0, num);
+        System.arraycopy(outy, 0, out[1], 0, num);
+        return out;
+    }
+}
@@ -0,0 +1,201 @@
+/** ResidualExporter.java */
+
+package edu.washington.apl.aganse.dataTools;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * ResidualExporter writes out, for every point of a series, its x and y
+ * and the fitted value and residual (y minus fitted value) under each of
+ * a set of models, typically the one-, two- and three-phase fits, for
+ * QC of the fits point by point in other tools.  The points are taken a
+ * block at a time, each model evaluated over the block at once (see
+ * PiecewiseLinearModel.predict(double[],int,double[],int,int)), and the
+ * records put into a large direct buffer that is written to the file
+ * through its FileChannel whenever it fills, so memory use stays constant
+ * however long the series, and an off-heap series is read in place.
+ * Two formats can be written:
+ * <UL>
+ * <LI>CSV: a header line "x,y,fit1,resid1,fit2,resid2,..." (numbered by
+ *     model), then one line per point of comma-separated values, each
+ *     written as by Double.toString() so they read back exactly.
+ * <LI>BINARY: no header, one record per point of 2+2k 8-byte
+ *     little-endian doubles, x, y, then each model's fitted value and
+ *     residual, like the point files of OffHeapSeries.  This is several
+ *     times faster to write and read than CSV, most of whose cost is in
+ *     formatting the numbers.
+ * </UL>
+ * The sum of squared residuals under each model is totalled along the
+ * way, as a check against the fits' own getR().
+ * @author <A HREF="mailto:aganse@apl.washington.edu">Andy Ganse</A>,<BR>
+ * <A HREF="http://www.apl.washington.edu">Applied Physics Laboratory</A>,<BR>
+ * <A HREF="http://www.washington.edu">University of Washington</A>.
+ * @version 19 Oct 2026
+ * @see <A HREF="PiecewiseLinearModel.html">PiecewiseLinearModel</A>
+ * @see <A HREF="OffHeapSeries.html">OffHeapSeries</A>
+ */
+public class ResidualExporter {
+
+    /** The output formats */
+    public static final int CSV = 0;
+    public static final int BINARY = 1;
+
+    static final int BLOCK = 4096;            // points evaluated at a time
+    static final int BUFFER_BYTES = 1<<22;    // 4 MiB output buffer
+
+    PiecewiseLinearModel[] models;
+    double[] residSumSq;              // per model, over the last export
+    long numPts, numBytes;            // written by the last export
+    long nanos;                       // and the time it took
+
+    /** Creates an exporter of the residuals under each of models */
+    public ResidualExporter(PiecewiseLinearModel[] newModels) {
+        if( newModels.length<1 )
+            throw new IllegalArgumentException(
+                "ResidualExporter: need at least one model");
+        models = newModels.clone();
+        residSumSq = new double[models.length];
+    }
+
+    /** Creates an exporter of the residuals under the one-, two- and
+     *  three-phase fits */
+    public ResidualExporter(SingleRegressionLine line1,
+                            DoubleRegressionLine line2,
+                            TripleRegressionLine line3) {
+        this(new PiecewiseLinearModel[] {new PiecewiseLinearModel(line1),
+                                         new PiecewiseLinearModel(line2),
+                                         new PiecewiseLinearModel(line3)});
+    }
+
+    /** Writes the residuals of the points of data, in their current order,
+     *  to file (created, or overwritten) in format CSV or BINARY */
+    public void export(DataSeries data, File file, int format)
+        throws IOException {
+        export(data, null, data.getNumPts(), file, format);
+    }
+
+    /** Same, for the points of an off-heap series */
+    public void export(OffHeapSeries series, File file, int format)
+        throws IOException {
+        export(null, series, series.getNumPts(), file, format);
+    }
+
+    /** The export itself, from whichever of data and series isn't null */
+    private void export(DataSeries data, OffHeapSeries series, long n,
+                        File file, int format) throws IOException {
+        long start = System.nanoTime();
+        int k = models.length, b, j, m, rec = 2+2*k;
+        double[] x = new double[BLOCK], y = new double[BLOCK];
+        double[][] fit = new double[k][BLOCK];
+        double[] out = new double[BLOCK*rec];
+        double r;
+        DataSeries.Point p;
+        if( format!=CSV && format!=BINARY )
+            throw new IllegalArgumentException(
+                "ResidualExporter: no format " + format);
+        ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        FileChannel channel = new FileOutputStream(file).getChannel();
+        numBytes = 0;
+        for( m=0; m<k; m++ ) residSumSq[m] = 0;
+        try {
+            if( format==CSV ) {
+                StringBuffer head = new StringBuffer("x,y");
+                for( m=1; m<=k; m++ ) head.append(",fit" + m + ",resid" + m);
+                putAscii(channel, buf, head.toString(), '\n');
+            }
+            for( long i=0; i<n; i+=b ) {
+                b = (int)Math.min(BLOCK, n-i);
+                for( j=0; j<b; j++ ) {
+                    if( data!=null ) {
+                        p = (DataSeries.Point)data.elementAt((int)i+j);
+                        x[j] = p.getX();
+                        y[j] = p.getY();
+                    } else {
+                        x[j] = series.getX(i+j);
+                        y[j] = series.getY(i+j);
+                    }
+                }
+                for( m=0; m<k; m++ )
+                    models[m].predict(x, 0, fit[m], 0, b);
+                // lay the block's records out, then copy them in bulk
+                for( j=0; j<b; j++ ) {
+                    out[j*rec] = x[j];
+                    out[j*rec+1] = y[j];
+                    for( m=0; m<k; m++ ) {
+                        r = y[j] - fit[m][j];
+                        out[j*rec+2+2*m] = fit[m][j];
+                        out[j*rec+3+2*m] = r;
+                        residSumSq[m] += r*r;
+                    }
+                }
+                if( format==BINARY )
+                    putDoubles(channel, buf, out, b*rec);
+                else
+                    for( j=0; j<b*rec; j++ )
+                        putAscii(channel, buf, Double.toString(out[j]),
+                                 (j+1)%rec==0 ? '\n' : ',');
+            }
+            flush(channel, buf);
+        } finally {
+            channel.close();
+        }
+        numPts = n;
+        nanos = System.nanoTime()-start;
+    }
+
+    /** Puts the first len values of v into buf as doubles, writing buf out
+     *  whenever it fills */
+    private void putDoubles(FileChannel channel, ByteBuffer buf, double[] v,
+                            int len) throws IOException {
+        int off = 0, c;
+        while( off<len ) {
+            if( buf.remaining()<8 ) flush(channel, buf);
+            c = Math.min(len-off, buf.remaining()/8);
+            buf.asDoubleBuffer().put(v, off, c);
+            buf.position(buf.position() + 8*c);
+            off += c;
+        }
+    }
+
+    /** Puts the characters of s (all ascii) and then end into buf as
+     *  bytes */
+    private void putAscii(FileChannel channel, ByteBuffer buf, String s,
+                          char end) throws IOException {
+        if( buf.remaining()<s.length()+1 ) flush(channel, buf);
+        for( int i=0; i<s.length(); i++ ) buf.put((byte)s.charAt(i));
+        buf.put((byte)end);
+    }
+
+    /** Writes out whatever is in buf and empties it */
+    private void flush(FileChannel channel, ByteBuffer buf)
+        throws IOException {
+        buf.flip();
+        while( buf.hasRemaining() ) numBytes += channel.write(buf);
+        buf.clear();
+    }
+
+    /** Returns the number of points the last export wrote */
+    public long getNumPts() {
+        return numPts;
+    }
+    /** Returns the number of bytes the last export wrote */
+    public long getNumBytes() {
+        return numBytes;
+    }
+    /** Returns the sum of squared residuals under model m (from 0) over
+     *  the points of the last export */
+    public double getResidSumSq(int m) {
+        return residSumSq[m];
+    }
+    /** Returns the time the last export took in millisecs */
+    public double getMillis() {
+        return nanos/1e6;
+    }
+    /** Returns the rate of the last export in megabytes (10^6) a second */
+    public double getMBPerSec() {
+        return nanos>0 ? numBytes*1e3/nanos : 0;
+    }
+}
@@ -0,0 +1,229 @@
+/** RobustTripleRegressionLine.java */
+
+package edu.washington.apl.aganse.dataTools;
+
+import java.util.*;
+
+/**
+ * RobustTripleRegressionLine computes a three-phase linear regression fit
+ * that resists outliers, by iteratively reweighted least squares with
+ * Huber weights.  A single spike in a profile can drag the least-squares
+ * breakpoints of TripleRegressionLine far off; here, after an ordinary
+ * fit, each point gets weight 1 if its residual is within k robust
+ * standard deviations and k*sigma/|residual| otherwise, and the weighted
+ * fit is repeated until the weights settle.
+ * Only the first fit is a full search.  Each reweighted fit is a weighted
+ * moment table plus a search of just the splits within a few runs of the
+ * previous breakpoints, so the whole robust fit costs about one ordinary
+ * fit plus a few passes over the data.
+ * The getR() here is the weighted residual sum of squares of the final
+ * fit, with the final weights available from getWeights().
+ * @author <A HREF="mailto:aganse@apl.washington.edu">Andy Ganse</A>,<BR>
+ * <A HREF="http://www.apl.washington.edu">Applied Physics Laboratory</A>,<BR>
+ * <A HREF="http://www.washington.edu">University of Washington</A>.
+ * @version 19 Oct 2026
+ * @see <A HREF="TripleRegressionLine.html">TripleRegressionLine</A>
+ * @see <A HREF="MomentTable.html">MomentTable</A>
+ */
+public class RobustTripleRegressionLine {
+
+    /** Default Huber tuning constant, giving 95% efficiency for normal
+     *  errors */
+    public static final double HUBER_K = 1.345;
+    /** Default limit on the number of reweighting iterations */
+    public static final int MAX_ITERATIONS = 20;
+    /** Default number of runs either side of the previous breakpoints
+     *  searched in each reweighted fit */
+    public static final int HALF_WIDTH = 8;
+
+    // handle to data vector, just so I don't have to keep passing it around
+    DataSeries data;
+
+    TripleRegressionLine fit;         // the latest (weighted) fit
+    double[] weights;                 // weights of the sorted data points
+    double scale;                     // robust sigma of the residuals
+    int numIterations;                // reweighted fits done
+
+    /** Robust fit with the default Huber constant and search settings */
+    public RobustTripleRegressionLine(DataSeries newdata) {
+        this(newdata, HUBER_K, MAX_ITERATIONS, HALF_WIDTH);
+    }
+
+    /** Robust fit with Huber constant k, at most maxIterations reweighted
+     *  fits, each searching halfWidth runs either side of the previous
+     *  breakpoints.  Sorts newdata like TripleRegressionLine.  A
+     *  reweighted fit that doesn't come out finite ends the iterations,
+     *  leaving the fit (and weights) before it. */
+    public RobustTripleRegressionLine(DataSeries newdata, double k,
+                                      int maxIterations, int halfWidth) {
+        double[] resid, lastWeights;
+        double change, cut;
+        MomentTable table;
+        TripleRegressionLine refit;
+        int i;
+
+        data = newdata;
+        fit = new TripleRegressionLine(data);  // also sorts the data
+        weights = new double[data.getNumPts()];
+        Arrays.fill(weights, 1.0);
+
+        for( numIterations=0; numIterations<maxIterations; ) {
+            resid = residuals(fit);
+            scale = madScale(resid);
+            if( !(scale>0) ) break;   // (near) exact fit, nothing to downweight
+
+            lastWeights = weights;
+            weights = new double[resid.length];
+            cut = k*scale;
+            change = 0;
+            for( i=0; i<resid.length; i++ ) {
+                weights[i] = Math.abs(resid[i])<=cut ? 1.0 :
+                    cut/Math.abs(resid[i]);
+                change = Math.max(change, Math.abs(weights[i]-lastWeights[i]));
+            }
+            if( change<1e-6 ) break;
+
+            // refit with the new weights, searching near the last
+            // breakpoints only (the constructor moves the runs they fall
+            // in into the searched range); should that fit not come out
+            // finite, keep the last one and the weights it was made with
+            table = new MomentTable(data, weights);
+            refit = new TripleRegressionLine(data, table,
+                table.runIndexOf(fit.getX1()), table.runIndexOf(fit.getX2()),
+                halfWidth);
+            if( !isFinite(refit) ) {
+                weights = lastWeights;
+                break;
+            }
+            fit = refit;
+            numIterations++;
+        }
+    }
+
+    /** Whether the fit's criterion, lines and breakpoints are all
+     *  finite */
+    private static boolean isFinite(TripleRegressionLine fit) {
+        double[] a = {fit.getR(), fit.getSlope1(), fit.getSlope2(),
+                      fit.getSlope3(), fit.getYint1(), fit.getYint2(),
+                      fit.getYint3(), fit.getX1(), fit.getX2()};
+        for( int i=0; i<a.length; i++ )
+            if( Double.isNaN(a[i]) || Double.isInfinite(a[i]) )
+                return false;
+        return true;
+    }
+
+    /** Residuals of the sorted data about the three lines of fit, each
+     *  line applying up to the intersection with the next, as in
+     *  getEndPoints() */
+    private double[] residuals(TripleRegressionLine fit) {
+        double[] resid = new double[data.getNumPts()];
+        DataSeries.Point p;
+        double x;
+        for( int i=0; i<resid.length; i++ ) {
+            p = (DataSeries.Point)data.elementAt(i);
+            x = p.getX();
+            if( x<=fit.getX1() )
+                resid[i] = p.getY() - fit.getSlope1()*x - fit.getYint1();
+            else if( x<=fit.getX2() )
+                resid[i] = p.getY() - fit.getSlope2()*x - fit.getYint2();
+            else
+                resid[i] = p.getY() - fit.getSlope3()*x - fit.getYint3();
+        }
+        return resid;
+    }
+
+    /** Robust estimate of the residuals' standard deviation, from their
+     *  median absolute value (normal-consistent) */
+    private static double madScale(double[] resid) {
+        double[] a = new double[resid.length];
+        int n = a.length;
+        for( int i=0; i<n; i++ )
+            a[i] = Math.abs(resid[i]);
+        Arrays.sort(a);
+        if( n==0 ) return 0;
+        return (n%2==1 ? a[n/2] : (a[n/2-1]+a[n/2])/2) / 0.6745;
+    }
+
+    /** Returns the final weighted TripleRegressionLine fit */
+    public TripleRegressionLine getFit() {
+        return fit;
+    }
+    /** Returns the final weights of the data points, in their sorted
+     *  order */
+    public double[] getWeights() {
+        return weights.clone();
+    }
+    /** Returns the robust (MAD-based) standard deviation of the residuals
+     *  used for the final weights */
+    public double getScale() {
+        return scale;
+    }
+    /** Returns the number of reweighted fits done after the first one */
+    public int getNumIterations() {
+        return numIterations;
+    }
+    /** Returns the weighted residual sum of squares of the final fit.
+     *  Notation warning: note this is SSres, not correlation coefficient!
+     */
+    public double getR() {
+        return fit.getR();
+    }
+    /** Returns the slope of the first (least x value) fitted line */
+    public double getSlope1() {
+        return fit.getSlope1();
+    }
+    /** Returns the y-intercept of the first (least x value) fitted line */
+    public double getYint1() {
+        return fit.getYint1();
+    }
+    /** Returns the slope of the second (middle) fitted line */
+    public double getSlope2() {
+        return fit.getSlope2();
+    }
+    /** Returns the y-intercept of the second (middle) fitted line */
+    public double getYint2() {
+        return fit.getYint2();
+    }
+    /** Returns the slope of the third (greatest x value) fitted line */
+    public double getSlope3() {
+        return fit.getSlope3();
+    }
+    /** Returns the y-intercept of the third (greatest x value) fitted
+     *  line */
+    public double getYint3() {
+        return fit.getYint3();
+    }
+    /** Returns the first (lesser) intersection point (x-value) */
+    public double getX1() {
+        return fit.getX1();
+    }
+    /** Returns the second (greater) intersection point (x-value) */
+    public double getX2() {
+        return fit.getX2();
+    }
+    public DataSeries getEndPoints() {
+        return fit.getEndPoints();
+    }
+    /** return a String representation describing this robust 3-phase
+     *  regression, reporting stats and endpoints of the fit-lines. */
+    public String toString() {
+        DataSeries tmp = getEndPoints();
+        return "RobustTripleRegressionLine:\n" +
+            "   Weighted sum of the three sums-of-squares-of-residuals = " +
+            getR() + "\n" +
+            "   Reweighting iterations = " + numIterations + "\n" +
+            "   Robust sigma of residuals = " + scale + "\n" +
+            "   Properties:\n" +
+            "     Slope1 = " + getSlope1() + "\n" +
+            "      Yint1 = " + getYint1() + "\n" +
+            "     Slope2 = " + getSlope2() + "\n" +
+            "      Yint2 = " + getYint2() + "\n" +
+            "     Slope3 = " + getSlope3() + "\n" +
+            "      Yint3 = " + getYint3() + "\n" +
+            "   Endpoints:\n" +
+            "      " + tmp.getX(0) + ", " + tmp.getY(0) + "\n" +
+            "      " + tmp.getX(1) + ", " + tmp.getY(1) + "\n" +
+            "      " + tmp.getX(2) + ", " + tmp.getY(2) + "\n" +
+            "      " + tmp.getX(3) + ", " + tmp.getY(3) + "\n";
+    }
+}
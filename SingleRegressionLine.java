@@ -32,6 +32,9 @@ public class SingleRegressionLine {
 		double Ry, Rsum_y=0, Rsum_yy=0;
 		DataSeries.Point p;
 		numPts = data.getNumPts();
+		FitMetrics.Probe probe =
+			new FitMetrics.Probe("SingleRegressionLine", numPts);
+		probe.begin(FitMetrics.MOMENTS);
 		slope = data.getSxy()/data.getSxx();
 		yint = ( data.getSumY() - slope*data.getSumX() ) / (double)numPts;
 		// tallying and calculating resid sum of squares R :
@@ -42,6 +45,102 @@ public class SingleRegressionLine {
 			Rsum_yy += Ry*Ry;  // sum of squares of residuals
 		}
 		R = Rsum_yy;  // - Rsum_y*Rsum_y/data.getNumPts();
+		probe.end();
+		probe.finish(0, 1, 0, 0);
+    }
+
+    /** Same, but a weighted least-squares fit, with data point i
+     *  weighted by weights[i], eg. 1/sigma^2 for a sample of standard
+     *  error sigma, or all by 1 if weights is null.  The data needn't be
+     *  sorted for this fit and is left in its order, so weights[i] stays
+     *  with point i as it does for the other fitters (see
+     *  MomentTable.sortWithWeights()).  R is then the weighted residual
+     *  sum of squares. */
+    public SingleRegressionLine(DataSeries newdata, double[] weights) {
+		data=newdata;
+		double Ry, w, x, y;
+		double sw=0, swx=0, swy=0, swxx=0, swxy=0, Rsum_yy=0;
+		double x0, y0;  // shift to keep the sums well-conditioned
+		DataSeries.Point p;
+		int i;
+		numPts = data.getNumPts();
+		if( weights!=null && weights.length!=numPts )
+			throw new IllegalArgumentException(
+				"SingleRegressionLine: need one weight per data point");
+		FitMetrics.Probe probe =
+			new FitMetrics.Probe("SingleRegressionLine", numPts);
+		probe.begin(FitMetrics.MOMENTS);
+		x0 = data.getXmean();
+		y0 = data.getYmean();
+		for(i=0; i<numPts; i++) {
+			p=(DataSeries.Point)data.elementAt(i);
+			w = weights==null ? 1 : weights[i];
+			x = p.getX()-x0;
+			y = p.getY()-y0;
+			sw += w;
+			swx += w*x;
+			swy += w*y;
+			swxx += w*x*x;
+			swxy += w*x*y;
+		}
+		slope = (swxy - swx*swy/sw) / (swxx - swx*swx/sw);
+		yint = y0 + (swy - slope*swx)/sw - slope*x0;
+		// tallying and calculating weighted resid sum of squares R :
+		for(i=0; i<numPts; i++) {
+			p=(DataSeries.Point)data.elementAt(i);
+			Ry = p.getY() - slope*p.getX() - yint;  // residual
+			Rsum_yy += (weights==null ? 1 : weights[i])*Ry*Ry;
+		}
+		R = Rsum_yy;
+		probe.end();
+		probe.finish(0, 1, 0, 0);
+    }
+
+    /** Fit of a compact series, straight from its stored values (see
+     *  CompactSeries); getEndPoints() etc. see the series through the
+     *  moment table's extent. */
+    public SingleRegressionLine(CompactSeries series) {
+		this(new MomentTable(series));
+    }
+
+    private SingleRegressionLine(MomentTable table) {
+		this(table.extent(), table);
+    }
+
+    /** Fit from an already tabulated MomentTable, as used by
+     *  MultiColumnFit; newdata need only span the data's x range */
+    SingleRegressionLine(DataSeries newdata, MomentTable table) {
+		data=newdata;
+		numPts = (int)Math.min(table.getNumPts(), Integer.MAX_VALUE);
+		FitMetrics.Probe probe =
+			new FitMetrics.Probe("SingleRegressionLine", numPts);
+		probe.begin(FitMetrics.MOMENTS);
+		MomentTable.Segment seg = table.segment(0, table.getNumRuns());
+		slope = seg.getSlope();
+		yint = seg.getYint();
+		R = seg.getR();
+		probe.end();
+		probe.finish(table.getNumRuns(), 1, 0, 0);
+    }
+
+    /** Used by fromArray() to rebuild a fit without recalculating it */
+    private SingleRegressionLine() {
+    }
+
+    /** Returns the fitted values as a flat array, so FitCache can store
+     *  them; fromArray() reverses this. */
+    double[] toArray() {
+		return new double[] {slope, yint, R, numPts};
+    }
+    /** Rebuilds a fit of newdata from the output of toArray() */
+    static SingleRegressionLine fromArray(DataSeries newdata, double[] a) {
+		SingleRegressionLine line = new SingleRegressionLine();
+		line.data = newdata;
+		line.slope = a[0];
+		line.yint = a[1];
+		line.R = a[2];
+		line.numPts = (int)a[3];
+		return line;
     }
     /** Returns the residual sum of squares for this line fitting.
      *  Notation warning: note this is SSres, not correlation coefficient!
@@ -64,9 +163,13 @@ public class SingleRegressionLine {
 	public DataSeries getEndPoints() {
 		double min_x = data.getMinX();
 		double max_x = data.getMaxX();
+		FitMetrics.Probe probe =
+			FitMetrics.Probe.afterFit("SingleRegressionLine", numPts);
+		probe.begin(FitMetrics.MATERIALIZE);
 		DataSeries output = new DataSeries();
 		output.add(min_x,getSlope()*min_x+getYint());
 		output.add(max_x,getSlope()*max_x+getYint());
+		probe.end();
 		return output;
 	}
     /** return a String representation describing this regression fit,
@@ -3,6 +3,7 @@
 package edu.washington.apl.aganse.dataTools;
 
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * TripleRegressionLine computes and returns a three-phase linear regression
@@ -36,6 +37,9 @@ public class TripleRegressionLine {
     // handle to data vector, just so I don't have to keep passing it around
     DataSeries data;
 
+    // running moments of the sorted data, for fitting the trial sections
+    MomentTable table;
+
     // for passing data from constructor to "get-" methods :
     double _R;                        // total resid sum of sq of fit
     double _slope1, _slope2, _slope3; // slopes of the three fit lines
@@ -43,51 +47,71 @@ public class TripleRegressionLine {
     double _x1, _x2;                  // x-values of intersections of fit lines
     double _avgSigma;                 // mean of the three stdDevs of residuals
                                       // = (R1/(N1-1)+R2/(N2-1)+R3/(N3-1))/3
+    long _numCandidates;              // number of (X1,X2) pairs in the search
+    long _numPruned;                  //   and how many were skipped by bounds
+    long _numImprovements;            // number of times Rmin improved
+    boolean _optimal = true;          // false if a budgeted search stopped
+                                      //   before trying every pair
+    double _Rmin;                     // budgeted search's best criterion,
+    int _bestRa, _bestRb;             //   and the runs it split after
+    boolean _bestInRect;              // true if that pair's lines meet
+                                      //   within its rectangle
+    boolean _seeded;                  // true for a search from given runs
     
     /** Most of the actual calculation done here in constructor, most of
      *  the other methods just return the results */
     public TripleRegressionLine(DataSeries newdata) {
+        this(newdata, false);
+    }
+    
+    /** Same, but when prune is true, uses lower bounds on the total
+     *  residual sum of squares to skip the (X1,X2) pairs that cannot
+     *  beat the best fit found so far, without trying them.  The bounds
+     *  are the SSres of the first section alone, plus the least SSres the
+     *  third section (and so any two-phase tail) can have over the rest of
+     *  the row, plus the SSres of the middle section, which can only grow
+     *  as X2 moves up.  The result is the same as the exhaustive search;
+     *  getNumPruned() tells how many pairs were skipped. */
+    public TripleRegressionLine(DataSeries newdata, boolean prune) {
+        this(newdata, (double[])null, prune);
+    }
+    
+    /** Weighted least-squares fit, with data point i weighted by
+     *  weights[i], eg. 1/sigma^2 for a sample of standard error sigma;
+     *  null weights means all 1.  Sorting the data sorts weights along
+     *  with it, in place (see MomentTable.sortWithWeights()).  The
+     *  weights go into the moment table, so the fit costs the same as an
+     *  unweighted one.  R is then the weighted residual sum of squares. */
+    public TripleRegressionLine(DataSeries newdata, double[] weights) {
+        this(newdata, weights, false);
+    }
+    
+    /** Weighted fit, optionally with the pruned search */
+    public TripleRegressionLine(DataSeries newdata, double[] weights,
+                                boolean prune) {
         
-        double Rmin;                      // Min total resid sum of sq for fit
-        double Rnew;                      // Temp var for R when finding
-                                          // next iteration of Rmin
-        double Rlines;                    // Total resid sum of squares from
-                                          //   proposed fit-lines formed by
-                                          //   X1 and X2 choices
-        double avgSigma;                  // mean of 3 stdDevs of residuals
-        double B1lines=0;                 // Slopes of the three proposed
-        double B2lines=0;                 //   fit-lines formed by choices
-        double B3lines=0;                 //   of X1 and X2
-                                          //   (Blines1 has lowest x value)
-        double yint1=0;                   // Y-intercepts of the three
-        double yint2=0;                   //   proposed fit-lines 
-        double yint3=0;                   //   (yint1 has lowest x value)
-        double X1lines=0;                 // X values of intersections
-        double X2lines=0;                 //   of proposed fit-lines
-        double X1, X2;                    // X values of where to divide data
-                                          //   into 3 segments, each of which
-                                          //   will have a fit-line calculated
-                                          //   via least-squares.
-                                          //   The intersections of those lines
-                                          //   will not necessarily be at X1
-                                          //   and X2 - in fact, the best
-                                          //   choice of X1, X2 is when the
-                                          //   intersections of those fit-lines
-                                          //   are as close as possible to
-                                          //   X1 and X2.  That's what the
-                                          //   calculation checks for.
-        DataSeries subdata1, subdata2, subdata3; // current 3 trial sections
-        int j;                            // Last data index before X1
-        int k;                            // Last data index before X2
-        DataSeries.Point pj, pk;          // temp vars to access x[j] and x[k]
+        double X1, X2;                    // Initial guesses for X1 and X2
+        double[] w;                       // weights in sorted data order
         
         // attach global handle
         data = newdata;
+        FitMetrics.Probe probe =
+            new FitMetrics.Probe("TripleRegressionLine", data.getNumPts());
         
         // First ort the data to get it in order of increasing x value.
         // The calculations in this TripleRegressionLine object REQUIRE the
         // data to be in sorted order on the xaxis.
-        data.sort();
+        probe.begin(FitMetrics.SORT);
+        w = MomentTable.sortWithWeights(data, weights);
+        probe.end();
+        
+        // Tabulate the running moments of the sorted data, so each trial
+        // split below is fitted in constant time, with repeated x values
+        // compacted into single runs.
+        probe.begin(FitMetrics.MOMENTS);
+        table = new MomentTable(data, w);
+        probe.end();
+        probe.begin(FitMetrics.SEARCH);
         
         // Setting initial X1 & X2 values at 1/3 total x range
         DataSeries.Point tmp1, tmp2;
@@ -96,79 +120,610 @@ public class TripleRegressionLine {
         X1 = (tmp1.getX()-tmp2.getX())/3 + tmp2.getX();
         X2 = 2*(tmp1.getX()-tmp2.getX())/3 + tmp2.getX();
         
-        // Initial Rmin based on initial X1 & X2 guesses
-        Rmin = nextR(X1,X2);
+        search(X1, X2, 0, Integer.MAX_VALUE, 0, Integer.MAX_VALUE, prune,
+               Long.MAX_VALUE, null);
+        probe.end();
+        probe.finish(table.getNumRuns(), _numCandidates, _numPruned,
+                     _numImprovements);
+    }
+    
+    /** Fit of an off-heap series, which must already be sorted in order of
+     *  increasing x value, optionally with the pruned search.  Only the
+     *  moment table is kept on the heap, and getEndPoints() etc. see the
+     *  series through its extent. */
+    public TripleRegressionLine(OffHeapSeries series, boolean prune) {
+        FitMetrics.Probe probe =
+            new FitMetrics.Probe("TripleRegressionLine", series.getNumPts());
+        probe.begin(FitMetrics.MOMENTS);
+        table = new MomentTable(series);
+        probe.end();
+        data = table.extent();
+        searchAll(probe, prune);
+    }
+    
+    /** Fit of a compact series, optionally with the pruned search,
+     *  straight from its stored values (see CompactSeries for the error
+     *  against fitting the full precision data).  getEndPoints() etc. see
+     *  the series through the moment table's extent. */
+    public TripleRegressionLine(CompactSeries series, boolean prune) {
+        FitMetrics.Probe probe =
+            new FitMetrics.Probe("TripleRegressionLine", series.getNumPts());
+        probe.begin(FitMetrics.MOMENTS);
+        table = new MomentTable(series);
+        probe.end();
+        data = table.extent();
+        searchAll(probe, prune);
+    }
+    
+    /** Fit from an already tabulated MomentTable, as used by
+     *  MultiColumnFit; newdata need only span the data's x range */
+    TripleRegressionLine(DataSeries newdata, MomentTable newtable,
+                         boolean prune) {
+        data = newdata;
+        table = newtable;
+        searchAll(new FitMetrics.Probe("TripleRegressionLine",
+                                       table.getNumPts()), prune);
+    }
+    
+    /** Full search of a table, from guesses at 1/3 and 2/3 of the x range
+     *  of data */
+    private void searchAll(FitMetrics.Probe probe, boolean prune) {
+        double X1, X2;                    // Initial guesses for X1 and X2
+        probe.begin(FitMetrics.SEARCH);
+        X1 = (data.getMaxX()-data.getMinX())/3 + data.getMinX();
+        X2 = 2*(data.getMaxX()-data.getMinX())/3 + data.getMinX();
+        search(X1, X2, 0, Integer.MAX_VALUE, 0, Integer.MAX_VALUE, prune,
+               Long.MAX_VALUE, null);
+        probe.end();
+        probe.finish(table.getNumRuns(), _numCandidates, _numPruned,
+                     _numImprovements);
+    }
+    
+    /** Budgeted ("anytime") fit, for callers with a latency limit: tries
+     *  the (X1,X2) pairs good-first, starting from the best of a coarse
+     *  grid of pairs and working outwards from it in square rings, and
+     *  returns the best fit found when budgetMillis milliseconds (from
+     *  the start of the constructor) run out, when the calling thread is
+     *  interrupted, or when cancel (which may be null) is set.  The
+     *  thread's interrupt status is left set.  Each pair is judged as by
+     *  the exhaustive search, ties going to the pair it would try first,
+     *  and where that search's fit depends on its order of trial (see
+     *  consider()) the rows it would try up to the best pair are gone
+     *  over again in its order, so isOptimal() (every pair tried, and
+     *  time left for that) means the fit is the exhaustive search's. */
+    public TripleRegressionLine(DataSeries newdata, long budgetMillis,
+                                AtomicBoolean cancel) {
+        double X1, X2;                    // Initial guesses for X1 and X2
+        long deadline = System.nanoTime() + budgetMillis*1000000;
+
+        data = newdata;
+        FitMetrics.Probe probe =
+            new FitMetrics.Probe("TripleRegressionLine", data.getNumPts());
+        probe.begin(FitMetrics.SORT);
+        MomentTable.sort(data);
+        probe.end();
+        probe.begin(FitMetrics.MOMENTS);
+        table = new MomentTable(data);
+        probe.end();
+        probe.begin(FitMetrics.SEARCH);
+        X1 = (data.getMaxX()-data.getMinX())/3 + data.getMinX();
+        X2 = 2*(data.getMaxX()-data.getMinX())/3 + data.getMinX();
+        anytimeSearch(X1, X2, deadline, cancel);
+        probe.end();
+        probe.finish(table.getNumRuns(), _numCandidates, _numPruned,
+                     _numImprovements);
+    }
+    
+    /** Warm-started fit, for a sequence of similar profiles (eg. repeated
+     *  casts at a station): priorX1 and priorX2 are the breakpoints of a
+     *  previous fit, and the search starts at the pair of runs they fall
+     *  in and works outwards row by row from there.  A good pair found
+     *  early makes the lower bounds of the pruned search (see
+     *  TripleRegressionLine(DataSeries,boolean)) rule out most of the
+     *  rest, which they do provably, and each pair is judged as by the
+     *  exhaustive search, so the result is still exact: the same as the
+     *  exhaustive (and a cold pruned, and a budgeted fit with unlimited
+     *  time), the prior only changing the order of trial.  Where the
+     *  exhaustive search's fit depends on its order of trial, the rows it
+     *  would try up to the best pair are gone over again in its order
+     *  (see consider()), which costs about a pruned fit more. */
+    public TripleRegressionLine(DataSeries newdata, double priorX1,
+                                double priorX2) {
+        double X1, X2;                    // Initial guesses for X1 and X2
+        data = newdata;
+        FitMetrics.Probe probe =
+            new FitMetrics.Probe("TripleRegressionLine", data.getNumPts());
+        probe.begin(FitMetrics.SORT);
+        MomentTable.sort(data);
+        probe.end();
+        probe.begin(FitMetrics.MOMENTS);
+        table = new MomentTable(data);
+        probe.end();
+        probe.begin(FitMetrics.SEARCH);
+        X1 = (data.getMaxX()-data.getMinX())/3 + data.getMinX();
+        X2 = 2*(data.getMaxX()-data.getMinX())/3 + data.getMinX();
+        warmSearch(X1, X2, priorX1, priorX2);
+        probe.end();
+        probe.finish(table.getNumRuns(), _numCandidates, _numPruned,
+                     _numImprovements);
+    }
+    
+    /** Warm-started local fit, as used by RobustTripleRegressionLine:
+     *  newdata must already be sorted and newtable tabulated from it
+     *  (possibly with weights), and the search starts from the splits
+     *  after runs ra0 and rb0 of the table and only tries the runs
+     *  within halfWidth of them.  ra0 and rb0 are first moved into the
+     *  ranges the search tries, and where there are runs enough, to
+     *  where each section has at least two runs, so the starting fit has
+     *  three defined lines. */
+    TripleRegressionLine(DataSeries newdata, MomentTable newtable,
+                         int ra0, int rb0, int halfWidth) {
+        long n;
+        int runs;
+        data = newdata;
+        table = newtable;
+        FitMetrics.Probe probe =
+            new FitMetrics.Probe("TripleRegressionLine", data.getNumPts());
+        probe.begin(FitMetrics.SEARCH);
+        n = table.getNumPts();
+        runs = table.getNumRuns();
+        if( n>5 ) {
+            ra0 = Math.max(ra0, Math.max(table.runOf(1), 1));
+            ra0 = Math.min(ra0, Math.min(table.runOf(n-5), runs-5));
+        }
+        ra0 = Math.min(Math.max(ra0, 0), runs-1);
+        if( n>5 ) {
+            rb0 = Math.max(rb0, Math.max(table.runOf(
+                Math.max(table.getRunStart(ra0), 1)+2), ra0+2));
+            rb0 = Math.min(rb0, Math.min(table.runOf(n-3), runs-3));
+        }
+        rb0 = Math.min(Math.max(rb0, ra0), runs-1);
+        _seeded = true;
+        search(table.getRunX(ra0), table.getRunX(rb0),
+               ra0-halfWidth, ra0+halfWidth, rb0-halfWidth, rb0+halfWidth,
+               false, Long.MAX_VALUE, null);
+        probe.end();
+        probe.finish(table.getNumRuns(), _numCandidates, _numPruned,
+                     _numImprovements);
+    }
+    
+    /** The search done for the constructors: starting from the fit with
+     *  the data divided at X1 and X2, tries dividing it after each pair
+     *  of runs ra (for X1) in raLo..raHi and rb (for X2) in rbLo..rbHi,
+     *  as far as those lie in the full search range, in order of ra and
+     *  then rb, judging each pair by consider().  Stops early, noting so
+     *  (see outOfTime()), if deadline isn't Long.MAX_VALUE and passes. */
+    private void search(double X1, double X2, int raLo, int raHi,
+                        int rbLo, int rbHi, boolean prune, long deadline,
+                        AtomicBoolean cancel) {
+        
+        int ra;                           // Run (distinct x value) of the
+                                          //   last data point before X1
+        int rb;                           // Run of last data point before X2
+        long jmin;                        // First data index in run ra tried
+        int rfirst, rlast, rbmax;         // Ranges of runs to try
+        int rbstart;                      // First run tried for X2 in a row
+        double[] R1=null, R3lo=null;      // For pruning, SSres of the first
+        double[] R3min=null;              //   section ending at run ra, and
+                                          //   lower bounds of the SSres of
+                                          //   the third section starting
+                                          //   after runs <=rb and >=rb
+        double slack=0;                   // Allowance for rounding in bounds
+                                          //   relying on SSres monotonicity
+        int lo, hi, mid;
+        
+        // Initial Rmin based on initial X1 & X2 guesses; for a seeded
+        // search one that isn't a finite number (a section with no
+        // defined line) must not stop every trial from beating it
+        _Rmin = nextR(X1,X2);
+        if( _seeded && (Double.isNaN(_Rmin) || Double.isInfinite(_Rmin)) )
+            _Rmin = Double.POSITIVE_INFINITY;
+        _bestRa = _bestRb = -1;
+        _bestInRect = false;
 
         
         // Initial stat values for output, in case the initial guesses are the
         // best values and none of these get assigned below(!)
         TotalResidSumSq totalResidSumSq = new TotalResidSumSq();
         totalResidSumSq.calculate(X1,X2);
-        _R=totalResidSumSq.getRlines();
-        _avgSigma=totalResidSumSq.getAvgSigma();
-        _slope1 = totalResidSumSq.getB1lines();
-        _slope2 = totalResidSumSq.getB2lines();
-        _slope3 = totalResidSumSq.getB3lines();
-        _yint1 = totalResidSumSq.getYint1();
-        _yint2 = totalResidSumSq.getYint2();
-        _yint3 = totalResidSumSq.getYint3();
-        _x1 = totalResidSumSq.getX1lines();
-        _x2 = totalResidSumSq.getX2lines();
+        record(totalResidSumSq);
         
         // Iterate over (almost) all combinations of the two intersection
         // points, keeping minimum resid sum of squares R as we go, and the
         // X1 & X2 associated with it.  Note that numPts must be at least 7.
-        for( j=1; j<data.getNumPts()-4; j++ ) {
-            for( k=j+2; k<data.getNumPts()-2; k++ ) {
-                pj = (DataSeries.Point)data.elementAt(j);
-                pk = (DataSeries.Point)data.elementAt(k);
+        // The trial points are datapoints j and k>=j+2 between the 2nd and
+        // 3rd-to-last datapoints, but points with the same x value divide
+        // the data identically, so only distinct x values (runs) are tried,
+        // each pair at the first j,k at which it would turn up.
+        if( table.getNumPts()>5 ) {
+            rfirst = table.runOf(1);
+            rlast = table.runOf(table.getNumPts()-5);
+            rbmax = table.runOf(table.getNumPts()-3);
+        } else {
+            rfirst = 0;
+            rlast = rbmax = -1;
+        }
+        rfirst = Math.max(rfirst, raLo);
+        rlast = Math.min(rlast, raHi);
+        rbmax = Math.min(rbmax, rbHi);
+        if( prune && rlast>=rfirst ) {
+            R1 = firstBounds(rfirst, rlast);
+            R3lo = new double[rbmax+1];
+            R3min = new double[rbmax+2];
+            thirdBounds(rbmax, R3lo, R3min);
+            slack = 1e-12 * table.getNumPts() *
+                table.segment(0, table.getNumRuns()).getSyy();
+        }
+        _numCandidates = _numPruned = _numImprovements = 0;
+        for( ra=rfirst; ra<=rlast; ra++ ) {
+            if( deadline!=Long.MAX_VALUE && outOfTime(deadline, cancel) )
+                return;
+            jmin = Math.max(table.getRunStart(ra), 1);
+            rbstart = Math.max(Math.max(table.runOf(jmin+2),ra+1), rbLo);
+            if( rbstart>rbmax ) continue;
+            _numCandidates += rbmax-rbstart+1;
+            if( prune ) {
+                // Whole row: the first section alone plus the least third
+                // section SSres in the row can't beat Rmin.  (This also
+                // drops rows whose first section has no defined line.)
+                if( !(R1[ra] + R3min[rbstart] < _Rmin) ) {
+                    _numPruned += rbmax-rbstart+1;
+                    continue;
+                }
+                // Leading columns: the third section alone is too big.
+                // R3lo is non-increasing, so binary search for the first
+                // rb that could still pass.
+                lo = rbstart;
+                hi = rbmax+1;
+                while( lo<hi ) {
+                    mid = (lo+hi)>>>1;
+                    if( R1[ra] + R3lo[mid] < _Rmin ) hi=mid;
+                    else lo=mid+1;
+                }
+                _numPruned += lo-rbstart;
+                rbstart = lo;
+            }
+            for( rb=rbstart; rb<=rbmax; rb++ ) {
                 // calc B*1, B*2, B*3, R* :
-                totalResidSumSq.calculate(pj.getX(),pk.getX());
-                Rlines=totalResidSumSq.getRlines();
-                avgSigma=totalResidSumSq.getAvgSigma();
-                X1lines = totalResidSumSq.getX1lines();
-                X2lines = totalResidSumSq.getX2lines();
-                B1lines = totalResidSumSq.getB1lines();
-                B2lines = totalResidSumSq.getB2lines();
-                B3lines = totalResidSumSq.getB3lines();
-                yint1 = totalResidSumSq.getYint1();
-                yint2 = totalResidSumSq.getYint2();
-                yint3 = totalResidSumSq.getYint3();
+                totalResidSumSq.calculate(ra,rb);
+                consider(ra, rb, totalResidSumSq);
+                
+                // Trailing columns: the middle section's SSres only grows
+                // as X2 moves up, so if it plus the first section and the
+                // least third section left can't beat Rmin, none of the
+                // rest of the row can.
+                if( prune && R1[ra] + totalResidSumSq.getSegment2().getR() +
+                    R3min[rb+1] - slack >= _Rmin ) {
+                    _numPruned += rbmax-rb;
+                    break;
+                }
+            }
+        }
+    }
+    
+    /** The test every search makes of the split after runs ra and rb,
+     *  whose fit totalResidSumSq has just calculated, against the best
+     *  so far (criterion _Rmin, runs _bestRa and _bestRb).
+     *  The fit's lines meet at X1lines and X2lines, which will not
+     *  necessarily be at the x values of ra and rb - in fact, the best
+     *  choice of X1, X2 is when the intersections of those fit-lines are
+     *  as close as possible to X1 and X2.  Where they fall within the
+     *  pair's own rectangle of x values, the criterion is the total
+     *  residual sum of squares Rlines, otherwise it is R(X1,X2) of the
+     *  lines constrained to meet at ra and rb's x values (see nextR()).
+     *  A pair whose criterion is less than the best's (or equal, if the
+     *  exhaustive search would try it first) becomes the best; but as in
+     *  the Williams-based original, only such a pair whose lines meet
+     *  outside its rectangle has its lines kept as the fit, one meeting
+     *  within it just lowering the criterion to beat (and setting
+     *  _bestInRect).  So which lines are kept then depends on the order
+     *  of trial, and searches in another order than search()'s must
+     *  finish with replay(). */
+    private void consider(int ra, int rb, TotalResidSumSq totalResidSumSq) {
+        double Rlines, X1lines, X2lines, Rnew;
+        boolean earlier;
+        Rlines = totalResidSumSq.getRlines();
+        X1lines = totalResidSumSq.getX1lines();
+        X2lines = totalResidSumSq.getX2lines();
+        earlier = _bestRa>=0 && (ra<_bestRa || (ra==_bestRa && rb<_bestRb));
+        if( !(Rlines<_Rmin || (Rlines==_Rmin && earlier)) ||
+            !(X1lines>=data.getMinX() && X2lines<=data.getMaxX()) )
+            return;
+        if( liesInRectangle( X1lines, X2lines, ra, rb ) ) {
+            _Rmin = Rlines;
+            _bestRa = ra;
+            _bestRb = rb;
+            _bestInRect = true;
+            _numImprovements++;
+            return;
+        }
+        Rnew = nextR( table.getRunX(ra), table.getRunX(rb), Rlines,
+                      totalResidSumSq.getB1lines(),
+                      totalResidSumSq.getB2lines(),
+                      totalResidSumSq.getB3lines(), X1lines, X2lines,
+                      totalResidSumSq.getSegment1(),
+                      totalResidSumSq.getSegment2(),
+                      totalResidSumSq.getSegment3());
+        if( Rnew<_Rmin || (Rnew==_Rmin && earlier) ) {
+            _Rmin = Rnew;
+            _bestRa = ra;
+            _bestRb = rb;
+            _bestInRect = false;
+            record(totalResidSumSq);
+            _numImprovements++;
+        }
+    }
+    
+    /** Finishes a search made in another order than search()'s, so that
+     *  its fit is that search's: if the best pair's lines meet within its
+     *  rectangle, search() would have kept the lines of the last pair
+     *  before it that improved on the pairs before that, so the rows up
+     *  to the best pair are searched again in that order, pruned, the
+     *  candidates adding to the counts.  If the time runs out meanwhile,
+     *  the fit from before is put back. */
+    private void replay(double X1, double X2, long deadline,
+                        AtomicBoolean cancel) {
+        if( !_bestInRect ) return;
+        double[] before = toArray();
+        long candidates = _numCandidates, pruned = _numPruned;
+        long improvements = _numImprovements;
+        search(X1, X2, 0, _bestRa, 0, Integer.MAX_VALUE, true, deadline,
+               cancel);
+        if( !_optimal ) restore(before);
+        _numCandidates += candidates;
+        _numPruned += pruned;
+        _numImprovements += improvements;
+    }
+    
+    /** For pruning, the SSres of the first section ending at each run ra
+     *  from rfirst to rlast */
+    private double[] firstBounds(int rfirst, int rlast) {
+        double[] R1 = new double[rlast+1];
+        for( int ra=rfirst; ra<=rlast; ra++ )
+            R1[ra] = table.segment(0, ra+1).getR();
+        return R1;
+    }
+    
+    /** For pruning, fills in the least SSres of a third section starting
+     *  after any run <=rb (R3lo) and >=rb (R3min), for rb up to rbmax.
+     *  NaN SSres (a one-run section) is never accepted, so it counts as
+     *  infinite in the minima. */
+    private void thirdBounds(int rbmax, double[] R3lo, double[] R3min) {
+        double R3;
+        int rb;
+        R3min[rbmax+1] = Double.POSITIVE_INFINITY;
+        for( rb=rbmax; rb>=0; rb-- ) {
+            R3 = table.segment(rb+1, table.getNumRuns()).getR();
+            if( Double.isNaN(R3) ) R3 = Double.POSITIVE_INFINITY;
+            R3min[rb] = Math.min(R3, R3min[rb+1]);
+            R3lo[rb] = R3;
+        }
+        for( rb=1; rb<=rbmax; rb++ )
+            R3lo[rb] = Math.min(R3lo[rb], R3lo[rb-1]);
+    }
+    
+    /** The search for the budgeted constructor: a coarse grid of about
+     *  GRID x GRID pairs first, then square rings of pairs of growing size
+     *  around the best pair found, until every pair has been tried or the
+     *  time runs out. */
+    private void anytimeSearch(double X1, double X2, long deadline,
+                               AtomicBoolean cancel) {
+        final int GRID = 32;              // Coarse grid size
+        final int CHECK = 256;            // Pairs tried between clock checks
+        TotalResidSumSq totalResidSumSq = new TotalResidSumSq();
+        int rfirst, rlast, rbmax;         // Ranges of runs to try
+        int[] rbstart;                    // First run for X2 for each ra
+        int rbmin;                        // least of the rbstart's
+        int ra, rb, ra0, rb0, d, step, reach, rbFrom, rbTo;
+        long jmin, untilCheck = CHECK;
+
+        // Initial fit and criterion from the initial guesses, which win
+        // any tie (marked by runs -1)
+        totalResidSumSq.calculate(X1,X2);
+        record(totalResidSumSq);
+        _Rmin = nextR(X1,X2);
+        _bestRa = _bestRb = -1;
+        _bestInRect = false;
+        _numCandidates = _numPruned = _numImprovements = 0;
 
-                if( Rlines < Rmin && X1lines>=data.getMinX() &&
-                    X2lines<=data.getMaxX()) {
-                    if( liesInRectangle( X1lines, X2lines, pj.getX(), pk.getX() ) ) {
-                        X1 = X1lines;
-                        X2 = X2lines;
-                        Rmin = Rlines;
-                    } else {
-                        subdata1 = totalResidSumSq.getSubData1();
-                        subdata2 = totalResidSumSq.getSubData2();
-                        subdata3 = totalResidSumSq.getSubData3();
-                        Rnew = nextR( pj.getX(), pk.getX(),
-                            Rlines, B1lines, B2lines, B3lines,
-                            X1lines, X2lines,
-                            subdata1, subdata2, subdata3);
-                        if( Rnew < Rmin ) {
-                            X1 = pj.getX();
-                            X2 = pk.getX();
-                            Rmin = Rnew;
-                            _R=Rlines;
-                            _avgSigma=avgSigma;
-                            _slope1 = B1lines;
-                            _slope2 = B2lines;
-                            _slope3 = B3lines;
-                            _yint1 = yint1;
-                            _yint2 = yint2;
-                            _yint3 = yint3;
-                            _x1 = X1lines;
-                            _x2 = X2lines;
-                            
-                        }
+        if( table.getNumPts()>5 ) {
+            rfirst = table.runOf(1);
+            rlast = table.runOf(table.getNumPts()-5);
+            rbmax = table.runOf(table.getNumPts()-3);
+        } else
+            return;
+        rbstart = new int[rlast+1];
+        rbmin = Integer.MAX_VALUE;
+        for( ra=rfirst; ra<=rlast; ra++ ) {
+            jmin = Math.max(table.getRunStart(ra), 1);
+            rbstart[ra] = Math.max(table.runOf(jmin+2), ra+1);
+            rbmin = Math.min(rbmin, rbstart[ra]);
+        }
+
+        // coarse grid
+        step = Math.max(1, (rbmax-rfirst+GRID-1)/GRID);
+        for( ra=rfirst; ra<=rlast; ra+=step )
+            for( rb=rbstart[ra]; rb<=rbmax; rb+=step ) {
+                tryPair(ra, rb, totalResidSumSq);
+                if( --untilCheck==0 ) {
+                    if( outOfTime(deadline, cancel) ) return;
+                    untilCheck = CHECK;
+                }
+            }
+
+        // rings around the best so far: ring d holds the pairs at
+        // Chebyshev distance d from (ra0,rb0)
+        ra0 = _bestRa>=0 ? _bestRa :
+            Math.min(Math.max(table.runIndexOf(X1), rfirst), rlast);
+        rb0 = _bestRb>=0 ? _bestRb :
+            Math.min(Math.max(table.runIndexOf(X2), rbmin), rbmax);
+        reach = Math.max(Math.max(ra0-rfirst, rlast-ra0),
+                         Math.max(rb0-rbmin, rbmax-rb0));
+        for( d=0; d<=reach; d++ ) {
+            for( ra=Math.max(ra0-d, rfirst); ra<=Math.min(ra0+d, rlast); ra++ ) {
+                rbFrom = Math.max(rb0-d, rbstart[ra]);
+                rbTo = Math.min(rb0+d, rbmax);
+                for( rb=rbFrom; rb<=rbTo; rb++ ) {
+                    // inside rows only the two ends are on the ring
+                    if( Math.abs(ra-ra0)<d && rb!=rb0-d && rb!=rb0+d ) {
+                        if( rb0+d>rbTo ) break;
+                        rb = rb0+d-1;
+                        continue;
                     }
+                    tryPair(ra, rb, totalResidSumSq);
+                    if( --untilCheck==0 ) {
+                        if( outOfTime(deadline, cancel) ) return;
+                        untilCheck = CHECK;
+                    }
+                }
+            }
+        }
+        replay(X1, X2, deadline, cancel);
+    }
+    
+    /** The search for the warm-started constructor: the pair of runs
+     *  holding the prior breakpoints first, then the rows (X1 runs) in
+     *  order of distance from the prior's, each pruned as in search() but
+     *  with the comparisons made so that pairs tying the best so far are
+     *  still tried, as tryPair() may take them. */
+    private void warmSearch(double X1, double X2, double priorX1,
+                            double priorX2) {
+        TotalResidSumSq totalResidSumSq = new TotalResidSumSq();
+        int rfirst, rlast, rbmax;         // Ranges of runs to try
+        int ra, rb, ra0, rb0, k, rbs, lo, hi, mid;
+        double[] R1, R3lo, R3min;         // Lower bounds, as in search()
+        double slack;
+        long jmin;
+
+        totalResidSumSq.calculate(X1,X2);
+        record(totalResidSumSq);
+        _Rmin = nextR(X1,X2);
+        _bestRa = _bestRb = -1;
+        _bestInRect = false;
+        _numCandidates = _numPruned = _numImprovements = 0;
+
+        if( table.getNumPts()>5 ) {
+            rfirst = table.runOf(1);
+            rlast = table.runOf(table.getNumPts()-5);
+            rbmax = table.runOf(table.getNumPts()-3);
+        } else
+            return;
+        R1 = firstBounds(rfirst, rlast);
+        R3lo = new double[rbmax+1];
+        R3min = new double[rbmax+2];
+        thirdBounds(rbmax, R3lo, R3min);
+        slack = 1e-12 * table.getNumPts() *
+            table.segment(0, table.getNumRuns()).getSyy();
+
+        ra0 = Math.min(Math.max(table.runIndexOf(priorX1), rfirst), rlast);
+        rb0 = Math.min(Math.max(table.runIndexOf(priorX2), ra0+1), rbmax);
+        jmin = Math.max(table.getRunStart(ra0), 1);
+        if( rb0>=table.runOf(jmin+2) )
+            tryPair(ra0, rb0, totalResidSumSq);
+
+        // rows ra0, ra0-1, ra0+1, ra0-2, ...
+        for( k=0; k<=2*(rlast-rfirst); k++ ) {
+            ra = (k%2==0) ? ra0+k/2 : ra0-(k+1)/2;
+            if( ra<rfirst || ra>rlast ) continue;
+            jmin = Math.max(table.getRunStart(ra), 1);
+            rbs = Math.max(table.runOf(jmin+2), ra+1);
+            if( rbs>rbmax ) continue;
+            // whole row (Rlines can't be less than R1+R3, even rounded)
+            if( !(R1[ra] + R3min[rbs] <= _Rmin) ) {
+                _numPruned += rbmax-rbs+1;
+                continue;
+            }
+            // leading columns
+            lo = rbs;
+            hi = rbmax+1;
+            while( lo<hi ) {
+                mid = (lo+hi)>>>1;
+                if( R1[ra] + R3lo[mid] <= _Rmin ) hi=mid;
+                else lo=mid+1;
+            }
+            _numPruned += lo-rbs;
+            for( rb=lo; rb<=rbmax; rb++ ) {
+                if( ra==ra0 && rb==rb0 ) continue;  // tried first
+                tryPair(ra, rb, totalResidSumSq);
+                // trailing columns
+                if( R1[ra] + totalResidSumSq.getSegment2().getR() +
+                    R3min[rb+1] - slack > _Rmin ) {
+                    _numPruned += rbmax-rb;
+                    break;
                 }
             }
         }
+        replay(X1, X2, Long.MAX_VALUE, null);
+    }
+    
+    /** Whether the budgeted search must stop now, noting so if it must */
+    private boolean outOfTime(long deadline, AtomicBoolean cancel) {
+        if( System.nanoTime()-deadline>=0 ||
+            Thread.currentThread().isInterrupted() ||
+            (cancel!=null && cancel.get()) ) {
+            _optimal = false;
+            return true;
+        }
+        return false;
+    }
+    
+    /** Tries the split after runs ra and rb for the budgeted and
+     *  warm-started searches, with the exhaustive search's test
+     *  (consider()) */
+    private void tryPair(int ra, int rb, TotalResidSumSq totalResidSumSq) {
+        _numCandidates++;
+        totalResidSumSq.calculate(ra,rb);
+        consider(ra, rb, totalResidSumSq);
+    }
+    
+    /** Takes the fit's outputs from a trial */
+    private void record(TotalResidSumSq totalResidSumSq) {
+        _R = totalResidSumSq.getRlines();
+        _avgSigma = totalResidSumSq.getAvgSigma();
+        _slope1 = totalResidSumSq.getB1lines();
+        _slope2 = totalResidSumSq.getB2lines();
+        _slope3 = totalResidSumSq.getB3lines();
+        _yint1 = totalResidSumSq.getYint1();
+        _yint2 = totalResidSumSq.getYint2();
+        _yint3 = totalResidSumSq.getYint3();
+        _x1 = totalResidSumSq.getX1lines();
+        _x2 = totalResidSumSq.getX2lines();
+    }
+    
+    /** Used by fromArray() to rebuild a fit without recalculating it */
+    private TripleRegressionLine() {
+    }
+    
+    /** Puts back the fitted values (not the counts) from the output of
+     *  toArray() */
+    private void restore(double[] a) {
+        _R = a[0];
+        _avgSigma = a[1];
+        _slope1 = a[2];
+        _slope2 = a[3];
+        _slope3 = a[4];
+        _yint1 = a[5];
+        _yint2 = a[6];
+        _yint3 = a[7];
+        _x1 = a[8];
+        _x2 = a[9];
+    }
+    
+    /** Returns the fitted values as a flat array, so FitCache can store
+     *  them; fromArray() reverses this. */
+    double[] toArray() {
+        return new double[] {_R, _avgSigma, _slope1, _slope2, _slope3,
+                             _yint1, _yint2, _yint3, _x1, _x2,
+                             _numCandidates, _numPruned};
+    }
+    /** Rebuilds a fit of newdata from the output of toArray() */
+    static TripleRegressionLine fromArray(DataSeries newdata, double[] a) {
+        TripleRegressionLine line = new TripleRegressionLine();
+        line.data = newdata;
+        line.restore(a);
+        line._numCandidates = (long)a[10];
+        line._numPruned = (long)a[11];
+        return line;
     }
     
     /** Used in constructor to calculate and supply the total residual sum
@@ -178,34 +733,28 @@ public class TripleRegressionLine {
         
         double Rlines, X1lines, X2lines, avgSigma;
         double B1lines, B2lines, B3lines, yint1, yint2, yint3;
-        DataSeries subdata1, subdata2, subdata3; // current 3 trial sections
-        DataSeries.Point p; // tmp point used while dividing into 3 sections
-        SingleRegressionLine line1, line2, line3;
+        MomentTable.Segment seg1, seg2, seg3; // current 3 trial sections
         
         public void calculate(double X1, double X2) {
-            subdata1 = new DataSeries();
-            subdata2 = new DataSeries();
-            subdata3 = new DataSeries();
-            // is there a better way to divide data into subdata1-3?
-            for(Enumeration e=data.elements(); e.hasMoreElements(); ) {
-                p=(DataSeries.Point)e.nextElement();
-                if( p.getX()<=X1 ) subdata1.add(p);
-                else if( p.getX()>X1 && p.getX()<=X2 ) subdata2.add(p);
-                else subdata3.add(p);
-            }
-            line1 = new SingleRegressionLine(subdata1);
-            line2 = new SingleRegressionLine(subdata2);
-            line3 = new SingleRegressionLine(subdata3);
-            B1lines = line1.getSlope();
-            B2lines = line2.getSlope();
-            B3lines = line3.getSlope();
-            yint1 = line1.getYint();
-            yint2 = line2.getYint();
-            yint3 = line3.getYint();
-            Rlines = line1.getR() + line2.getR() + line3.getR();
-            avgSigma = (line1.getR()/(subdata1.getNumPts()-1) +
-                        line2.getR()/(subdata2.getNumPts()-1) +
-                        line3.getR()/(subdata3.getNumPts()-1) ) / 3;
+            // data with p.getX()<=X1 go to the first section, those with
+            // X1<p.getX()<=X2 to the second, and the rest to the third
+            calculate(table.runIndexOf(X1), table.runIndexOf(X2));
+        }
+        /** Same but dividing the data after runs s1 and s2 */
+        public void calculate(int s1, int s2) {
+            seg1 = table.segment(0, s1+1);
+            seg2 = table.segment(s1+1, s2+1);
+            seg3 = table.segment(s2+1, table.getNumRuns());
+            B1lines = seg1.getSlope();
+            B2lines = seg2.getSlope();
+            B3lines = seg3.getSlope();
+            yint1 = seg1.getYint();
+            yint2 = seg2.getYint();
+            yint3 = seg3.getYint();
+            Rlines = seg1.getR() + seg2.getR() + seg3.getR();
+            avgSigma = (seg1.getR()/(seg1.getNumPts()-1) +
+                        seg2.getR()/(seg2.getNumPts()-1) +
+                        seg3.getR()/(seg3.getNumPts()-1) ) / 3;
             if(yint2==yint1 && B1lines==B2lines) {
                 X1lines=data.getMinX();
             } else {
@@ -247,14 +796,14 @@ public class TripleRegressionLine {
         public double getX2lines() {
             return X2lines;
         }
-        public DataSeries getSubData1() {
-            return subdata1;
+        public MomentTable.Segment getSegment1() {
+            return seg1;
         }
-        public DataSeries getSubData2() {
-            return subdata2;
+        public MomentTable.Segment getSegment2() {
+            return seg2;
         }
-        public DataSeries getSubData3() {
-            return subdata3;
+        public MomentTable.Segment getSegment3() {
+            return seg3;
         }
     }
     
@@ -262,7 +811,7 @@ public class TripleRegressionLine {
      *  about three fitted lines constrained to meet at (X1,X2) */
     private double nextR(double X1, double X2) {
         double Rlines, B1lines, B2lines, B3lines, X1lines, X2lines;
-        DataSeries subdata1, subdata2, subdata3; // current 3 trial sections
+        MomentTable.Segment seg1, seg2, seg3; // current 3 trial sections
         TotalResidSumSq totalResidSumSq = new TotalResidSumSq();
         totalResidSumSq.calculate(X1,X2);
         B1lines = totalResidSumSq.getB1lines();
@@ -271,11 +820,11 @@ public class TripleRegressionLine {
         X1lines = totalResidSumSq.getX1lines();
         X2lines = totalResidSumSq.getX2lines();
         Rlines = totalResidSumSq.getRlines();
-        subdata1 = totalResidSumSq.getSubData1();
-        subdata2 = totalResidSumSq.getSubData2();
-        subdata3 = totalResidSumSq.getSubData3();
+        seg1 = totalResidSumSq.getSegment1();
+        seg2 = totalResidSumSq.getSegment2();
+        seg3 = totalResidSumSq.getSegment3();
         return nextR(X1, X2, Rlines, B1lines, B2lines, B3lines,
-                     X1lines, X2lines, subdata1, subdata2, subdata3);
+                     X1lines, X2lines, seg1, seg2, seg3);
     }
     
     /** Used in constructor to calculate residual sum of squares R(X1,X2)
@@ -285,58 +834,58 @@ public class TripleRegressionLine {
     private double nextR(double X1, double X2, double Rlines,
                          double B1lines, double B2lines, double B3lines,
                          double X1lines, double X2lines,
-                         DataSeries subdata1, DataSeries subdata2,
-                         DataSeries subdata3) {
+                         MomentTable.Segment seg1, MomentTable.Segment seg2,
+                         MomentTable.Segment seg3) {
         double mAm;  // represents the m'*inv(A)*m term in Williams' equation
         double m1,m2; // m matrix
         double a11,a12,a22; // A matrix, note a12=a21 so only a12 used here
         m1 = (B1lines-B2lines)*(X1-X1lines);
         m2 = (B2lines-B3lines)*(X2-X2lines);
-        a11 = 1/subdata1.getNumPts() + 1/subdata2.getNumPts() +
-            (subdata1.getXmean() - X1)*(subdata1.getXmean() - X1) /
-            subdata1.getSxx() +
-            (subdata2.getXmean() - X1)*(subdata2.getXmean() - X1) /
-            subdata2.getSxx();
-        a12 = -1/subdata2.getNumPts() - 
-            (subdata2.getXmean() - X1)*(subdata2.getXmean() - X2) /
-            subdata2.getSxx();
-        a22 = 1/subdata2.getNumPts() + 1/subdata3.getNumPts() +
-            (subdata2.getXmean() - X2)*(subdata2.getXmean() - X2) /
-            subdata2.getSxx() +
-            (subdata3.getXmean() - X2)*(subdata3.getXmean() - X2) /
-            subdata3.getSxx();
+        a11 = 1/seg1.getNumPts() + 1/seg2.getNumPts() +
+            (seg1.getXmean() - X1)*(seg1.getXmean() - X1) /
+            seg1.getSxx() +
+            (seg2.getXmean() - X1)*(seg2.getXmean() - X1) /
+            seg2.getSxx();
+        a12 = -1/seg2.getNumPts() - 
+            (seg2.getXmean() - X1)*(seg2.getXmean() - X2) /
+            seg2.getSxx();
+        a22 = 1/seg2.getNumPts() + 1/seg3.getNumPts() +
+            (seg2.getXmean() - X2)*(seg2.getXmean() - X2) /
+            seg2.getSxx() +
+            (seg3.getXmean() - X2)*(seg3.getXmean() - X2) /
+            seg3.getSxx();
         mAm = 1/(a11*a22-a12*a12) * ( m1*m1*a22 - 2*m1*m2*a12 + m2*m2*a11 );
         
         return Rlines + mAm;
     }
     
     /** Used in constructor to check whether X1lines and X2lines are
-     *  close enough to X1 and X2 */
+     *  close enough to the x values of runs r1 and r2 */
     private boolean liesInRectangle( double X1lines, double X2lines,
-                                     double X1, double X2 ) {
+                                     int r1, int r2 ) {
         // first find the x values contained in the data vector that are
         // on either side of X1 and X2 ( = X1left, X1right, X2left, X2right)
-        double lastx=0., X1left=0., X1right=0., X2left=0., X2right=0.;
-        DataSeries.Point p;
-        for(Enumeration e=data.elements(); e.hasMoreElements(); ) {
-            p=(DataSeries.Point)e.nextElement();
-            if( p.getX()>=X1 && lastx<=X1 ) {
-                X1left = lastx;
-                X1right = p.getX();
-            }
-            if( p.getX()>=X2 && lastx<=X2 ) {
-                X2left = lastx;
-                X2right = p.getX();
-            }
-            lastx = p.getX();
-        }
-        if( X1lines>=X1left && X1lines<=X1right &&
-            X2lines>=X2left && X2lines<=X2right )
+        double[] side1 = sides(r1), side2 = sides(r2);
+        if( X1lines>=side1[0] && X1lines<=side1[1] &&
+            X2lines>=side2[0] && X2lines<=side2[1] )
             return true;
         else
             return false;
     }
     
+    /** Used in liesInRectangle to find the data x values on either side of
+     *  the x value of run r: the run's own x and the next distinct one, or
+     *  the previous one when r is the last run. */
+    private double[] sides( int r ) {
+        if( r<table.getNumRuns()-1 )
+            return new double[] {table.getRunX(r), table.getRunX(r+1)};
+        else if( table.getRunCount(r)>1 )
+            return new double[] {table.getRunX(r), table.getRunX(r)};
+        else
+            return new double[] {r>0 ? table.getRunX(r-1) : 0.,
+                                 table.getRunX(r)};
+    }
+    
     /** Returns the total residual sum of squares for this fitting.
      *  Notation warning: note this is SSres, not correlation coefficient!
      */
@@ -372,6 +921,21 @@ public class TripleRegressionLine {
     public double getYint3() {
         return _yint3;
     }
+    /** Returns the number of (X1,X2) pairs the search had to consider */
+    public long getNumCandidates() {
+        return _numCandidates;
+    }
+    /** Returns the number of (X1,X2) pairs skipped by the lower bounds in
+     *  the pruned search (zero for the exhaustive one) */
+    public long getNumPruned() {
+        return _numPruned;
+    }
+    /** Returns whether every (X1,X2) pair was tried, so that the fit is
+     *  the exhaustive search's, which is always so except for a budgeted
+     *  fit that ran out of time or was cancelled */
+    public boolean isOptimal() {
+        return _optimal;
+    }
     /** Calculates and returns the first (lesser) intersection point
      *  (x-value) */
     public double getX1() {
@@ -385,11 +949,15 @@ public class TripleRegressionLine {
     public DataSeries getEndPoints() {
         double min_x = data.getMinX();
         double max_x = data.getMaxX();
+        FitMetrics.Probe probe = FitMetrics.Probe.afterFit(
+            "TripleRegressionLine", data.getNumPts());
+        probe.begin(FitMetrics.MATERIALIZE);
         DataSeries output = new DataSeries();
         output.add(min_x,getSlope1()*min_x+getYint1());
         output.add(getX1(),getSlope1()*getX1()+getYint1());
         output.add(getX2(),getSlope2()*getX2()+getYint2());
         output.add(max_x,getSlope3()*max_x+getYint3());
+        probe.end();
         return output;
     }
     /** return a String representation describing this 3-phase regression,